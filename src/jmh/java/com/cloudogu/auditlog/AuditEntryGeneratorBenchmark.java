@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package com.cloudogu.auditlog;
+
+import jakarta.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import sonia.scm.auditlog.AuditEntry;
+import sonia.scm.auditlog.AuditLogEntity;
+import sonia.scm.auditlog.EntryCreationContext;
+import sonia.scm.group.Group;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryTestData;
+import sonia.scm.user.User;
+import sonia.scm.xml.XmlCipherStringAdapter;
+import sonia.scm.xml.XmlEncryptionAdapter;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the cost of {@link AuditEntryGenerator#generate} for every audited event.
+ * The throughput shows the time spent in the diff, the gc profiler the allocation rate per entry.
+ */
+@State(Scope.Benchmark)
+public class AuditEntryGeneratorBenchmark {
+
+  private static final int LARGE_COLLECTION_SIZE = 10_000;
+  private static final Instant TIMESTAMP = Instant.ofEpochSecond(1700000000);
+  private static final String[] REPOSITORY_LABELS = {"repository"};
+  private static final String[] USER_LABELS = {"user"};
+  private static final String[] GROUP_LABELS = {"group"};
+  private static final String[] NO_LABELS = {};
+
+  private AuditEntryGenerator generator;
+
+  private Repository repository;
+  private Repository modifiedRepository;
+  private User user;
+  private User modifiedUser;
+  private Group group;
+  private Group modifiedGroup;
+  private Group largeGroup;
+  private Group modifiedLargeGroup;
+  private SecretConfig secretConfig;
+  private SecretConfig modifiedSecretConfig;
+  private ManyIgnoredFields manyIgnoredFields;
+  private ManyIgnoredFields modifiedManyIgnoredFields;
+
+  @Setup
+  public void setUp() {
+    generator = new AuditEntryGenerator(ZoneId.of("UTC"));
+
+    repository = RepositoryTestData.create42Puzzle();
+    modifiedRepository = repository.clone();
+    modifiedRepository.setDescription("The answer to life, the universe and everything");
+
+    user = new User("dent", "Arthur Dent", "arthur@hitchhiker.com", "secret", "xml", true);
+    modifiedUser = user.clone();
+    modifiedUser.setDisplayName("Arthur Philip Dent");
+    modifiedUser.setPassword("towel");
+
+    group = new Group("xml", "crew", "trillian", "zaphod");
+    modifiedGroup = group.clone();
+    modifiedGroup.add("dent");
+
+    largeGroup = new Group("xml", "everybody", members(LARGE_COLLECTION_SIZE));
+    modifiedLargeGroup = largeGroup.clone();
+    modifiedLargeGroup.add("marvin");
+
+    secretConfig = new SecretConfig("heartofgold", "secret", "token");
+    modifiedSecretConfig = new SecretConfig("heartofgold", "improbable", "drive");
+
+    manyIgnoredFields = new ManyIgnoredFields("deepthought", 0);
+    modifiedManyIgnoredFields = new ManyIgnoredFields("deepthought", 42);
+  }
+
+  private static List<String> members(int count) {
+    List<String> members = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      members.add("user-" + i);
+    }
+    return members;
+  }
+
+  @Benchmark
+  public String createRepository() {
+    return generate(repository, null, "created", REPOSITORY_LABELS);
+  }
+
+  @Benchmark
+  public String modifyRepository() {
+    return generate(modifiedRepository, repository, "modified", REPOSITORY_LABELS);
+  }
+
+  @Benchmark
+  public String deleteRepository() {
+    return generate(null, repository, "deleted", REPOSITORY_LABELS);
+  }
+
+  @Benchmark
+  public String createUser() {
+    return generate(user, null, "created", USER_LABELS);
+  }
+
+  @Benchmark
+  public String modifyUser() {
+    return generate(modifiedUser, user, "modified", USER_LABELS);
+  }
+
+  @Benchmark
+  public String deleteUser() {
+    return generate(null, user, "deleted", USER_LABELS);
+  }
+
+  @Benchmark
+  public String createGroup() {
+    return generate(group, null, "created", GROUP_LABELS);
+  }
+
+  @Benchmark
+  public String modifyGroup() {
+    return generate(modifiedGroup, group, "modified", GROUP_LABELS);
+  }
+
+  @Benchmark
+  public String deleteGroup() {
+    return generate(null, group, "deleted", GROUP_LABELS);
+  }
+
+  @Benchmark
+  public String createLargeCollection() {
+    return generate(largeGroup, null, "created", GROUP_LABELS);
+  }
+
+  @Benchmark
+  public String modifyLargeCollection() {
+    return generate(modifiedLargeGroup, largeGroup, "modified", GROUP_LABELS);
+  }
+
+  @Benchmark
+  public String modifyMaskedAndEncryptedFields() {
+    return generate(modifiedSecretConfig, secretConfig, "modified", NO_LABELS);
+  }
+
+  @Benchmark
+  public String modifyManyIgnoredFields() {
+    return generate(modifiedManyIgnoredFields, manyIgnoredFields, "modified", NO_LABELS);
+  }
+
+  private <T> String generate(T object, T oldObject, String action, String[] labels) {
+    EntryCreationContext<T> context = new EntryCreationContext<>(object, oldObject);
+    return generator.generate(context, TIMESTAMP, "trillian", action, EntryContextResolver.resolveEntityName(context), labels);
+  }
+
+  @AuditEntry(maskedFields = "passphrase")
+  public static class SecretConfig implements AuditLogEntity {
+    private final String name;
+    private final String passphrase;
+    @XmlJavaTypeAdapter(XmlCipherStringAdapter.class)
+    private final String password;
+    @XmlJavaTypeAdapter(XmlEncryptionAdapter.class)
+    private final String token;
+
+    SecretConfig(String name, String password, String token) {
+      this.name = name;
+      this.passphrase = password;
+      this.password = password;
+      this.token = token;
+    }
+
+    @Override
+    public String getEntityName() {
+      return name;
+    }
+  }
+
+  @AuditEntry(ignoredFields = {
+    "cache", "lastAccess", "accessCount", "checksum", "etag", "revision", "lockOwner", "lockTimestamp",
+    "statistics", "hints", "mirror", "session", "buffer", "listeners"
+  })
+  public static class ManyIgnoredFields implements AuditLogEntity {
+    private final String name;
+    private final int answer;
+    private final List<String> cache = members(100);
+    private final long lastAccess = System.currentTimeMillis();
+    private final long accessCount = System.nanoTime();
+    private final String checksum = Long.toHexString(System.nanoTime());
+    private final String etag = Long.toHexString(System.nanoTime());
+    private final long revision = System.nanoTime();
+    private final String lockOwner = "zaphod";
+    private final long lockTimestamp = System.nanoTime();
+    private final List<String> statistics = members(100);
+    private final List<String> hints = members(10);
+    private final String mirror = "https://hitchhiker.com/" + System.nanoTime();
+    private final String session = Long.toHexString(System.nanoTime());
+    private final byte[] buffer = new byte[1024];
+    private final List<String> listeners = members(10);
+
+    ManyIgnoredFields(String name, int answer) {
+      this.name = name;
+      this.answer = answer;
+    }
+
+    @Override
+    public String getEntityName() {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package com.cloudogu.auditlog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.apache.shiro.SecurityUtils;
+import org.apache.shiro.authc.AuthenticationInfo;
+import org.apache.shiro.authc.AuthenticationToken;
+import org.apache.shiro.authz.AuthorizationInfo;
+import org.apache.shiro.authz.SimpleAuthorizationInfo;
+import org.apache.shiro.mgt.DefaultSecurityManager;
+import org.apache.shiro.realm.AuthorizingRealm;
+import org.apache.shiro.subject.PrincipalCollection;
+import org.apache.shiro.subject.SimplePrincipalCollection;
+import org.apache.shiro.subject.Subject;
+import sonia.scm.auditlog.EntryCreationContext;
+import sonia.scm.repository.Repository;
+import sonia.scm.repository.RepositoryTestData;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Seeds a local H2 database with a synthetic audit log and measures the write throughput of
+ * {@link DefaultAuditLogService} under concurrent producers and the latency of its queries for every combination
+ * of filters. The corpus is created with a fixed seed, so that runs of different builds can be compared.
+ * <p>
+ * The benchmark is started with {@code ./gradlew loadBenchmark}, the options are passed as project properties,
+ * e.g. {@code -Pbenchmark.rows=10000000}. The result is written as JSON to {@code build/results/load-benchmark}.
+ */
+public class AuditLogLoadBenchmark {
+
+  private static final String[] LABELS = {"repository", "permission", "user", "group", "config"};
+  private static final int[] LABEL_WEIGHTS = {60, 15, 10, 5, 10};
+  private static final String[] ACTIONS = {"modified", "created", "deleted"};
+  private static final int[] ACTION_WEIGHTS = {70, 20, 10};
+  private static final int USERS = 1_000;
+  private static final int ENTITIES = 10_000;
+  private static final int MONTHS = 24;
+  private static final long SEED = 42;
+  // seeding waits for the writer, if more entries are queued, to keep the memory bounded
+  private static final int MAX_QUEUED = 50_000;
+
+  private final long rows = Long.getLong("benchmark.rows", 1_000_000);
+  private final int producers = Integer.getInteger("benchmark.producers", 8);
+  private final int entriesPerProducer = Integer.getInteger("benchmark.entriesPerProducer", 10_000);
+  private final int samples = Integer.getInteger("benchmark.samples", 50);
+  private final Path directory = Paths.get(System.getProperty("benchmark.directory", "build/results/load-benchmark"));
+
+  private final Instant now = Instant.now().truncatedTo(ChronoUnit.DAYS);
+  private final Random random = new Random(SEED);
+
+  private AuditLogDatabase database;
+  private AuditLogWriter writer;
+  private DefaultAuditLogService service;
+  private ExecutorService writerExecutor;
+  private ExecutorService diffExecutor;
+
+  public static void main(String[] args) throws Exception {
+    new AuditLogLoadBenchmark().run();
+  }
+
+  private void run() throws Exception {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("rows", rows);
+    result.put("producers", producers);
+    result.put("entriesPerProducer", entriesPerProducer);
+    result.put("samples", samples);
+
+    setUp();
+    Subject subject = createSubject();
+    try {
+      result.put("seed", seed());
+      result.put("write", subject.execute(this::measureWrites));
+      result.put("queries", subject.execute(this::measureQueries));
+    } finally {
+      tearDown();
+    }
+
+    Path resultFile = directory.resolve("result.json");
+    new ObjectMapper()
+      .enable(SerializationFeature.INDENT_OUTPUT)
+      .writeValue(resultFile.toFile(), result);
+    System.out.println("Benchmark results written to " + resultFile.toAbsolutePath());
+  }
+
+  private void setUp() throws IOException, SQLException {
+    Path databaseDirectory = directory.resolve("db");
+    deleteRecursively(databaseDirectory);
+    Files.createDirectories(databaseDirectory);
+
+    AuditLogConfiguration configuration = new AuditLogConfiguration();
+    database = new AuditLogDatabase("jdbc:h2:file:" + databaseDirectory.toAbsolutePath().resolve("auditlog"));
+    Dictionaries dictionaries = new Dictionaries(database);
+    Partitions partitions = new Partitions(database);
+    writerExecutor = Executors.newSingleThreadExecutor();
+    diffExecutor = Executors.newFixedThreadPool(configuration.getDiffWorkers());
+    JdbcAuditLogStore store = new JdbcAuditLogStore(database, dictionaries, partitions, new Archive(directory.resolve("archive")), configuration);
+    writer = new AuditLogWriter(store, configuration, writerExecutor);
+    service = new DefaultAuditLogService(store, diffExecutor, writer, configuration, null, AuditLogMetrics.unpublished());
+  }
+
+  private void tearDown() {
+    diffExecutor.shutdown();
+    writerExecutor.shutdown();
+    database.close();
+  }
+
+  private static Subject createSubject() {
+    AuthorizingRealm realm = new AuthorizingRealm() {
+      @Override
+      protected AuthorizationInfo doGetAuthorizationInfo(PrincipalCollection principals) {
+        SimpleAuthorizationInfo info = new SimpleAuthorizationInfo();
+        info.addStringPermission("*");
+        return info;
+      }
+
+      @Override
+      protected AuthenticationInfo doGetAuthenticationInfo(AuthenticationToken token) {
+        return null;
+      }
+    };
+    DefaultSecurityManager securityManager = new DefaultSecurityManager(realm);
+    SecurityUtils.setSecurityManager(securityManager);
+    return new Subject.Builder(securityManager)
+      .principals(new SimplePrincipalCollection("trillian", realm.getName()))
+      .authenticated(true)
+      .buildSubject();
+  }
+
+  /**
+   * Writes the synthetic corpus directly to the writer. The diffs are skipped, because only the resulting rows matter.
+   */
+  private Map<String, Object> seed() throws InterruptedException {
+    long start = System.nanoTime();
+    long span = Duration.ofDays(MONTHS * 30L).toMillis();
+    for (long i = 0; i < rows; i++) {
+      // the timestamps increase like in a real audit log
+      Instant timestamp = now.minusMillis(span - span * i / rows);
+      String label = pick(LABELS, LABEL_WEIGHTS);
+      String action = pick(ACTIONS, ACTION_WEIGHTS);
+      String entity = label + "-" + skewed(ENTITIES);
+      String user = "user-" + skewed(USERS);
+      writer.append(new PendingEntry(
+        timestamp, entity, user, action,
+        timestamp + " [" + action.toUpperCase() + "] '" + user + "' " + action + " " + label + " '" + entity + "'",
+        new String[]{label}
+      ));
+      if (i % 10_000 == 0) {
+        awaitWriter(MAX_QUEUED);
+      }
+    }
+    awaitWriter(0);
+    return Map.of("seconds", seconds(System.nanoTime() - start));
+  }
+
+  private Map<String, Object> measureWrites() throws InterruptedException {
+    Repository repository = RepositoryTestData.create42Puzzle();
+    Repository modified = repository.clone();
+    modified.setDescription("The answer to life, the universe and everything");
+
+    CountDownLatch ready = new CountDownLatch(producers);
+    CountDownLatch go = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    Subject subject = SecurityUtils.getSubject();
+    for (int p = 0; p < producers; p++) {
+      Thread thread = new Thread(subject.associateWith(() -> {
+        ready.countDown();
+        try {
+          go.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+        for (int i = 0; i < entriesPerProducer; i++) {
+          service.createEntry(new EntryCreationContext<>(modified, repository));
+        }
+      }), "producer-" + p);
+      thread.start();
+      threads.add(thread);
+    }
+    ready.await();
+    long start = System.nanoTime();
+    go.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long produced = System.nanoTime() - start;
+    awaitWriter(0);
+    long written = System.nanoTime() - start;
+
+    long entries = (long) producers * entriesPerProducer;
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("entries", entries);
+    result.put("producedSeconds", seconds(produced));
+    result.put("writtenSeconds", seconds(written));
+    result.put("entriesPerSecond", entries / seconds(written));
+    result.put("droppedEntries", service.getDroppedEntries());
+    return result;
+  }
+
+  private List<Map<String, Object>> measureQueries() {
+    List<Map<String, Object>> results = new ArrayList<>();
+    results.add(measure("labels", "", () -> service.getLabels()));
+    for (Set<Filter> filters : combinations()) {
+      AuditLogFilterContext filterContext = new AuditLogFilterContext();
+      filters.forEach(filter -> filter.apply(filterContext, now));
+      String name = filters.isEmpty() ? "none" : String.join("+", filters.stream().map(Filter::name).sorted().toList());
+      results.add(measure("entries", name, () -> service.getLogEntries(filterContext)));
+      results.add(measure("count", name, () -> service.getTotalEntries(filterContext)));
+    }
+    return results;
+  }
+
+  private Map<String, Object> measure(String query, String filters, Runnable runnable) {
+    // the first executions warm up the caches of h2 and the jit
+    for (int i = 0; i < Math.max(1, samples / 10); i++) {
+      runnable.run();
+    }
+    long[] latencies = new long[samples];
+    for (int i = 0; i < samples; i++) {
+      long start = System.nanoTime();
+      runnable.run();
+      latencies[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(latencies);
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("query", query);
+    result.put("filters", filters);
+    result.put("p50Millis", millis(percentile(latencies, 50)));
+    result.put("p99Millis", millis(percentile(latencies, 99)));
+    result.put("maxMillis", millis(latencies[latencies.length - 1]));
+    return result;
+  }
+
+  private static List<Set<Filter>> combinations() {
+    Filter[] filters = Filter.values();
+    List<Set<Filter>> combinations = new ArrayList<>();
+    for (int mask = 0; mask < 1 << filters.length; mask++) {
+      int current = mask;
+      combinations.add(Set.copyOf(
+        Stream.of(filters).filter(filter -> (current & 1 << filter.ordinal()) != 0).toList()
+      ));
+    }
+    return combinations;
+  }
+
+  private void awaitWriter(int maxQueued) throws InterruptedException {
+    while (service.getDiffMetrics().getQueueDepth() + writer.getMetrics().getQueueDepth() > maxQueued) {
+      Thread.sleep(10);
+    }
+  }
+
+  private String pick(String[] values, int[] weights) {
+    int value = random.nextInt(100);
+    for (int i = 0; i < values.length; i++) {
+      value -= weights[i];
+      if (value < 0) {
+        return values[i];
+      }
+    }
+    return values[values.length - 1];
+  }
+
+  /**
+   * Picks a number where small numbers are much more likely, like a few active users and repositories.
+   */
+  private int skewed(int bound) {
+    return (int) (Math.pow(random.nextDouble(), 3) * bound);
+  }
+
+  private static long percentile(long[] sorted, int percentile) {
+    int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, index)];
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / 1_000_000_000.0;
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1_000_000.0;
+  }
+
+  private static void deleteRecursively(Path path) throws IOException {
+    if (Files.exists(path)) {
+      try (Stream<Path> files = Files.walk(path)) {
+        files.sorted(Comparator.reverseOrder()).forEach(uncheckedDelete());
+      }
+    }
+  }
+
+  private static Consumer<Path> uncheckedDelete() {
+    return file -> {
+      try {
+        Files.delete(file);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not delete " + file, e);
+      }
+    };
+  }
+
+  /**
+   * The filters of {@link AuditLogFilterContext}, which are resolved by {@link Filters}. The values hit the most
+   * frequent entities and users of the corpus.
+   */
+  private enum Filter {
+    TIME_RANGE {
+      @Override
+      void apply(AuditLogFilterContext filterContext, Instant now) {
+        filterContext.setFrom(now.minus(90, ChronoUnit.DAYS));
+        filterContext.setTo(now.minus(60, ChronoUnit.DAYS));
+      }
+    },
+    ENTITY {
+      @Override
+      void apply(AuditLogFilterContext filterContext, Instant now) {
+        filterContext.setEntity("repository-1*");
+      }
+    },
+    USERNAME {
+      @Override
+      void apply(AuditLogFilterContext filterContext, Instant now) {
+        filterContext.setUsername("user-0");
+      }
+    },
+    LABEL {
+      @Override
+      void apply(AuditLogFilterContext filterContext, Instant now) {
+        filterContext.setLabel("permission");
+      }
+    },
+    ACTION {
+      @Override
+      void apply(AuditLogFilterContext filterContext, Instant now) {
+        filterContext.setAction("deleted");
+      }
+    };
+
+    abstract void apply(AuditLogFilterContext filterContext, Instant now);
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import com.google.common.annotations.VisibleForTesting;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import sonia.scm.SCMContextProvider;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Cold storage for old entries, which have been moved out of the database into immutable {@link Segment} files
+ * in the {@code audit-log/archive} directory. Archived entries are always older than the entries of the database,
+ * so the archive is only read, if a page or a count reaches beyond the database. The segments of an archived
+ * partition are staged in a hidden directory and published at once by renaming it.
+ */
+@Slf4j
+@Singleton
+class Archive {
+
+  private static final String STAGING_PREFIX = ".";
+  private static final Comparator<Segment> NEWEST_FIRST = Comparator.comparingLong(Segment::getMaxId).reversed();
+
+  private final Path directory;
+  private volatile List<Segment> segments;
+
+  @Inject
+  Archive(SCMContextProvider contextProvider) {
+    this(contextProvider.getBaseDirectory().toPath().resolve("audit-log").resolve("archive"));
+  }
+
+  @VisibleForTesting
+  Archive(Path directory) {
+    this.directory = directory;
+    this.segments = load(directory);
+  }
+
+  private static List<Segment> load(Path directory) {
+    List<Segment> result = new ArrayList<>();
+    if (Files.isDirectory(directory)) {
+      try (Stream<Path> files = Files.list(directory)) {
+        for (Path file : files.collect(toList())) {
+          String name = file.getFileName().toString();
+          if (name.endsWith(Segment.FILE_EXTENSION)) {
+            open(file).ifPresent(result::add);
+          } else if (Files.isDirectory(file) && !name.startsWith(STAGING_PREFIX)) {
+            result.addAll(loadPublished(file));
+          }
+        }
+      } catch (IOException e) {
+        throw new AuditLogException("Failed to read audit log archive", e);
+      }
+    }
+    result.sort(NEWEST_FIRST);
+    return Collections.unmodifiableList(result);
+  }
+
+  private static List<Segment> loadPublished(Path published) throws IOException {
+    List<Segment> result = new ArrayList<>();
+    try (Stream<Path> files = Files.list(published)) {
+      for (Path file : files.filter(f -> f.getFileName().toString().endsWith(Segment.FILE_EXTENSION)).collect(toList())) {
+        open(file).ifPresent(result::add);
+      }
+    }
+    return result;
+  }
+
+  private static Optional<Segment> open(Path file) {
+    try {
+      return Optional.of(Segment.open(file));
+    } catch (IOException e) {
+      log.error("Could not open audit log archive segment {}, it will be ignored", file, e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Returns all segments, the newest first.
+   */
+  List<Segment> getAll() {
+    return segments;
+  }
+
+  /**
+   * Writes the entries of a day, which have to be in ascending id order, to a new segment.
+   * Writing the same entries again replaces the existing segment. The segment is on disk, when this method returns.
+   */
+  synchronized Segment write(List<ArchivedEntry> entries) throws IOException {
+    Files.createDirectories(directory);
+    Segment segment = Segment.write(directory.resolve(fileName(entries)), entries);
+    Segment.forceDirectory(directory);
+    List<Segment> result = segments.stream()
+      .filter(s -> !s.getFile().equals(segment.getFile()))
+      .collect(toList());
+    result.add(segment);
+    result.sort(NEWEST_FIRST);
+    segments = Collections.unmodifiableList(result);
+    return segment;
+  }
+
+  private static String fileName(List<ArchivedEntry> entries) {
+    ArchivedEntry first = entries.get(0);
+    return first.getTimestamp().atOffset(ZoneOffset.UTC).toLocalDate() + "_" + first.getId() + Segment.FILE_EXTENSION;
+  }
+
+  /**
+   * Returns {@code true}, if the segments with the given name have already been published.
+   */
+  boolean isPublished(String name) {
+    return Files.isDirectory(directory.resolve(name));
+  }
+
+  /**
+   * Starts a new set of segments with the given name, which are not visible to readers until they are
+   * published. Leftovers of an interrupted staging are removed.
+   */
+  Staging stage(String name) throws IOException {
+    Path staging = directory.resolve(STAGING_PREFIX + name);
+    if (Files.exists(staging)) {
+      try (Stream<Path> files = Files.list(staging)) {
+        for (Path file : files.collect(toList())) {
+          Files.delete(file);
+        }
+      }
+    }
+    Files.createDirectories(staging);
+    return new Staging(name, staging);
+  }
+
+  /**
+   * Makes all segments of the staging visible at once. The directory of the staging is renamed atomically,
+   * so after a crash either none or all of its segments are found. The segments are on disk, when this method
+   * returns, so their source may be removed afterwards.
+   */
+  synchronized void publish(Staging staging) throws IOException {
+    Path published = directory.resolve(staging.name);
+    Segment.forceDirectory(staging.directory);
+    Files.move(staging.directory, published, StandardCopyOption.ATOMIC_MOVE);
+    Segment.forceDirectory(directory);
+    List<Segment> result = new ArrayList<>(segments);
+    result.addAll(loadPublished(published));
+    result.sort(NEWEST_FIRST);
+    segments = Collections.unmodifiableList(result);
+  }
+
+  synchronized void delete(Segment segment) throws IOException {
+    log.info("deleting audit log archive segment {}", segment.getFile());
+    segments = Collections.unmodifiableList(
+      segments.stream().filter(s -> !s.getFile().equals(segment.getFile())).collect(toList())
+    );
+    Files.deleteIfExists(segment.getFile());
+    Path parent = segment.getFile().getParent();
+    if (!parent.equals(directory)) {
+      try (Stream<Path> files = Files.list(parent)) {
+        if (files.findAny().isEmpty()) {
+          Files.delete(parent);
+        }
+      }
+    }
+  }
+
+  /**
+   * Segments, which are written but not yet visible to readers.
+   */
+  static class Staging {
+
+    private final String name;
+    private final Path directory;
+
+    private Staging(String name, Path directory) {
+      this.name = name;
+      this.directory = directory;
+    }
+
+    void write(List<ArchivedEntry> entries) throws IOException {
+      Segment.write(directory.resolve(fileName(entries)), entries);
+    }
+  }
+
+  /**
+   * Counts the archived entries, which match the filters of the context.
+   */
+  long count(AuditLogFilterContext filterContext) {
+    return count(filterContext, Long.MAX_VALUE);
+  }
+
+  /**
+   * Counts the archived entries up to the given id, which match the filters of the context.
+   */
+  long count(AuditLogFilterContext filterContext, long maxId) {
+    ArchiveFilter filter = ArchiveFilter.of(filterContext, maxId);
+    long count = 0;
+    for (Segment segment : segments) {
+      count += count(segment, filter);
+    }
+    return count;
+  }
+
+  private long count(Segment segment, ArchiveFilter filter) {
+    if (!filter.mayMatch(segment)) {
+      return 0;
+    }
+    if (filter.matchesAll(segment)) {
+      return segment.getCount();
+    }
+    AtomicLong count = new AtomicLong();
+    segment.read(filter, true, entry -> {
+      if (filter.matches(entry)) {
+        count.incrementAndGet();
+      }
+      return true;
+    });
+    return count.get();
+  }
+
+  /**
+   * Passes up to {@code limit} matching entries in descending order to the consumer, after the first
+   * {@code skip} matching entries have been skipped. Returns the number of passed entries.
+   */
+  int readOlder(AuditLogFilterContext filterContext, long skip, int limit, Consumer<LogEntry> consumer) {
+    return readOlder(filterContext, Long.MAX_VALUE, skip, limit, consumer);
+  }
+
+  /**
+   * Like {@link #readOlder(AuditLogFilterContext, long, int, Consumer)}, but ignores entries after the given id.
+   */
+  int readOlder(AuditLogFilterContext filterContext, long maxId, long skip, int limit, Consumer<LogEntry> consumer) {
+    ArchiveFilter filter = ArchiveFilter.withCursor(filterContext, maxId);
+    AtomicLong toSkip = new AtomicLong(skip);
+    AtomicInteger read = new AtomicInteger();
+    for (Segment segment : segments) {
+      if (read.get() >= limit) {
+        break;
+      }
+      if (!filter.mayMatch(segment)) {
+        continue;
+      }
+      if (toSkip.get() > 0) {
+        long count = count(segment, filter);
+        if (count <= toSkip.get()) {
+          toSkip.addAndGet(-count);
+          continue;
+        }
+      }
+      segment.read(filter, false, entry -> {
+        if (filter.matches(entry)) {
+          if (toSkip.get() > 0) {
+            toSkip.decrementAndGet();
+          } else {
+            consumer.accept(entry.toLogEntry());
+            return read.incrementAndGet() < limit;
+          }
+        }
+        return true;
+      });
+    }
+    return read.get();
+  }
+
+  /**
+   * Returns up to {@code limit} matching entries in ascending order, starting with the oldest segment.
+   */
+  List<LogEntry> readNewer(AuditLogFilterContext filterContext, int limit) {
+    return readNewer(filterContext, Long.MAX_VALUE, limit);
+  }
+
+  /**
+   * Like {@link #readNewer(AuditLogFilterContext, int)}, but ignores entries after the given id.
+   */
+  List<LogEntry> readNewer(AuditLogFilterContext filterContext, long maxId, int limit) {
+    ArchiveFilter filter = ArchiveFilter.withCursor(filterContext, maxId);
+    List<LogEntry> entries = new ArrayList<>();
+    for (int i = segments.size() - 1; i >= 0 && entries.size() < limit; i--) {
+      Segment segment = segments.get(i);
+      if (filter.mayMatch(segment)) {
+        segment.read(filter, true, entry -> {
+          if (filter.matches(entry)) {
+            entries.add(entry.toLogEntry());
+          }
+          return entries.size() < limit;
+        });
+      }
+    }
+    return entries;
+  }
+}
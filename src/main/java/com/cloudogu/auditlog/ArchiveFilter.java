@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * The filters of an {@link AuditLogFilterContext} for archived entries. The filters behave like the
+ * SQL filters of {@link Filters}.
+ */
+class ArchiveFilter {
+
+  private final Instant from;
+  private final Instant to;
+  private final Pattern entity;
+  private final String exactEntity;
+  private final Pattern user;
+  private final String label;
+  private final String action;
+  private final List<Pattern> terms;
+  private final Long beforeId;
+  private final Long afterId;
+  /**
+   * Upper bound (inclusive) for the ids, so that segments written after a snapshot of the entries in memory are ignored.
+   */
+  private final long lastId;
+
+  private ArchiveFilter(AuditLogFilterContext filterContext, boolean withCursor, long maxId) {
+    from = filterContext.getFrom();
+    to = filterContext.getTo();
+    entity = like(filterContext.getEntity());
+    exactEntity = exact(filterContext.getEntity());
+    user = like(filterContext.getUsername());
+    label = filterContext.getLabel() != null ? Filters.normalizeValue(filterContext.getLabel()) : null;
+    action = filterContext.getAction() != null ? Filters.normalizeValue(filterContext.getAction()) : null;
+    terms = EntryTerms.ofQuery(filterContext.getQuery()).stream().map(ArchiveFilter::like).toList();
+    beforeId = withCursor ? filterContext.getBeforeId() : null;
+    afterId = withCursor ? filterContext.getAfterId() : null;
+    this.lastId = maxId;
+  }
+
+  static ArchiveFilter of(AuditLogFilterContext filterContext) {
+    return of(filterContext, Long.MAX_VALUE);
+  }
+
+  static ArchiveFilter of(AuditLogFilterContext filterContext, long maxId) {
+    return new ArchiveFilter(filterContext, false, maxId);
+  }
+
+  static ArchiveFilter withCursor(AuditLogFilterContext filterContext) {
+    return withCursor(filterContext, Long.MAX_VALUE);
+  }
+
+  static ArchiveFilter withCursor(AuditLogFilterContext filterContext, long maxId) {
+    return new ArchiveFilter(filterContext, true, maxId);
+  }
+
+  /**
+   * Returns {@code false}, if the footer of the segment proves that no entry of the segment matches.
+   */
+  boolean mayMatch(Segment segment) {
+    return mayMatchRange(segment.getMinId(), segment.getMaxId(), segment.getMinTimestamp(), segment.getMaxTimestamp())
+      && (exactEntity == null || segment.getEntities().mayContain(exactEntity))
+      && (action == null || segment.getActions().mayContain(action))
+      && (label == null || segment.getLabels().contains(label));
+  }
+
+  boolean mayMatch(Segment segment, Segment.Block block) {
+    return mayMatchRange(block.getFirstId(), block.getLastId(), block.getMinTimestamp(), block.getMaxTimestamp())
+      && (label == null || hasLabel(segment, block));
+  }
+
+  private boolean hasLabel(Segment segment, Segment.Block block) {
+    int index = segment.getLabels().indexOf(label);
+    return index >= 0 && block.getLabels().get(index);
+  }
+
+  /**
+   * Returns {@code true}, if every entry matches, because the context has no filters.
+   */
+  boolean matchesAll() {
+    return from == null && to == null && entity == null && user == null && label == null && action == null
+      && terms.isEmpty() && beforeId == null && afterId == null && lastId == Long.MAX_VALUE;
+  }
+
+  /**
+   * Returns {@code true}, if every entry of the segment matches, so that the count of the footer can be used.
+   */
+  boolean matchesAll(Segment segment) {
+    return entity == null && user == null && label == null && action == null && terms.isEmpty()
+      && (from == null || !segment.getMinTimestamp().isBefore(from))
+      && (to == null || segment.getMaxTimestamp().isBefore(to))
+      && (beforeId == null || segment.getMaxId() < beforeId)
+      && (afterId == null || segment.getMinId() > afterId)
+      && segment.getMaxId() <= lastId;
+  }
+
+  private boolean mayMatchRange(long minId, long maxId, Instant minTimestamp, Instant maxTimestamp) {
+    return (from == null || !maxTimestamp.isBefore(from))
+      && (to == null || minTimestamp.isBefore(to))
+      && (beforeId == null || minId < beforeId)
+      && (afterId == null || maxId > afterId)
+      && minId <= lastId;
+  }
+
+  boolean matches(ArchivedEntry entry) {
+    return (from == null || !entry.getTimestamp().isBefore(from))
+      && (to == null || entry.getTimestamp().isBefore(to))
+      && (beforeId == null || entry.getId() < beforeId)
+      && (afterId == null || entry.getId() > afterId)
+      && entry.getId() <= lastId
+      && matches(entity, entry.getEntity())
+      && matches(user, entry.getUser())
+      && (label == null || Arrays.asList(entry.getLabels()).contains(label))
+      && (action == null || action.equals(entry.getAction()))
+      && containsTerms(entry);
+  }
+
+  /**
+   * Archived entries have no full text index, so the terms are taken from the text of the entry.
+   */
+  private boolean containsTerms(ArchivedEntry entry) {
+    if (terms.isEmpty()) {
+      return true;
+    }
+    Set<String> entryTerms = EntryTerms.of(entry.getEntry());
+    return terms.stream().allMatch(term -> entryTerms.stream().anyMatch(value -> term.matcher(value).matches()));
+  }
+
+  private static boolean matches(Pattern pattern, String value) {
+    return pattern == null || (value != null && pattern.matcher(value).matches());
+  }
+
+  /**
+   * Translates the value like the SQL LIKE operator with the wildcards {@code %} and {@code _}.
+   */
+  private static Pattern like(String value) {
+    if (value == null) {
+      return null;
+    }
+    StringBuilder regex = new StringBuilder();
+    for (char c : Filters.normalizeValue(value).toCharArray()) {
+      if (c == '%') {
+        regex.append(".*");
+      } else if (c == '_') {
+        regex.append('.');
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(regex.toString(), Pattern.DOTALL);
+  }
+
+  private static String exact(String value) {
+    if (value == null) {
+      return null;
+    }
+    String normalized = Filters.normalizeValue(value);
+    return normalized.contains("%") || normalized.contains("_") ? null : normalized;
+  }
+}
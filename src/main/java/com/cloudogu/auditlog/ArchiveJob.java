@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.inject.Inject;
+import jakarta.inject.Provider;
+import jakarta.inject.Singleton;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import lombok.extern.slf4j.Slf4j;
+import sonia.scm.plugin.Extension;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves old partitions from the database into the {@link Archive}. Only the oldest partitions are archived,
+ * so that every archived entry is older than every entry of the database. The entries of a partition are
+ * written to one segment per day. The segments are staged and published at once, and the partition is dropped
+ * afterwards. If the job is interrupted before the segments are published, they are written again. If it is
+ * interrupted after that, the partition is only dropped.
+ */
+@Slf4j
+@Extension
+@Singleton
+public class ArchiveJob implements ServletContextListener {
+
+  private static final long INTERVAL_MINUTES = 60;
+  private static final int MAX_SEGMENT_ENTRIES = 100_000;
+
+  private final Provider<AuditLogDatabase> database;
+  private final Provider<Partitions> partitions;
+  private final Provider<Dictionaries> dictionaries;
+  private final Archive archive;
+  private final ScheduledExecutorService executor;
+  private final Clock clock;
+  private final boolean fileStore;
+  private final int afterDays;
+
+  private volatile boolean stopped;
+
+  /**
+   * The database is only opened, if the entries are stored in the database. The file store moves its entries
+   * into the archive by itself.
+   */
+  @Inject
+  ArchiveJob(Provider<AuditLogDatabase> database, Provider<Partitions> partitions, Provider<Dictionaries> dictionaries, Archive archive, AuditLogConfiguration configuration) {
+    this(
+      database,
+      partitions,
+      dictionaries,
+      archive,
+      configuration,
+      Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+          .setNameFormat("AuditLogArchive-%d")
+          .setDaemon(true)
+          .build()
+      ),
+      Clock.systemUTC()
+    );
+  }
+
+  @VisibleForTesting
+  ArchiveJob(AuditLogDatabase database, Partitions partitions, Dictionaries dictionaries, Archive archive, AuditLogConfiguration configuration, ScheduledExecutorService executor, Clock clock) {
+    this(() -> database, () -> partitions, () -> dictionaries, archive, configuration, executor, clock);
+  }
+
+  private ArchiveJob(Provider<AuditLogDatabase> database, Provider<Partitions> partitions, Provider<Dictionaries> dictionaries, Archive archive, AuditLogConfiguration configuration, ScheduledExecutorService executor, Clock clock) {
+    this.database = database;
+    this.partitions = partitions;
+    this.dictionaries = dictionaries;
+    this.archive = archive;
+    this.executor = executor;
+    this.clock = clock;
+    this.fileStore = configuration.getStore() == AuditLogConfiguration.StoreType.FILE;
+    this.afterDays = configuration.getArchiveAfterDays();
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent servletContextEvent) {
+    if (fileStore) {
+      return;
+    }
+    try {
+      dropPublishedPartitions();
+    } catch (SQLException e) {
+      log.warn("Could not drop archived audit log partitions", e);
+    }
+    if (afterDays > 0) {
+      executor.scheduleWithFixedDelay(this::run, 5, INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+  }
+
+  /**
+   * Drops the partitions, which have been published to the archive before the job was interrupted,
+   * so that their entries are not read twice.
+   */
+  @VisibleForTesting
+  void dropPublishedPartitions() throws SQLException {
+    try (Connection connection = database.get().getConnection()) {
+      for (Partition partition : Lists.reverse(partitions.get().getAll())) {
+        if (!archive.isPublished(partition.getAuditTable())) {
+          break;
+        }
+        partitions.get().drop(connection, partition);
+      }
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent servletContextEvent) {
+    stopped = true;
+    executor.shutdownNow();
+  }
+
+  private void run() {
+    try {
+      long archived = archive();
+      if (archived > 0) {
+        log.info("archived {} audit log entries", archived);
+      }
+    } catch (SQLException | IOException | RuntimeException e) {
+      log.warn("Could not archive audit log entries", e);
+    }
+  }
+
+  /**
+   * Archives all partitions, which ended before the configured number of days, and returns the number of
+   * archived entries.
+   */
+  @VisibleForTesting
+  long archive() throws SQLException, IOException {
+    if (!database.get().isApplied(SchemaMigrations.ENCODE_EXISTING_ENTRIES)) {
+      // entries without dictionary ids would be archived without entity, user, action and labels
+      log.debug("existing entries are still encoded, archiving is postponed");
+      return 0;
+    }
+    Instant threshold = clock.instant().minus(Duration.ofDays(afterDays));
+    long archived = 0;
+    try (Connection connection = database.get().getConnection()) {
+      for (Partition partition : Lists.reverse(partitions.get().getAll())) {
+        if (stopped || !partition.endsAtOrBefore(threshold)) {
+          // newer partitions must stay in the database as long as an older one is not archived
+          break;
+        }
+        if (!archive.isPublished(partition.getAuditTable())) {
+          archived += archive(connection, partition);
+        }
+        partitions.get().drop(connection, partition);
+      }
+    }
+    return archived;
+  }
+
+  /**
+   * Writes the entries of the partition into staged segments and publishes them. The partition is hidden
+   * from the readers before, so that its entries are never read or counted twice.
+   */
+  private long archive(Connection connection, Partition partition) throws SQLException, IOException {
+    Archive.Staging staging = archive.stage(partition.getAuditTable());
+    List<ArchivedEntry> segment = new ArrayList<>();
+    LocalDate day = null;
+    long archived = 0;
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery(
+           "SELECT ID, TIMESTAMP_, ENTITY_ID, USER_ID, ACTION_ID, ENTRY, ENTRY_DATA FROM " + partition.getAuditTable() + " ORDER BY ID")) {
+      while (resultSet.next()) {
+        ArchivedEntry entry = read(resultSet);
+        LocalDate entryDay = entry.getTimestamp().atOffset(ZoneOffset.UTC).toLocalDate();
+        if (!segment.isEmpty() && (!entryDay.equals(day) || segment.size() >= MAX_SEGMENT_ENTRIES)) {
+          archived += write(connection, partition, staging, segment);
+        }
+        day = entryDay;
+        segment.add(entry);
+      }
+    }
+    if (!segment.isEmpty()) {
+      archived += write(connection, partition, staging, segment);
+    }
+    partitions.get().hide(partition);
+    try {
+      archive.publish(staging);
+    } catch (IOException e) {
+      partitions.get().reload(connection);
+      throw e;
+    }
+    return archived;
+  }
+
+  private int write(Connection connection, Partition partition, Archive.Staging staging, List<ArchivedEntry> entries) throws SQLException, IOException {
+    Map<Long, List<String>> labels = readLabels(connection, partition, entries.get(0).getId(), entries.get(entries.size() - 1).getId());
+    List<ArchivedEntry> labeled = new ArrayList<>(entries.size());
+    for (ArchivedEntry entry : entries) {
+      labeled.add(new ArchivedEntry(
+        entry.getId(),
+        entry.getTimestamp(),
+        entry.getEntity(),
+        entry.getUser(),
+        entry.getAction(),
+        entry.getEntry(),
+        labels.getOrDefault(entry.getId(), List.of()).toArray(new String[0])
+      ));
+    }
+    staging.write(labeled);
+    int count = entries.size();
+    entries.clear();
+    return count;
+  }
+
+  private ArchivedEntry read(ResultSet resultSet) throws SQLException {
+    String entry = resultSet.getString("ENTRY");
+    if (entry == null) {
+      byte[] data = resultSet.getBytes("ENTRY_DATA");
+      entry = data != null ? EntryCodec.decode(data) : null;
+    }
+    return new ArchivedEntry(
+      resultSet.getLong("ID"),
+      resultSet.getTimestamp("TIMESTAMP_").toInstant(),
+      dictionaries.get().entities().valueOf(resultSet, "ENTITY_ID"),
+      dictionaries.get().users().valueOf(resultSet, "USER_ID"),
+      dictionaries.get().actions().valueOf(resultSet, "ACTION_ID"),
+      entry,
+      new String[0]
+    );
+  }
+
+  /**
+   * Reads the labels of the entries of one segment, so that the labels of the whole partition are never
+   * held in memory at once.
+   */
+  private Map<Long, List<String>> readLabels(Connection connection, Partition partition, long fromId, long toId) throws SQLException {
+    Map<Long, List<String>> labels = new HashMap<>();
+    try (PreparedStatement statement = connection.prepareStatement(
+      "SELECT AUDIT, LABEL_ID FROM " + partition.getLabelsTable() + " WHERE AUDIT >= ? AND AUDIT <= ?")) {
+      statement.setLong(1, fromId);
+      statement.setLong(2, toId);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          labels.computeIfAbsent(resultSet.getLong("AUDIT"), id -> new ArrayList<>())
+            .add(dictionaries.get().labels().valueOf(resultSet, "LABEL_ID"));
+        }
+      }
+    }
+    return labels;
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+
+/**
+ * An entry of an archive segment. In contrast to the database, segments store the values themselves
+ * instead of dictionary ids, so that every segment can be read on its own.
+ */
+@Getter
+@AllArgsConstructor
+class ArchivedEntry {
+  private final long id;
+  private final Instant timestamp;
+  private final String entity;
+  private final String user;
+  private final String action;
+  private final String entry;
+  private final String[] labels;
+
+  LogEntry toLogEntry() {
+    return new LogEntry(id, timestamp, entity, user, action, entry);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import com.google.common.base.Splitter;
+import jakarta.inject.Singleton;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tuning options of the audit log. The defaults can be overridden with system properties
+ * prefixed with {@code scm.auditLog.}, e.g. {@code -Dscm.auditLog.writer.batchSize=1000}.
+ * Malformed values are ignored and the defaults are used instead.
+ */
+@Slf4j
+@Getter
+@Setter
+@Singleton
+public class AuditLogConfiguration {
+
+  private static final String PREFIX = "scm.auditLog.";
+
+  /**
+   * Maximum number of entries written to the database in one transaction.
+   */
+  private int writerBatchSize = Integer.getInteger(PREFIX + "writer.batchSize", 500);
+
+  /**
+   * Time in milliseconds the writer waits for further entries before an incomplete batch is committed.
+   */
+  private long writerLingerMillis = Long.getLong(PREFIX + "writer.lingerMillis", 20);
+
+  /**
+   * Number of threads creating the diffs of new entries in parallel.
+   */
+  private int diffWorkers = Integer.getInteger(PREFIX + "diff.workers", Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Stores rendered entries in a journal until they are written to the database, so that they are not lost if the
+   * server is killed.
+   */
+  private boolean journal = Boolean.parseBoolean(System.getProperty(PREFIX + "journal", "true"));
+
+  /**
+   * Maximum number of new entries, which are waiting for their diff or to be written. This limits the memory used
+   * for the objects of new entries during bursts.
+   */
+  private int queueCapacity = Integer.getInteger(PREFIX + "queue.capacity", 10_000);
+
+  /**
+   * What happens to new entries, if the queue is full.
+   */
+  private OverflowPolicy queueOverflow = getEnum("queue.overflow", OverflowPolicy.BLOCK);
+
+  /**
+   * Stores new entries compressed and compresses existing entries in the background.
+   */
+  private boolean entryCompression = Boolean.getBoolean(PREFIX + "entry.compression");
+
+  /**
+   * Number of days after which entries are removed. Entries are kept forever, if this is 0.
+   */
+  private int retentionDays = Integer.getInteger(PREFIX + "retention.days", 0);
+
+  /**
+   * Number of days after which entries with the given labels are removed, overriding {@link #retentionDays}.
+   * Configured as comma separated list, e.g. {@code permission=3650,user=365}. A value of 0 keeps
+   * entries with the label forever.
+   */
+  private Map<String, Integer> retentionDaysByLabel = parseDaysByLabel(System.getProperty(PREFIX + "retention.labelDays", ""));
+
+  /**
+   * Maximum number of entries, the oldest entries are removed beyond. There is no limit, if this is 0.
+   */
+  private long retentionMaxEntries = Long.getLong(PREFIX + "retention.maxEntries", 0);
+
+  /**
+   * Number of entries removed in one transaction.
+   */
+  private int retentionChunkSize = Integer.getInteger(PREFIX + "retention.chunkSize", 1000);
+
+  /**
+   * Number of days after which the partitions of completed months are moved from the database into compressed
+   * archive segments. Nothing is archived, if this is 0.
+   */
+  private int archiveAfterDays = Integer.getInteger(PREFIX + "archive.afterDays", 0);
+
+  /**
+   * Maximum number of database connections for queries and background jobs. The writer has a connection of its own.
+   */
+  private int dbMaxConnections = Integer.getInteger(PREFIX + "db.maxConnections", 10);
+
+  /**
+   * Number of threads, which count the entries of a page of the audit log view next to the query of the page itself.
+   */
+  private int queryWorkers = Integer.getInteger(PREFIX + "query.workers", 4);
+
+  /**
+   * Maximum number of exports, which are read at the same time. Further exports wait, so that there are always
+   * connections left for the audit log view.
+   */
+  private int maxConcurrentExports = Integer.getInteger(PREFIX + "query.maxConcurrentExports", 2);
+
+  /**
+   * Storage engine of the entries. Entries are not migrated, if the store is changed.
+   */
+  private StoreType store = getEnum("store", StoreType.DATABASE);
+
+  /**
+   * Number of entries, after which the log of the file store is sealed into an archive segment.
+   */
+  private int fileStoreSegmentEntries = Integer.getInteger(PREFIX + "store.segmentEntries", 50_000);
+
+  private static <E extends Enum<E>> E getEnum(String name, E defaultValue) {
+    String value = System.getProperty(PREFIX + name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Enum.valueOf(defaultValue.getDeclaringClass(), value.trim().toUpperCase(Locale.ENGLISH));
+    } catch (IllegalArgumentException e) {
+      log.warn("invalid value '{}' of {}{}, using {} instead", value, PREFIX, name, defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Parses the retention periods by label. Malformed entries are skipped, so that the other labels still apply.
+   */
+  static Map<String, Integer> parseDaysByLabel(String value) {
+    Map<String, Integer> daysByLabel = new HashMap<>();
+    for (String labelDays : Splitter.on(',').trimResults().omitEmptyStrings().split(value)) {
+      List<String> parts = Splitter.on('=').trimResults().splitToList(labelDays);
+      try {
+        if (parts.size() != 2 || parts.get(0).isEmpty()) {
+          throw new IllegalArgumentException("expected label=days");
+        }
+        daysByLabel.put(parts.get(0).toLowerCase(), Integer.parseInt(parts.get(1)));
+      } catch (IllegalArgumentException e) {
+        log.warn("ignoring invalid entry '{}' of {}retention.labelDays: {}", labelDays, PREFIX, e.getMessage());
+      }
+    }
+    return daysByLabel;
+  }
+
+  public enum OverflowPolicy {
+    /**
+     * The caller waits until there is space in the queue.
+     */
+    BLOCK,
+    /**
+     * The diff is created by the caller and the entry is written to an overflow file, which is replayed later.
+     */
+    SPILL,
+    /**
+     * The entry is dropped and counted.
+     */
+    DROP
+  }
+
+  public enum StoreType {
+    /**
+     * Entries are stored in monthly partitions of the h2 database.
+     */
+    DATABASE,
+    /**
+     * Entries are appended to a log file, which is sealed into archive segments.
+     */
+    FILE
+  }
+}
@@ -16,45 +16,219 @@
 
 package com.cloudogu.auditlog;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
 import org.h2.jdbcx.JdbcConnectionPool;
 import sonia.scm.SCMContextProvider;
 
 import jakarta.inject.Inject;
-import jakarta.servlet.ServletContextEvent;
-import jakarta.servlet.ServletContextListener;
+import jakarta.inject.Singleton;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
-class AuditLogDatabase implements ServletContextListener {
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Connections to the h2 database of the audit log. Queries and background jobs share a pool of connections, while
+ * the {@link AuditLogWriter} has a connection of its own, so that new entries are never blocked by long exports.
+ */
+@Slf4j
+@Singleton
+class AuditLogDatabase {
 
   private final JdbcConnectionPool dataSource;
+  private final JdbcConnectionPool writerDataSource;
+  private final AuditLogMetrics metrics;
+  /**
+   * Versions of the background migrations, which have not been applied yet.
+   */
+  private final Set<Integer> pendingVersions = ConcurrentHashMap.newKeySet();
+  private final Map<Integer, List<Runnable>> migrationListeners = new HashMap<>();
+  private volatile boolean closed;
 
   @Inject
-  AuditLogDatabase(SCMContextProvider contextProvider) throws SQLException {
-    this("jdbc:h2:" + contextProvider.getBaseDirectory() + "/audit-log/audit-log");
+  AuditLogDatabase(SCMContextProvider contextProvider, AuditLogConfiguration configuration, AuditLogMetrics metrics) throws SQLException {
+    this(
+      "jdbc:h2:" + contextProvider.getBaseDirectory() + "/audit-log/audit-log",
+      configuration,
+      metrics,
+      Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder()
+          .setNameFormat("AuditLogMigration-%d")
+          .setDaemon(true)
+          .build()
+      ),
+      SchemaMigrations.all()
+    );
   }
 
+  @VisibleForTesting
   AuditLogDatabase(String url) throws SQLException {
+    this(url, Runnable::run, SchemaMigrations.all());
+  }
+
+  @VisibleForTesting
+  AuditLogDatabase(String url, Executor migrationExecutor, List<SchemaMigration> migrations) throws SQLException {
+    this(url, new AuditLogConfiguration(), AuditLogMetrics.unpublished(), migrationExecutor, migrations);
+  }
+
+  @VisibleForTesting
+  AuditLogDatabase(String url, AuditLogConfiguration configuration, AuditLogMetrics metrics, Executor migrationExecutor, List<SchemaMigration> migrations) throws SQLException {
+    this.metrics = metrics;
     dataSource = JdbcConnectionPool.create(url, null, null);
+    dataSource.setMaxConnections(Math.max(1, configuration.getDbMaxConnections()));
+    // the writer is single threaded, so one reserved connection is enough
+    writerDataSource = JdbcConnectionPool.create(url, null, null);
+    writerDataSource.setMaxConnections(1);
+    migrate(migrationExecutor, migrations);
+  }
+
+  private void migrate(Executor migrationExecutor, List<SchemaMigration> migrations) throws SQLException {
+    Set<Integer> appliedVersions = readAppliedVersions();
+    List<SchemaMigration> pending = migrations.stream()
+      .filter(migration -> !appliedVersions.contains(migration.getVersion()))
+      .collect(toList());
 
+    for (SchemaMigration migration : pending) {
+      if (!migration.isBackground()) {
+        apply(migration);
+      }
+    }
+
+    List<SchemaMigration> pendingInBackground = pending.stream()
+      .filter(SchemaMigration::isBackground)
+      .collect(toList());
+    pendingInBackground.forEach(migration -> pendingVersions.add(migration.getVersion()));
+    if (!pendingInBackground.isEmpty()) {
+      migrationExecutor.execute(() -> applyInBackground(pendingInBackground));
+    }
+  }
+
+  private Set<Integer> readAppliedVersions() throws SQLException {
     try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
-      statement.execute("CREATE TABLE IF NOT EXISTS AUDITLOG(ID int auto_increment primary key, TIMESTAMP_ timestamp, ENTITY varchar, USERNAME varchar, ACTION_ varchar, ENTRY varchar);");
-      statement.execute("CREATE TABLE IF NOT EXISTS LABELS(AUDIT int, LABEL varchar);");
+      statement.execute("CREATE TABLE IF NOT EXISTS SCHEMA_MIGRATIONS(VERSION int primary key, DESCRIPTION varchar, APPLIED_AT timestamp)");
+      Set<Integer> versions = new HashSet<>();
+      try (ResultSet resultSet = statement.executeQuery("SELECT VERSION FROM SCHEMA_MIGRATIONS")) {
+        while (resultSet.next()) {
+          versions.add(resultSet.getInt("VERSION"));
+        }
+      }
+      return versions;
+    }
+  }
+
+  private void applyInBackground(List<SchemaMigration> migrations) {
+    for (SchemaMigration migration : migrations) {
+      if (closed) {
+        log.info("audit log database has been closed, migration {} ({}) will be applied on next start", migration.getVersion(), migration.getDescription());
+        return;
+      }
+      try {
+        // the instance before a restart of the plugin may have finished the migration in the meantime
+        if (!readAppliedVersions().contains(migration.getVersion())) {
+          apply(migration);
+        }
+        applied(migration.getVersion());
+      } catch (SQLException e) {
+        log.warn("Could not apply audit log migration {} ({}), it will be retried on next start", migration.getVersion(), migration.getDescription(), e);
+        return;
+      }
     }
   }
 
+  private void apply(SchemaMigration migration) throws SQLException {
+    log.info("applying audit log migration {}: {}", migration.getVersion(), migration.getDescription());
+    try (Connection connection = dataSource.getConnection()) {
+      migration.getStep().apply(connection);
+      try (PreparedStatement statement = connection.prepareStatement("MERGE INTO SCHEMA_MIGRATIONS(VERSION, DESCRIPTION, APPLIED_AT) KEY(VERSION) VALUES (?, ?, ?)")) {
+        statement.setInt(1, migration.getVersion());
+        statement.setString(2, migration.getDescription());
+        statement.setTimestamp(3, Timestamp.from(Instant.now()));
+        statement.executeUpdate();
+      }
+    }
+  }
+
+  private void applied(int version) {
+    List<Runnable> listeners;
+    synchronized (migrationListeners) {
+      pendingVersions.remove(version);
+      listeners = migrationListeners.getOrDefault(version, List.of());
+      migrationListeners.remove(version);
+    }
+    listeners.forEach(Runnable::run);
+  }
+
+  /**
+   * Returns {@code true}, if the migration with the given version is not waiting to be applied in the background.
+   */
+  boolean isApplied(int version) {
+    return !pendingVersions.contains(version);
+  }
+
+  /**
+   * Runs the listener after the background migration with the given version has been applied, e.g. to reload
+   * cached data changed by the migration. Nothing happens, if the migration is not pending.
+   */
+  void afterMigration(int version, Runnable listener) {
+    synchronized (migrationListeners) {
+      if (pendingVersions.contains(version)) {
+        migrationListeners.computeIfAbsent(version, v -> new ArrayList<>()).add(listener);
+      }
+    }
+  }
+
+  /**
+   * Returns a connection of the shared pool for queries and background jobs.
+   */
   public Connection getConnection() throws SQLException {
-    return dataSource.getConnection();
+    return getConnection(dataSource, "shared");
+  }
+
+  /**
+   * Returns the connection reserved for the {@link AuditLogWriter}.
+   */
+  Connection getWriterConnection() throws SQLException {
+    return getConnection(writerDataSource, "writer");
   }
 
-  @Override
-  public void contextInitialized(ServletContextEvent servletContextEvent) {
-    // nothing to do
+  private Connection getConnection(JdbcConnectionPool pool, String name) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return pool.getConnection();
+    } finally {
+      metrics.recordConnectionWait(name, System.nanoTime() - start);
+    }
   }
 
-  @Override
-  public void contextDestroyed(ServletContextEvent servletContextEvent) {
+  /**
+   * Closes the connection pools. Called on shutdown, after the writer has stopped (see {@link AuditLogShutdown}).
+   */
+  void close() {
+    closed = true;
+    writerDataSource.dispose();
     dataSource.dispose();
   }
+
+  /**
+   * Returns {@code true}, if the database has been shut down.
+   */
+  boolean isClosed() {
+    return closed;
+  }
 }
@@ -27,7 +27,15 @@ import lombok.Setter;
 @SuppressWarnings("squid:S2160") // we do not need equals for dto
 public class AuditLogDto extends HalRepresentation {
   private int page;
-  private int pageTotal;
+  /**
+   * Number of pages or {@code null}, if the entries have not been counted.
+   */
+  private Integer pageTotal;
+  private boolean hasMore;
+  /**
+   * {@code false}, if matching entries may be missing, because existing entries are still migrated.
+   */
+  private boolean complete;
 
   AuditLogDto(Links links, Embedded embedded) {
     super(links, embedded);
@@ -20,9 +20,10 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
-import java.sql.Date;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
 
 
 @NoArgsConstructor
@@ -33,30 +34,103 @@ public class AuditLogFilterContext {
   private int limit = 100;
   private String entity;
   private String username;
-  private Date from;
-  private Date to;
+  /**
+   * Lower bound (inclusive) for the timestamp of the entries.
+   */
+  private Instant from;
+  /**
+   * Upper bound (exclusive) for the timestamp of the entries.
+   */
+  private Instant to;
   private String label;
   private String action;
+  /**
+   * Full text query (request parameter {@code q}). An entry matches, if it contains all terms of the query,
+   * see {@link EntryTerms}.
+   */
+  private String query;
+  /**
+   * If set, only entries older than the entry with this id are returned (cursor based paging).
+   */
+  private Long beforeId;
+  /**
+   * If set, only entries newer than the entry with this id are returned (cursor based paging).
+   */
+  private Long afterId;
+  /**
+   * If set, one entry more than the limit is read, so that it is known whether there is a further page without
+   * counting all entries. The offset of numbered pages is still computed with the limit.
+   */
+  private boolean lookAhead;
+  /**
+   * If not set, the matching entries are not counted, so that the page only tells whether there is a further page
+   * (see {@link #lookAhead}).
+   */
+  private boolean countEntries = true;
 
+  /**
+   * Creates a filter context from request parameters. The time bounds {@code from} and {@code to} are either dates
+   * like {@code 2024-01-31} or full ISO-8601 timestamps with offset like {@code 2024-01-31T12:30:00.123Z}.
+   * Dates are interpreted in the time zone of the server, which is the zone the entries are rendered in.
+   */
   @SuppressWarnings("java:S107") // Big constructor because of many filter options
   public AuditLogFilterContext(int pageNumber, int limit, String entity, String username, String from, String to, String label, String action) {
+    this(pageNumber, limit, entity, username, from, to, label, action, ZoneId.systemDefault());
+  }
+
+  /**
+   * Creates a filter context from request parameters, interpreting dates without time in the given zone.
+   */
+  @SuppressWarnings("java:S107") // Big constructor because of many filter options
+  public AuditLogFilterContext(int pageNumber, int limit, String entity, String username, String from, String to, String label, String action, ZoneId zone) {
     this.pageNumber = pageNumber;
     this.limit = limit;
     this.entity = entity;
     this.username = username;
     if (from != null) {
-      this.from = Date.valueOf(from);
+      this.from = parseLowerBound(from, zone);
     }
     if (to != null) {
-      // Add one day to include the whole day instead of ending at 00:00:00 of the selected day
-      this.to = new Date(Instant.ofEpochMilli(Date.valueOf(to).getTime()).plus(1, ChronoUnit.DAYS).toEpochMilli());
+      this.to = parseUpperBound(to, zone);
     }
     this.label = label;
     this.action = action;
   }
 
-  public boolean hasContentFilter() {
-    return entity != null || username != null || from != null || to != null || label != null || action != null;
+  /**
+   * Parses the inclusive lower time bound. A date is the start of this day in the given zone.
+   */
+  static Instant parseLowerBound(String value, ZoneId zone) {
+    if (isDate(value)) {
+      return LocalDate.parse(value).atStartOfDay(zone).toInstant();
+    }
+    return OffsetDateTime.parse(value).toInstant();
+  }
+
+  /**
+   * Parses the exclusive upper time bound. A date is the start of the next day in the given zone,
+   * so that the whole day is included. A timestamp is used as it is.
+   */
+  static Instant parseUpperBound(String value, ZoneId zone) {
+    if (isDate(value)) {
+      return LocalDate.parse(value).plusDays(1).atStartOfDay(zone).toInstant();
+    }
+    return OffsetDateTime.parse(value).toInstant();
+  }
+
+  private static boolean isDate(String value) {
+    return value.indexOf('T') < 0;
+  }
+
+  /**
+   * Returns the number of entries to read for the page, see {@link #isLookAhead()}.
+   */
+  public int getReadLimit() {
+    return lookAhead ? limit + 1 : limit;
+  }
+
+  public boolean hasCursor() {
+    return beforeId != null || afterId != null;
   }
 }
 
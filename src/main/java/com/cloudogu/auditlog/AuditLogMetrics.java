@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of the write and the query path of the audit log, which are published with the {@link MeterRegistry} of
+ * SCM-Manager.
+ */
+@Singleton
+class AuditLogMetrics {
+
+  private static final String PREFIX = "scm.auditlog.";
+  private static final String NO_LABEL = "none";
+
+  private final MeterRegistry registry;
+  private final Counter droppedEntries;
+  private final Counter spilledEntries;
+  private final Counter failedEntries;
+  private final Timer batchTimer;
+  private final Timer exportWaitTimer;
+
+  @Inject
+  AuditLogMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    this.droppedEntries = Counter.builder(PREFIX + "entries.dropped")
+      .description("Entries dropped, because the queue was full")
+      .register(registry);
+    this.spilledEntries = Counter.builder(PREFIX + "entries.spilled")
+      .description("Entries written to the overflow file, because the queue was full")
+      .register(registry);
+    this.failedEntries = Counter.builder(PREFIX + "entries.failed")
+      .description("Entries, which could not be written to the database")
+      .register(registry);
+    this.batchTimer = Timer.builder(PREFIX + "write.batch")
+      .description("Time to write a batch of entries to the database")
+      .register(registry);
+    this.exportWaitTimer = Timer.builder(PREFIX + "export.wait")
+      .description("Time an export waited for other exports to finish")
+      .register(registry);
+  }
+
+  /**
+   * Returns metrics, which are not published anywhere.
+   */
+  static AuditLogMetrics unpublished() {
+    return new AuditLogMetrics(new CompositeMeterRegistry());
+  }
+
+  /**
+   * Publishes the queue depth, the throughput and the latency of a stage of the write path.
+   */
+  void registerStage(String stage, StageMetrics metrics) {
+    Tags tags = Tags.of("stage", stage);
+    Gauge.builder(PREFIX + "queue.depth", metrics, StageMetrics::getQueueDepth)
+      .description("Entries waiting in the stage")
+      .tags(tags)
+      .register(registry);
+    FunctionCounter.builder(PREFIX + "queue.processed", metrics, StageMetrics::getProcessed)
+      .description("Entries processed by the stage")
+      .tags(tags)
+      .register(registry);
+    TimeGauge.builder(PREFIX + "queue.latency.avg", metrics, TimeUnit.NANOSECONDS, m -> m.getAverageLatency().toNanos())
+      .description("Average time from queueing an entry until the stage has finished it")
+      .tags(tags)
+      .register(registry);
+    TimeGauge.builder(PREFIX + "queue.latency.max", metrics, TimeUnit.NANOSECONDS, m -> m.getMaxLatency().toNanos())
+      .description("Maximum time from queueing an entry until the stage has finished it")
+      .tags(tags)
+      .register(registry);
+  }
+
+  /**
+   * Records the time used to create the diff of an entry.
+   */
+  void recordDiff(String action, String[] labels, long nanos) {
+    Timer.builder(PREFIX + "diff")
+      .description("Time to create the diff of an entry")
+      .tags("action", action, "label", primaryLabel(labels))
+      .register(registry)
+      .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  void recordBatch(long nanos) {
+    batchTimer.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  void entryWritten(PendingEntry entry) {
+    Counter.builder(PREFIX + "entries.written")
+      .description("Entries written to the database")
+      .tags("action", entry.getAction(), "label", primaryLabel(entry.getLabels()))
+      .register(registry)
+      .increment();
+  }
+
+  void entryFailed() {
+    failedEntries.increment();
+  }
+
+  void entryDropped() {
+    droppedEntries.increment();
+  }
+
+  void entrySpilled() {
+    spilledEntries.increment();
+  }
+
+  /**
+   * Records the time waited for a connection of the given pool of the database.
+   */
+  void recordConnectionWait(String pool, long nanos) {
+    Timer.builder(PREFIX + "connection.wait")
+      .description("Time waited for a database connection")
+      .tags("pool", pool)
+      .register(registry)
+      .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Records the time an export waited, because the maximum number of concurrent exports was reached.
+   */
+  void recordExportWait(long nanos) {
+    exportWaitTimer.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  Timer.Sample startQuery() {
+    return Timer.start(registry);
+  }
+
+  /**
+   * Records the time of a query of the audit log, e.g. {@code entries}, {@code count} or {@code labels}.
+   */
+  void stopQuery(Timer.Sample sample, String query) {
+    sample.stop(
+      Timer.builder(PREFIX + "query")
+        .description("Time to query the audit log")
+        .tags("query", query)
+        .register(registry)
+    );
+  }
+
+  private static String primaryLabel(String[] labels) {
+    return labels.length > 0 ? labels[0] : NO_LABEL;
+  }
+}
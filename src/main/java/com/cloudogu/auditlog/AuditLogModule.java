@@ -25,6 +25,10 @@ import jakarta.inject.Singleton;
 public class AuditLogModule extends AbstractModule {
   @Override
   protected void configure() {
+    // the writer, the service and the jobs have to share one database with one pool and one run of the migrations
+    bind(AuditLogDatabase.class).in(Singleton.class);
+    bind(AuditLogWriter.class).in(Singleton.class);
     bind(AuditLogService.class).to(DefaultAuditLogService.class).in(Singleton.class);
+    bind(AuditLogStore.class).toProvider(AuditLogStoreProvider.class).in(Singleton.class);
   }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.With;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A page of entries together with the total number of matching entries and all labels, as shown by the audit log view.
+ */
+@Getter
+@AllArgsConstructor
+public class AuditLogPage {
+  private final List<LogEntry> entries;
+  /**
+   * The number of all matching entries or {@code null}, if they have not been counted.
+   */
+  private final Integer totalEntries;
+  private final Set<String> labels;
+  /**
+   * {@code true}, if there is a further page in the direction of the query, which is the next older page
+   * or the next newer page for a query with {@link AuditLogFilterContext#getAfterId()}.
+   */
+  private final boolean hasMore;
+  /**
+   * {@code false}, if matching entries may be missing, because existing entries are still migrated in the background
+   * (see {@link AuditLogStore#isComplete(AuditLogFilterContext)}).
+   */
+  @With
+  private final boolean complete;
+
+  /**
+   * Creates the page of the read entries. If the entries have been read with
+   * {@link AuditLogFilterContext#isLookAhead()}, the additional entry is removed.
+   */
+  static AuditLogPage of(AuditLogFilterContext filterContext, List<LogEntry> entries, Integer totalEntries, Set<String> labels) {
+    int limit = filterContext.getLimit();
+    if (filterContext.isLookAhead()) {
+      if (entries.size() <= limit) {
+        return new AuditLogPage(entries, totalEntries, labels, false, true);
+      }
+      // the additional entry belongs to the following page, which is the newer one when reading after a cursor
+      List<LogEntry> page = filterContext.getAfterId() != null ? entries.subList(1, limit + 1) : entries.subList(0, limit);
+      return new AuditLogPage(page, totalEntries, labels, true, true);
+    }
+    boolean hasMore;
+    // without the additional entry, a full page may be followed by an empty one; the resource therefore reads
+    // all pages of the cursor paging with look-ahead
+    if (totalEntries == null || filterContext.hasCursor()) {
+      hasMore = entries.size() >= limit;
+    } else {
+      hasMore = (long) filterContext.getPageNumber() * limit < totalEntries;
+    }
+    return new AuditLogPage(entries, totalEntries, labels, hasMore, true);
+  }
+}
@@ -16,11 +16,14 @@
 
 package com.cloudogu.auditlog;
 
+import com.damnhandy.uri.template.UriTemplate;
+import com.google.common.base.Strings;
 import de.otto.edison.hal.Links;
 import de.otto.edison.hal.paging.NumberedPaging;
 import de.otto.edison.hal.paging.PagingRel;
 import io.swagger.v3.oas.annotations.OpenAPIDefinition;
 import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
@@ -34,6 +37,7 @@ import sonia.scm.web.VndMediaType;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Provider;
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.DefaultValue;
 import jakarta.ws.rs.GET;
 import jakarta.ws.rs.Path;
@@ -45,11 +49,15 @@ import jakarta.ws.rs.core.StreamingOutput;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.damnhandy.uri.template.UriTemplate.fromTemplate;
 import static de.otto.edison.hal.Embedded.embeddedBuilder;
+import static de.otto.edison.hal.Link.link;
 import static de.otto.edison.hal.Links.linkingTo;
 import static de.otto.edison.hal.paging.NumberedPaging.oneBasedNumberedPaging;
 import static java.util.stream.Collectors.toList;
@@ -60,6 +68,8 @@ import static java.util.stream.Collectors.toList;
 })
 public class AuditLogResource {
 
+  private static final String CURSOR_PAGING = "cursor";
+
   private final AuditLogService auditLogService;
   private final Provider<ScmPathInfoStore> scmPathInfoStoreProvider;
 
@@ -97,8 +107,11 @@ public class AuditLogResource {
                                              @QueryParam("from") String from,
                                              @QueryParam("to") String to,
                                              @QueryParam("label") String label,
-                                             @QueryParam("action") String action
+                                             @QueryParam("action") String action,
+                                             @Parameter(description = "Full text query, all terms have to be found in the entry")
+                                             @QueryParam("q") String query
   ) {
+    AuditLogFilterContext filterContext = createFilterContext(page, limit, entity, username, from, to, label, action, query);
     return output -> {
       try (PrintWriter out = new PrintWriter(output)) {
         CSVFormat csvFormat = CSVFormat.DEFAULT.builder()
@@ -106,15 +119,13 @@ public class AuditLogResource {
           .build();
         CSVPrinter csvPrinter = new CSVPrinter(out, csvFormat);
         ZoneId systemDefaultZone = ZoneId.systemDefault();
-        auditLogService.getEntries(new AuditLogFilterContext(page, limit, entity, username, from, to, label, action))
-          .forEach(e -> {
-              try {
-                csvPrinter.printRecord(e.getTimestamp().atZone(systemDefaultZone), e.getUser(), e.getAction(), e.getEntity(), e.getEntry().replace("\n", " "));
-              } catch (IOException ex) {
-                throw new AuditLogException("Export as csv failed ", ex);
-              }
-            }
-          );
+        auditLogService.streamEntries(filterContext, e -> {
+          try {
+            csvPrinter.printRecord(e.getTimestamp().atZone(systemDefaultZone), e.getUser(), e.getAction(), e.getEntity(), e.getEntry().replace("\n", " "));
+          } catch (IOException ex) {
+            throw new AuditLogException("Export as csv failed ", ex);
+          }
+        });
       }
     };
   }
@@ -147,12 +158,15 @@ public class AuditLogResource {
                             @QueryParam("from") String from,
                             @QueryParam("to") String to,
                             @QueryParam("label") String label,
-                            @QueryParam("action") String action
+                            @QueryParam("action") String action,
+                            @Parameter(description = "Full text query, all terms have to be found in the entry")
+                            @QueryParam("q") String query
   ) {
+    AuditLogFilterContext filterContext = createFilterContext(page, limit, entity, username, from, to, label, action, query);
     return output -> {
       try (PrintWriter out = new PrintWriter(output)) {
-        auditLogService.getEntries(new AuditLogFilterContext(page, limit, entity, username, from, to, label, action))
-          .forEach(e -> out.println(e.getEntry()));
+        auditLogService.streamEntries(filterContext,
+          e -> out.println(e.getEntry()));
       }
     };
   }
@@ -185,28 +199,80 @@ public class AuditLogResource {
                                        @QueryParam("from") String from,
                                        @QueryParam("to") String to,
                                        @QueryParam("label") String label,
-                                       @QueryParam("action") String action
+                                       @QueryParam("action") String action,
+                                       @Parameter(description = "Full text query, all terms have to be found in the entry")
+                                       @QueryParam("q") String query,
+                                       @Parameter(description = "Use 'cursor' for seek based paging with next and prev links instead of page numbers")
+                                       @QueryParam("paging") String paging,
+                                       @Parameter(description = "Opaque cursor taken from the next or prev link")
+                                       @QueryParam("cursor") String cursor,
+                                       @Parameter(description = "Use 'false' to skip counting the entries. The response contains hasMore, but no pageTotal and no last link")
+                                       @DefaultValue("true") @QueryParam("total") boolean total
   ) {
-    AuditLogFilterContext filterContext = new AuditLogFilterContext(page, limit, entity, username, from, to, label, action);
-    List<LogEntryDto> entries = auditLogService.getEntries(filterContext)
+    AuditLogFilterContext filterContext = createFilterContext(page, limit, entity, username, from, to, label, action, query);
+    boolean cursorPaging = CURSOR_PAGING.equals(paging) || !Strings.isNullOrEmpty(cursor);
+    filterContext.setCountEntries(total);
+    // the total number of entries tells nothing about the pages around a cursor, so whether there is a
+    // further page is always decided by an additional entry
+    filterContext.setLookAhead(!total || cursorPaging);
+    if (!Strings.isNullOrEmpty(cursor)) {
+      PageCursor.decode(cursor).applyTo(filterContext);
+    }
+    // the entries, their total number and the labels are independent of each other and may be queried concurrently
+    AuditLogPage auditLogPage = auditLogService.getPage(filterContext);
+    List<LogEntry> logEntries = auditLogPage.getEntries();
+    List<LogEntryDto> entries = logEntries
       .stream()
       .map(LogEntryDto::from)
       .collect(toList());
-    return Response.ok().entity(createDtoWithPagination(filterContext, entries)).build();
+    Integer totalEntries = auditLogPage.getTotalEntries();
+    Links links;
+    if (cursorPaging) {
+      Map<String, String> filters = new LinkedHashMap<>();
+      filters.put("entity", entity);
+      filters.put("username", username);
+      filters.put("from", from);
+      filters.put("to", to);
+      filters.put("label", label);
+      filters.put("action", action);
+      filters.put("q", query);
+      filters.put("total", total ? null : "false");
+      links = createCursorLinks(filterContext, logEntries, auditLogPage.isHasMore(), cursor, filters);
+    } else if (totalEntries == null) {
+      links = createLinks(oneBasedNumberedPaging(filterContext.getPageNumber(), filterContext.getLimit(), auditLogPage.isHasMore()), filterContext);
+    } else {
+      links = createLinks(oneBasedNumberedPaging(filterContext.getPageNumber(), filterContext.getLimit(), totalEntries), filterContext);
+    }
+    return Response.ok().entity(createDtoWithPagination(filterContext, entries, links, auditLogPage)).build();
+  }
+
+  private static AuditLogFilterContext createFilterContext(int page, int limit, String entity, String username, String from, String to, String label, String action, String query) {
+    AuditLogFilterContext filterContext;
+    try {
+      filterContext = new AuditLogFilterContext(page, limit, entity, username, from, to, label, action);
+    } catch (DateTimeParseException e) {
+      throw new BadRequestException("invalid date " + e.getParsedString(), e);
+    }
+    if (!Strings.isNullOrEmpty(query)) {
+      filterContext.setQuery(query);
+    }
+    return filterContext;
   }
 
-  private AuditLogDto createDtoWithPagination(AuditLogFilterContext filterContext, List<LogEntryDto> entries) {
-    int totalEntries = auditLogService.getTotalEntries(filterContext);
-    NumberedPaging paging = oneBasedNumberedPaging(filterContext.getPageNumber(), filterContext.getLimit(), totalEntries);
+  private AuditLogDto createDtoWithPagination(AuditLogFilterContext filterContext, List<LogEntryDto> entries, Links links, AuditLogPage auditLogPage) {
     AuditLogDto auditLogDto = new AuditLogDto(
-      createLinks(paging, filterContext),
+      links,
       embeddedBuilder()
         .with("entries", entries)
-        .with("labels", new LabelsDto(auditLogService.getLabels()))
+        .with("labels", new LabelsDto(auditLogPage.getLabels()))
         .build()
     );
     auditLogDto.setPage(filterContext.getPageNumber() - 1);
-    auditLogDto.setPageTotal(computePageTotal(filterContext.getLimit(), totalEntries));
+    if (auditLogPage.getTotalEntries() != null) {
+      auditLogDto.setPageTotal(computePageTotal(filterContext.getLimit(), auditLogPage.getTotalEntries()));
+    }
+    auditLogDto.setHasMore(auditLogPage.isHasMore());
+    auditLogDto.setComplete(auditLogPage.isComplete());
     return auditLogDto;
   }
 
@@ -226,10 +292,49 @@ public class AuditLogResource {
       .parameters(String.valueOf(filterContext.getPageNumber() - 1), String.valueOf(filterContext.getLimit()), "")
       .href();
 
+    UriTemplate template = fromTemplate(selfLink + "{?pageNumber,pageSize,total}");
+    if (!filterContext.isCountEntries()) {
+      template.set("total", "false");
+    }
     Links.Builder linksBuilder = linkingTo()
-      .with(page.links(
-        fromTemplate(selfLink + "{?pageNumber,pageSize}"),
-        EnumSet.allOf(PagingRel.class)));
+      .with(page.links(template, EnumSet.allOf(PagingRel.class)));
     return linksBuilder.build();
   }
+
+  private Links createCursorLinks(AuditLogFilterContext filterContext, List<LogEntry> entries, boolean hasMore, String cursor, Map<String, String> filters) {
+    LinkBuilder linkBuilder = new LinkBuilder(scmPathInfoStoreProvider.get().get(), AuditLogResource.class);
+    String baseLink = linkBuilder.method("getPaginatedAuditLog").parameters().href();
+
+    Links.Builder linksBuilder = linkingTo()
+      .self(createCursorLink(baseLink, filterContext, cursor, filters))
+      .single(link("first", createCursorLink(baseLink, filterContext, null, filters)));
+    if (!entries.isEmpty()) {
+      // after a cursor there are always older entries, at least the one of the cursor
+      boolean newer = filterContext.getAfterId() != null;
+      if (newer || hasMore) {
+        String next = PageCursor.before(entries.get(entries.size() - 1).getId()).encode();
+        linksBuilder.single(link("next", createCursorLink(baseLink, filterContext, next, filters)));
+      }
+      if (filterContext.hasCursor() && (!newer || hasMore)) {
+        String prev = PageCursor.after(entries.get(0).getId()).encode();
+        linksBuilder.single(link("prev", createCursorLink(baseLink, filterContext, prev, filters)));
+      }
+    }
+    return linksBuilder.build();
+  }
+
+  private String createCursorLink(String baseLink, AuditLogFilterContext filterContext, String cursor, Map<String, String> filters) {
+    UriTemplate template = fromTemplate(baseLink + "{?paging,cursor,pageSize,entity,username,from,to,label,action,q,total}")
+      .set("paging", CURSOR_PAGING)
+      .set("pageSize", filterContext.getLimit());
+    if (cursor != null) {
+      template.set("cursor", cursor);
+    }
+    filters.forEach((name, value) -> {
+      if (value != null) {
+        template.set(name, value);
+      }
+    });
+    return template.expand();
+  }
 }
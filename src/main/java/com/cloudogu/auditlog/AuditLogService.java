@@ -18,12 +18,32 @@ package com.cloudogu.auditlog;
 
 import sonia.scm.auditlog.Auditor;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public interface AuditLogService extends Auditor {
   Collection<LogEntry> getEntries(AuditLogFilterContext filterContext);
+
+  /**
+   * Passes the entries matching the filter one by one to the consumer, without loading the whole result into memory.
+   */
+  void streamEntries(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer);
+
   int getTotalEntries(AuditLogFilterContext filterContext);
 
   Set<String> getLabels();
+
+  /**
+   * Returns the page of entries, the total number of matching entries and the labels at once. Implementations may
+   * run the independent queries concurrently. Without {@link AuditLogFilterContext#isCountEntries()} the entries
+   * are not counted.
+   */
+  default AuditLogPage getPage(AuditLogFilterContext filterContext) {
+    List<LogEntry> entries = new ArrayList<>(getEntries(filterContext));
+    Integer totalEntries = filterContext.isCountEntries() ? getTotalEntries(filterContext) : null;
+    return AuditLogPage.of(filterContext, entries, totalEntries, getLabels());
+  }
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package com.cloudogu.auditlog;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import sonia.scm.plugin.Extension;
+
+/**
+ * Shuts the audit log down in the right order: the {@link DefaultAuditLogService} finishes the diffs of the entries
+ * in progress and stops its query workers, then the {@link AuditLogWriter} writes the queued entries, while
+ * the {@link Journal} still acknowledges the written batches and the {@link AuditLogStore} is still open. The order
+ * of the listeners themselves is undefined, so this is the only listener, which closes any of them.
+ */
+@Extension
+@Singleton
+public class AuditLogShutdown implements ServletContextListener {
+
+  private final DefaultAuditLogService service;
+  private final AuditLogWriter writer;
+  private final Journal journal;
+  private final AuditLogStore store;
+
+  @Inject
+  AuditLogShutdown(DefaultAuditLogService service, AuditLogWriter writer, Journal journal, AuditLogStore store) {
+    this.service = service;
+    this.writer = writer;
+    this.journal = journal;
+    this.store = store;
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent servletContextEvent) {
+    // nothing to do
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent servletContextEvent) {
+    service.close();
+    writer.close();
+    journal.close();
+    store.close();
+  }
+}
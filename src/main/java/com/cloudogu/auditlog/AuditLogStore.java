@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package com.cloudogu.auditlog;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Storage engine of the audit log, selected with {@link AuditLogConfiguration#getStore()}.
+ * Batches are only written by the single thread of the {@link AuditLogWriter}, but may be read concurrently.
+ * Failures are reported with an {@link AuditLogException}.
+ */
+interface AuditLogStore {
+
+  /**
+   * Writes the batch of entries at once. Either all or none of the entries are written.
+   */
+  void write(List<PendingEntry> batch);
+
+  /**
+   * Passes the page of the context to the consumer, the newest entry first.
+   */
+  void read(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer);
+
+  /**
+   * Like {@link #read(AuditLogFilterContext, Consumer)}, but for large results like exports, which should not be
+   * kept in memory as a whole.
+   */
+  void stream(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer);
+
+  /**
+   * Counts all entries, which match the filters of the context regardless of the page.
+   */
+  long count(AuditLogFilterContext filterContext);
+
+  /**
+   * Returns {@code false}, if entries matching the context may be missing from the results, because existing
+   * entries are still migrated in the background.
+   */
+  default boolean isComplete(AuditLogFilterContext filterContext) {
+    return true;
+  }
+
+  /**
+   * Returns all labels of the stored entries.
+   */
+  Set<String> getLabels();
+
+  /**
+   * Returns {@code true}, if the store has been shut down. Entries, whose write failed because of this, are kept
+   * in the {@link Journal} and written again on the next start.
+   */
+  boolean isClosed();
+
+  /**
+   * Shuts the store down. Called once on shutdown, after the {@link AuditLogWriter} has stopped.
+   */
+  void close();
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Provider;
+
+/**
+ * Provides the {@link AuditLogStore} selected by {@link AuditLogConfiguration#getStore()}.
+ * The other store is never created.
+ */
+class AuditLogStoreProvider implements Provider<AuditLogStore> {
+
+  private final AuditLogConfiguration configuration;
+  private final Provider<JdbcAuditLogStore> databaseStore;
+  private final Provider<FileAuditLogStore> fileStore;
+
+  @Inject
+  AuditLogStoreProvider(AuditLogConfiguration configuration, Provider<JdbcAuditLogStore> databaseStore, Provider<FileAuditLogStore> fileStore) {
+    this.configuration = configuration;
+    this.databaseStore = databaseStore;
+    this.fileStore = fileStore;
+  }
+
+  @Override
+  public AuditLogStore get() {
+    if (configuration.getStore() == AuditLogConfiguration.StoreType.FILE) {
+      return fileStore.get();
+    }
+    return databaseStore.get();
+  }
+}
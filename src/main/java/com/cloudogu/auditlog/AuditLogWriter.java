@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes pending entries in batches (group commit). Entries are collected until either the configured batch size
+ * is reached or the linger time has passed. Each batch is written to the {@link AuditLogStore} at once.
+ * Queued entries are kept in the {@link Journal} until their batch has been written, entries left over from the
+ * last run are written first.
+ */
+@Slf4j
+@Singleton
+class AuditLogWriter {
+
+  private static final long CLOSE_TIMEOUT_SECONDS = 30;
+  private static final Runnable NOTHING = () -> {};
+
+  private final AuditLogStore store;
+  private final Executor executor;
+  private final Journal journal;
+  private final AuditLogMetrics auditLogMetrics;
+  private final int batchSize;
+  private final long lingerNanos;
+
+  private final BlockingQueue<QueuedEntry> queue = new LinkedBlockingQueue<>();
+  private final StageMetrics metrics = new StageMetrics();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+
+  private volatile boolean closed;
+
+  @Inject
+  AuditLogWriter(AuditLogStore store, AuditLogConfiguration configuration, Journal journal, AuditLogMetrics auditLogMetrics) {
+    this(
+      store,
+      configuration,
+      // A single writer thread serializes the write requests, so the stores need no synchronization for writes
+      Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder()
+          .setNameFormat("AuditLogWriter-%d")
+          .build()
+      ),
+      journal,
+      auditLogMetrics
+    );
+  }
+
+  @VisibleForTesting
+  AuditLogWriter(AuditLogStore store, AuditLogConfiguration configuration, Executor executor) {
+    this(store, configuration, executor, Journal.disabled(), AuditLogMetrics.unpublished());
+  }
+
+  @VisibleForTesting
+  AuditLogWriter(AuditLogStore store, AuditLogConfiguration configuration, Executor executor, Journal journal, AuditLogMetrics auditLogMetrics) {
+    this.store = store;
+    this.executor = executor;
+    this.journal = journal;
+    this.auditLogMetrics = auditLogMetrics;
+    this.batchSize = Math.max(1, configuration.getWriterBatchSize());
+    this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, configuration.getWriterLingerMillis()));
+    auditLogMetrics.registerStage("writer", metrics);
+    List<PendingEntry> recovered = journal.recover();
+    if (!recovered.isEmpty()) {
+      for (PendingEntry entry : recovered) {
+        metrics.queued();
+        queue.add(new QueuedEntry(entry, NOTHING));
+      }
+      schedule();
+    }
+  }
+
+  void append(PendingEntry entry) {
+    append(entry, NOTHING);
+  }
+
+  /**
+   * Appends the entry and calls {@code done} as soon as the entry has been written to the store, or the attempt
+   * has failed. If the writer has been closed, the entry is only kept in the journal and {@code done} is called
+   * right away.
+   */
+  void append(PendingEntry entry, Runnable done) {
+    // the journal and the queue must have the same order, because batches are acknowledged by their size
+    synchronized (queue) {
+      try {
+        journal.append(entry);
+      } catch (IOException e) {
+        log.warn("Could not append audit log entry to journal", e);
+      }
+      if (closed) {
+        done.run();
+        return;
+      }
+      metrics.queued();
+      queue.add(new QueuedEntry(entry, done));
+    }
+    schedule();
+  }
+
+  StageMetrics getMetrics() {
+    return metrics;
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      try {
+        executor.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        scheduled.set(false);
+        log.debug("audit log writer has been stopped, queued entries are written from the journal on the next start");
+      }
+    }
+  }
+
+  /**
+   * Writes the queued entries and stops the writer. Entries, which are appended after this, are only kept in the
+   * {@link Journal}.
+   */
+  void close() {
+    closed = true;
+    if (executor instanceof ExecutorService) {
+      ExecutorService executorService = (ExecutorService) executor;
+      executorService.shutdown();
+      try {
+        if (!executorService.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          log.warn("audit log writer did not stop within {} seconds, remaining entries are written on the next start", CLOSE_TIMEOUT_SECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void drain() {
+    try {
+      List<QueuedEntry> batch = new ArrayList<>(batchSize);
+      while (collectBatch(batch)) {
+        write(batch);
+        batch.clear();
+      }
+    } finally {
+      scheduled.set(false);
+      // entries may have been added after the last poll, but before the flag was reset
+      if (!queue.isEmpty()) {
+        schedule();
+      }
+    }
+  }
+
+  private boolean collectBatch(List<QueuedEntry> batch) {
+    queue.drainTo(batch, batchSize);
+    if (batch.isEmpty()) {
+      return false;
+    }
+    long deadline = System.nanoTime() + lingerNanos;
+    while (batch.size() < batchSize) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        break;
+      }
+      try {
+        QueuedEntry next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+        if (next == null) {
+          break;
+        }
+        batch.add(next);
+        queue.drainTo(batch, batchSize - batch.size());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return true;
+  }
+
+  private void write(List<QueuedEntry> queued) {
+    List<PendingEntry> batch = new ArrayList<>(queued.size());
+    queued.forEach(entry -> batch.add(entry.entry));
+    try {
+      writeBatch(batch);
+    } catch (AuditLogException e) {
+      if (batch.size() == 1) {
+        logFailure(batch.get(0), e);
+      } else {
+        log.warn("Could not write batch of {} audit log entries, falling back to single writes", batch.size(), e);
+        writeOneByOne(batch);
+      }
+    } finally {
+      for (QueuedEntry entry : queued) {
+        metrics.finished(entry.entry.getQueuedNanos());
+        entry.done.run();
+      }
+      // failed entries have been logged, only entries of a shut down store are written again on the next start
+      if (!store.isClosed()) {
+        journal.acknowledge(batch.size());
+      }
+    }
+  }
+
+  private void writeOneByOne(List<PendingEntry> batch) {
+    for (PendingEntry entry : batch) {
+      try {
+        writeBatch(List.of(entry));
+      } catch (AuditLogException e) {
+        logFailure(entry, e);
+      }
+    }
+  }
+
+  private void logFailure(PendingEntry entry, Exception e) {
+    auditLogMetrics.entryFailed();
+    log.error("Could not create new entry for audit log for entity '{}' with action {}: {}", entry.getEntity(), entry.getAction(), entry.getEntry(), e);
+  }
+
+  private void writeBatch(List<PendingEntry> batch) {
+    long start = System.nanoTime();
+    store.write(batch);
+    auditLogMetrics.recordBatch(System.nanoTime() - start);
+    batch.forEach(auditLogMetrics::entryWritten);
+  }
+
+  @AllArgsConstructor
+  private static class QueuedEntry {
+    private final PendingEntry entry;
+    private final Runnable done;
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import jakarta.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import sonia.scm.auditlog.AuditEntry;
+import sonia.scm.xml.XmlCipherStringAdapter;
+import sonia.scm.xml.XmlEncryptionAdapter;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Audit relevant metadata of a class, which is resolved from the {@link AuditEntry} annotation and the fields
+ * of the class only once per class. The masking decision for a property is computed on first use and cached
+ * as well, so that the diff of an entry does not need any reflection.
+ */
+class AuditMetadata {
+
+  private static final List<String> AUTOMASKED_FIELD_NAMES = List.of(
+    "password",
+    "pw",
+    "pwd",
+    "token",
+    "secret",
+    "key",
+    "private"
+  );
+
+  private static final ClassValue<AuditMetadata> CACHE = new ClassValue<>() {
+    @Override
+    protected AuditMetadata computeValue(Class<?> type) {
+      return new AuditMetadata(type);
+    }
+  };
+
+  /**
+   * Metadata for changes without an affected object.
+   */
+  static final AuditMetadata DEFAULT = new AuditMetadata(null);
+
+  private final String[] labels;
+  private final Set<String> maskedFields;
+  private final Set<String> ignoredFields;
+  private final boolean autoMask;
+  private final boolean ignore;
+  private final Set<String> encryptedFields;
+  private final Map<String, Boolean> maskedProperties = new ConcurrentHashMap<>();
+
+  private AuditMetadata(Class<?> type) {
+    AuditEntry annotation = type != null ? type.getAnnotation(AuditEntry.class) : null;
+    if (annotation != null) {
+      labels = annotation.labels();
+      // unlike Set.of, duplicate names are accepted
+      maskedFields = Set.copyOf(Arrays.asList(annotation.maskedFields()));
+      ignoredFields = Set.copyOf(Arrays.asList(annotation.ignoredFields()));
+      autoMask = annotation.autoMask();
+      ignore = annotation.ignore();
+    } else {
+      labels = new String[0];
+      maskedFields = Set.of();
+      ignoredFields = Set.of();
+      autoMask = true;
+      ignore = false;
+    }
+    encryptedFields = findEncryptedFields(type);
+  }
+
+  static AuditMetadata of(Class<?> type) {
+    return CACHE.get(type);
+  }
+
+  /**
+   * Returns the labels of the {@link AuditEntry} annotation. The returned array must not be modified.
+   */
+  String[] getLabels() {
+    return labels;
+  }
+
+  /**
+   * Returns {@code true}, if changes of objects of this class are not audited at all.
+   */
+  boolean isIgnore() {
+    return ignore;
+  }
+
+  Set<String> getIgnoredFields() {
+    return ignoredFields;
+  }
+
+  boolean isIgnored(String property) {
+    return ignoredFields.contains(property);
+  }
+
+  /**
+   * Returns {@code true}, if the value of the property must not be written to the audit log, because it is
+   * configured as masked field, it is encrypted or its name looks like a secret.
+   */
+  boolean isMasked(String property) {
+    return maskedProperties.computeIfAbsent(property, this::computeMasked);
+  }
+
+  private boolean computeMasked(String property) {
+    return maskedFields.contains(property) || encryptedFields.contains(property) || isAutoMasked(property);
+  }
+
+  private boolean isAutoMasked(String property) {
+    if (!autoMask) {
+      return false;
+    }
+    String name = property.toLowerCase(Locale.ENGLISH);
+    return AUTOMASKED_FIELD_NAMES.stream().anyMatch(name::contains);
+  }
+
+  private static Set<String> findEncryptedFields(Class<?> type) {
+    Set<String> fields = new HashSet<>();
+    Set<String> seen = new HashSet<>();
+    for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+      for (Field field : current.getDeclaredFields()) {
+        // a field of a subclass hides the fields of its super classes with the same name
+        if (seen.add(field.getName()) && isEncrypted(field)) {
+          fields.add(field.getName());
+        }
+      }
+    }
+    return Set.copyOf(fields);
+  }
+
+  private static boolean isEncrypted(Field field) {
+    XmlJavaTypeAdapter adapter = field.getAnnotation(XmlJavaTypeAdapter.class);
+    return adapter != null
+      && (adapter.value().isAssignableFrom(XmlCipherStringAdapter.class) || adapter.value().isAssignableFrom(XmlEncryptionAdapter.class));
+  }
+}
@@ -19,6 +19,7 @@ package com.cloudogu.auditlog;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.shiro.SecurityUtils;
 import org.apache.shiro.UnavailableSecurityManagerException;
@@ -27,91 +28,280 @@ import sonia.scm.plugin.Extension;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.sql.Timestamp;
+import java.io.IOException;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import static com.cloudogu.auditlog.EntryContextResolver.resolveAction;
 import static com.cloudogu.auditlog.EntryContextResolver.resolveEntityName;
 import static com.cloudogu.auditlog.EntryContextResolver.resolveLabels;
-import static com.cloudogu.auditlog.Filters.resolveAppliedFilters;
-import static com.cloudogu.auditlog.Filters.setFilterValues;
-import static com.cloudogu.auditlog.SqlQueryGenerator.createCountQuery;
-import static com.cloudogu.auditlog.SqlQueryGenerator.createEntriesQuery;
-import static com.cloudogu.auditlog.SqlQueryGenerator.createLabelsQuery;
 
 @Slf4j
 @Extension
 @Singleton
 public class DefaultAuditLogService implements AuditLogService {
 
-  private final AuditLogDatabase database;
+  private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+  private final AuditLogStore store;
   private final Executor executor;
+  private final Executor queryExecutor;
+  private final AuditLogWriter writer;
   private final AuditEntryGenerator entryGenerator = new AuditEntryGenerator();
-
+  private final StageMetrics diffMetrics = new StageMetrics();
+  /**
+   * Entries in the order of {@link #createEntry(EntryCreationContext)}, whose diffs are being created.
+   */
+  private final Queue<CompletableFuture<PendingEntry>> entriesInProgress = new ArrayDeque<>();
+  /**
+   * Held while completed entries are handed to the writer, which keeps their order without blocking
+   * {@link #createEntry(EntryCreationContext)} on the IO of the journal.
+   */
+  private final Object appendLock = new Object();
+  /**
+   * Free places for new entries until they have been written, which limits the memory used by the objects of new
+   * entries and by the queue of the writer.
+   */
+  private final Semaphore queueCapacity;
+  private final Semaphore exports;
+  private final AuditLogConfiguration.OverflowPolicy overflowPolicy;
+  private final EntryOverflow overflow;
+  private final AuditLogMetrics metrics;
+  private final LongAdder droppedEntries = new LongAdder();
+  private final LongAdder spilledEntries = new LongAdder();
 
   @Inject
-  public DefaultAuditLogService(AuditLogDatabase database) {
+  public DefaultAuditLogService(AuditLogStore store, AuditLogWriter writer, AuditLogConfiguration configuration, EntryOverflow overflow, AuditLogMetrics metrics) {
     this(
-      database,
-      // Since h2 is single threaded, we use the executor to serialize the write requests
-      Executors.newSingleThreadExecutor(
+      store,
+      // diffs are created in parallel, only the writer is single threaded
+      Executors.newFixedThreadPool(
+        Math.max(1, configuration.getDiffWorkers()),
         new ThreadFactoryBuilder()
           .setNameFormat("AuditLogAsyncExecutor-%d")
           .build()
-      )
+      ),
+      // counts run next to the queries of the request threads, so that a page takes as long as the slower of both;
+      // if all workers are busy, the queue is short and further counts are rejected and run by the request thread
+      new ThreadPoolExecutor(
+        Math.max(1, configuration.getQueryWorkers()),
+        Math.max(1, configuration.getQueryWorkers()),
+        0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, configuration.getQueryWorkers())),
+        new ThreadFactoryBuilder()
+          .setNameFormat("AuditLogQuery-%d")
+          .setDaemon(true)
+          .build(),
+        new ThreadPoolExecutor.AbortPolicy()
+      ),
+      writer,
+      configuration,
+      overflow,
+      metrics
     );
   }
 
   @VisibleForTesting
-  @SuppressWarnings("java:S2115")
-    // We don't need a password here. This database contains no secrets.
-  DefaultAuditLogService(AuditLogDatabase database, Executor executor) {
-    this.database = database;
+  DefaultAuditLogService(AuditLogStore store, Executor executor, AuditLogWriter writer, AuditLogConfiguration configuration, EntryOverflow overflow, AuditLogMetrics metrics) {
+    this(store, executor, Runnable::run, writer, configuration, overflow, metrics);
+  }
+
+  @VisibleForTesting
+  DefaultAuditLogService(AuditLogStore store, Executor executor, Executor queryExecutor, AuditLogWriter writer, AuditLogConfiguration configuration, EntryOverflow overflow, AuditLogMetrics metrics) {
+    this.store = store;
     this.executor = executor;
+    this.queryExecutor = queryExecutor;
+    this.writer = writer;
+    this.queueCapacity = new Semaphore(Math.max(1, configuration.getQueueCapacity()));
+    // fair, so that a waiting export is not overtaken again and again
+    this.exports = new Semaphore(Math.max(1, configuration.getMaxConcurrentExports()), true);
+    this.overflowPolicy = configuration.getQueueOverflow();
+    this.overflow = overflow;
+    this.metrics = metrics;
+    metrics.registerStage("diff", diffMetrics);
   }
 
+  /**
+   * Creates the diff of the entry in the background. The diffs are created in parallel, but the entries are
+   * handed to the writer in the order of the calls, so that the ids of the entries follow their timestamps.
+   * If the queue is full, the configured {@link AuditLogConfiguration.OverflowPolicy} is applied. Spilled entries
+   * keep their timestamp, but get their id when they are replayed (see {@link EntryOverflow}).
+   */
   @Override
   public void createEntry(EntryCreationContext<?> context) {
     String username = getUsername();
-    executor.execute(() -> createDBEntry(username, context));
+    if (!queueCapacity.tryAcquire() && !handleOverflow(username, context)) {
+      return;
+    }
+    CompletableFuture<PendingEntry> pendingEntry = new CompletableFuture<>();
+    Instant timestamp;
+    synchronized (entriesInProgress) {
+      timestamp = Instant.now();
+      entriesInProgress.add(pendingEntry);
+    }
+    long queuedNanos = System.nanoTime();
+    diffMetrics.queued();
+    try {
+      executor.execute(() -> {
+        try {
+          pendingEntry.complete(createPendingEntry(username, timestamp, context));
+        } catch (RuntimeException e) {
+          log.error("Could not create audit log entry", e);
+          pendingEntry.complete(null);
+        } finally {
+          diffMetrics.finished(queuedNanos);
+          appendCompletedEntries();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the entry must not block the entries after it
+      log.warn("Could not create audit log entry, because the executor has been shut down", e);
+      pendingEntry.complete(null);
+      diffMetrics.finished(queuedNanos);
+      appendCompletedEntries();
+    }
+  }
+
+  private void appendCompletedEntries() {
+    synchronized (appendLock) {
+      while (true) {
+        CompletableFuture<PendingEntry> next;
+        synchronized (entriesInProgress) {
+          // an entry has to wait for all diffs of earlier calls, even if its own diff was finished first
+          if (entriesInProgress.isEmpty() || !entriesInProgress.peek().isDone()) {
+            return;
+          }
+          next = entriesInProgress.poll();
+        }
+        PendingEntry entry = next.join();
+        if (entry != null) {
+          // the place is kept until the entry has been written
+          writer.append(entry, queueCapacity::release);
+        } else {
+          queueCapacity.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies the overflow policy to an entry, which does not fit into the queue. Returns {@code true}, if the
+   * caller got a place in the queue after all.
+   */
+  private boolean handleOverflow(String username, EntryCreationContext<?> context) {
+    switch (overflowPolicy) {
+      case BLOCK:
+        try {
+          queueCapacity.acquire();
+          return true;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          drop();
+          return false;
+        }
+      case SPILL:
+        spill(username, context);
+        return false;
+      default:
+        drop();
+        return false;
+    }
+  }
+
+  private void spill(String username, EntryCreationContext<?> context) {
+    try {
+      // the diff is created right away, so that only the rendered entry is kept instead of the objects
+      PendingEntry entry = createPendingEntry(username, Instant.now(), context);
+      if (entry != null) {
+        overflow.spill(entry);
+        spilledEntries.increment();
+        metrics.entrySpilled();
+      }
+    } catch (IOException | RuntimeException e) {
+      log.error("Could not write audit log entry to overflow file, the entry is dropped", e);
+      drop();
+    }
+  }
+
+  private void drop() {
+    droppedEntries.increment();
+    metrics.entryDropped();
+    long dropped = droppedEntries.sum();
+    // log only every thousandth entry, to not flood the log during a burst
+    if (dropped % 1000 == 1) {
+      log.warn("audit log queue is full, {} entries have been dropped so far", dropped);
+    }
   }
 
-  private void createDBEntry(String username, EntryCreationContext<?> context) {
-    Instant timestamp = Instant.now();
+  /**
+   * Creates the diffs of the entries in progress and hands them to the writer, and stops counting in the background.
+   * Called on shutdown before the writer is closed (see {@link AuditLogShutdown}).
+   */
+  void close() {
+    if (queryExecutor instanceof ExecutorService) {
+      ((ExecutorService) queryExecutor).shutdownNow();
+    }
+    if (executor instanceof ExecutorService) {
+      ExecutorService executorService = (ExecutorService) executor;
+      executorService.shutdown();
+      try {
+        if (!executorService.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          log.warn("diffs of audit log entries were not finished within {} seconds", CLOSE_TIMEOUT_SECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  StageMetrics getDiffMetrics() {
+    return diffMetrics;
+  }
+
+  long getDroppedEntries() {
+    return droppedEntries.sum();
+  }
+
+  long getSpilledEntries() {
+    return spilledEntries.sum();
+  }
+
+  private PendingEntry createPendingEntry(String username, Instant timestamp, EntryCreationContext<?> context) {
     String entityName = resolveEntityName(context);
     String action = resolveAction(context);
     String[] labels = resolveLabels(context);
+    long start = System.nanoTime();
     String entry = entryGenerator.generate(context, timestamp, username, action, entityName, labels);
-    try (Connection connection = database.getConnection(); PreparedStatement statement = connection.prepareStatement(
-      "INSERT INTO AUDITLOG(TIMESTAMP_, ENTITY, USERNAME, ACTION_, ENTRY) VALUES (?, ?, ?, ?, ?)",
-      Statement.RETURN_GENERATED_KEYS)
-    ) {
-      statement.setTimestamp(1, new Timestamp(timestamp.toEpochMilli()));
-      statement.setString(2, entityName.toLowerCase());
-      statement.setString(3, !Strings.isNullOrEmpty(username) ? username.toLowerCase() : username);
-      statement.setString(4, action.toLowerCase());
-      if (!Strings.isNullOrEmpty(entry)) {
-        statement.setString(5, entry);
-        statement.executeUpdate();
-
-        statement.getGeneratedKeys().next();
-        createLabelsForNewEntry(statement.getGeneratedKeys().getInt(1), labels);
-      }
-    } catch (Exception e) {
-      log.error("Could not create new entry for audit log for entity '{}' with action {}: {}", entityName, action, entry, e);
+    metrics.recordDiff(action, labels, System.nanoTime() - start);
+    if (Strings.isNullOrEmpty(entry)) {
+      return null;
     }
+    return new PendingEntry(
+      timestamp,
+      entityName.toLowerCase(),
+      !Strings.isNullOrEmpty(username) ? username.toLowerCase() : username,
+      action.toLowerCase(),
+      entry,
+      Arrays.stream(labels).map(String::toLowerCase).toArray(String[]::new)
+    );
   }
 
   public Collection<LogEntry> getEntries(AuditLogFilterContext filterContext) {
@@ -121,49 +311,104 @@ public class DefaultAuditLogService implements AuditLogService {
 
   @VisibleForTesting
   List<LogEntry> getLogEntries(AuditLogFilterContext filterContext) {
-    List<Filters.AppliedFilter> appliedFilters = resolveAppliedFilters(filterContext);
-    String query = createEntriesQuery(filterContext, appliedFilters);
-    try (Connection connection = database.getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
-      setFilterValues(statement, appliedFilters);
-      ResultSet resultSet = statement.executeQuery();
-      List<LogEntry> entries = new ArrayList<>();
-      while (resultSet.next()) {
-        addSingleEntry(entries, resultSet);
+    List<LogEntry> entries = new ArrayList<>();
+    queryEntries(filterContext, entries::add, false);
+    return entries;
+  }
+
+  @Override
+  public void streamEntries(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer) {
+    PermissionChecker.checkReadAuditLog();
+    queryEntries(filterContext, consumer, true);
+  }
+
+  private void queryEntries(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer, boolean stream) {
+    Timer.Sample sample = metrics.startQuery();
+    try {
+      if (stream) {
+        stream(filterContext, consumer);
+      } else {
+        store.read(filterContext, consumer);
       }
-      return entries;
-    } catch (SQLException e) {
-      throw new AuditLogException("Failed to read audit log", e);
+    } finally {
+      metrics.stopQuery(sample, stream ? "stream" : "entries");
+    }
+  }
+
+  private void stream(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer) {
+    long start = System.nanoTime();
+    try {
+      exports.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AuditLogException("Interrupted while waiting for other exports", e);
+    } finally {
+      metrics.recordExportWait(System.nanoTime() - start);
+    }
+    try {
+      store.stream(filterContext, consumer);
+    } finally {
+      exports.release();
     }
   }
 
   @Override
   public int getTotalEntries(AuditLogFilterContext filterContext) {
     PermissionChecker.checkReadAuditLog();
-    List<Filters.AppliedFilter> appliedFilters = resolveAppliedFilters(filterContext);
-    String query = createCountQuery(filterContext, appliedFilters);
-    try (Connection connection = database.getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
-      setFilterValues(statement, appliedFilters);
-      ResultSet resultSet = statement.executeQuery();
-      resultSet.next();
-      return resultSet.getInt("total");
-    } catch (SQLException e) {
-      throw new AuditLogException("Failed to count audit log entries", e);
+    return count(filterContext);
+  }
+
+  private int count(AuditLogFilterContext filterContext) {
+    Timer.Sample sample = metrics.startQuery();
+    try {
+      return (int) Math.min(store.count(filterContext), Integer.MAX_VALUE);
+    } finally {
+      metrics.stopQuery(sample, "count");
     }
   }
 
+  /**
+   * Counts the entries with the query executor, while the page is read by the calling thread. The labels are
+   * cached by the stores, so they are read right away. Without {@link AuditLogFilterContext#isCountEntries()}
+   * nothing is counted.
+   */
   @Override
-  public Set<String> getLabels() {
-    try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
-      String query = createLabelsQuery();
-      ResultSet resultSet = statement.executeQuery(query);
+  public AuditLogPage getPage(AuditLogFilterContext filterContext) {
+    PermissionChecker.checkReadAuditLog();
+    if (!filterContext.isCountEntries()) {
+      return AuditLogPage.of(filterContext, getLogEntries(filterContext), null, getLabels())
+        .withComplete(store.isComplete(filterContext));
+    }
+    CompletableFuture<Integer> totalEntries;
+    try {
+      totalEntries = CompletableFuture.supplyAsync(() -> count(filterContext), queryExecutor);
+    } catch (RejectedExecutionException e) {
+      // all query workers are busy or shut down
+      totalEntries = CompletableFuture.completedFuture(count(filterContext));
+    }
+    List<LogEntry> entries = getLogEntries(filterContext);
+    return AuditLogPage.of(filterContext, entries, join(totalEntries), getLabels())
+      .withComplete(store.isComplete(filterContext));
+  }
 
-      Set<String> labels = new HashSet<>();
-      while (resultSet.next()) {
-        labels.add(resultSet.getString("LABEL"));
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
       }
-      return labels;
-    } catch (SQLException e) {
-      throw new AuditLogException("Failed to collect audit log labels", e);
+      throw e;
+    }
+  }
+
+  @Override
+  public Set<String> getLabels() {
+    Timer.Sample sample = metrics.startQuery();
+    try {
+      return store.getLabels();
+    } finally {
+      metrics.stopQuery(sample, "labels");
     }
   }
 
@@ -175,26 +420,4 @@ public class DefaultAuditLogService implements AuditLogService {
       return null;
     }
   }
-
-  private void createLabelsForNewEntry(int id, String[] labels) throws SQLException {
-    try (Connection connection = database.getConnection();
-         PreparedStatement statement = connection.prepareStatement("INSERT INTO LABELS(AUDIT, LABEL) VALUES (?, ?)")) {
-      for (String label : labels) {
-        statement.setInt(1, id);
-        statement.setString(2, label.toLowerCase());
-        statement.executeUpdate();
-      }
-    }
-  }
-
-  private void addSingleEntry(List<LogEntry> entries, ResultSet resultSet) throws SQLException {
-    LogEntry logEntry = new LogEntry();
-    logEntry.setEntity(resultSet.getString("ENTITY"));
-    logEntry.setUser(resultSet.getString("USERNAME"));
-    logEntry.setAction(resultSet.getString("ACTION_"));
-    logEntry.setEntry(resultSet.getString("ENTRY"));
-    logEntry.setTimestamp(resultSet.getTimestamp("TIMESTAMP_").toInstant());
-
-    entries.add(logEntry);
-  }
 }
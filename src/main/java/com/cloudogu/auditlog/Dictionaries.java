@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Set;
+
+/**
+ * The dictionaries for the dictionary encoded columns of the audit log. They are read from the database on start
+ * and after the existing entries have been encoded, and are kept up to date by the {@link AuditLogWriter}.
+ */
+@Singleton
+class Dictionaries {
+
+  static final String ENTITY_TABLE = "ENTITY_DICT";
+  static final String USER_TABLE = "USER_DICT";
+  static final String ACTION_TABLE = "ACTION_DICT";
+  static final String LABEL_TABLE = "LABEL_DICT";
+
+  private final Dictionary entities = new Dictionary(ENTITY_TABLE);
+  private final Dictionary users = new Dictionary(USER_TABLE);
+  private final Dictionary actions = new Dictionary(ACTION_TABLE);
+  private final Dictionary labels = new Dictionary(LABEL_TABLE);
+
+  @Inject
+  Dictionaries(AuditLogDatabase database) {
+    load(database);
+    // the values of the existing entries are added to the lookup tables in the background
+    database.afterMigration(SchemaMigrations.ENCODE_EXISTING_ENTRIES, () -> load(database));
+  }
+
+  private void load(AuditLogDatabase database) {
+    try (Connection connection = database.getConnection()) {
+      entities.load(connection);
+      users.load(connection);
+      actions.load(connection);
+      labels.load(connection);
+    } catch (SQLException e) {
+      throw new AuditLogException("Failed to read audit log dictionaries", e);
+    }
+  }
+
+  Dictionary entities() {
+    return entities;
+  }
+
+  Dictionary users() {
+    return users;
+  }
+
+  Dictionary actions() {
+    return actions;
+  }
+
+  Dictionary labels() {
+    return labels;
+  }
+
+  Set<String> getLabels() {
+    return labels.values();
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of a lookup table, which maps the values of a column to integer ids.
+ * New values are added by the {@link AuditLogWriter} and by the background encoding of existing entries
+ * (see {@link DictionaryMigration}), after which the cache is loaded again.
+ */
+class Dictionary {
+
+  private final String table;
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private final Map<Integer, String> values = new ConcurrentHashMap<>();
+
+  Dictionary(String table) {
+    this.table = table;
+  }
+
+  void load(Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT ID, VALUE_ FROM " + table)) {
+      while (resultSet.next()) {
+        put(resultSet.getInt("ID"), resultSet.getString("VALUE_"));
+      }
+    }
+  }
+
+  /**
+   * Returns the id of the value and adds the value to the lookup table, if it is not known yet.
+   * Must only be called by the writer thread.
+   */
+  Integer resolve(Connection connection, String value) throws SQLException {
+    if (value == null) {
+      return null;
+    }
+    Integer id = ids.get(value);
+    if (id != null) {
+      return id;
+    }
+    // the value may have been added by the background migration of the existing entries
+    try (PreparedStatement merge = connection.prepareStatement("MERGE INTO " + table + "(VALUE_) KEY(VALUE_) VALUES (?)")) {
+      merge.setString(1, value);
+      merge.executeUpdate();
+    }
+    try (PreparedStatement select = connection.prepareStatement("SELECT ID FROM " + table + " WHERE VALUE_ = ?")) {
+      select.setString(1, value);
+      try (ResultSet resultSet = select.executeQuery()) {
+        resultSet.next();
+        id = resultSet.getInt(1);
+      }
+    }
+    put(id, value);
+    return id;
+  }
+
+  /**
+   * Returns the id of the value or {@code null}, if the value is unknown.
+   */
+  Integer idOf(String value) {
+    return ids.get(value);
+  }
+
+  /**
+   * Reads the value for the id from the given column of the result set.
+   */
+  String valueOf(ResultSet resultSet, String column) throws SQLException {
+    int id = resultSet.getInt(column);
+    if (resultSet.wasNull()) {
+      return null;
+    }
+    return values.get(id);
+  }
+
+  Set<String> values() {
+    return Collections.unmodifiableSet(ids.keySet());
+  }
+
+  private void put(int id, String value) {
+    values.put(id, value);
+    ids.put(value, id);
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Replaces the string columns ENTITY, USERNAME, ACTION_ and LABEL with ids of lookup tables.
+ * Every step can be repeated, so that the migration can be continued if it was interrupted.
+ * <p>
+ * {@link #prepare(Connection)} only adds the lookup tables and the id columns before the start, the existing rows
+ * are encoded afterwards in the background by {@link #encodeExistingEntries(Connection)}. Until then, the existing
+ * entries are read and filtered by their strings (see {@link Partition#isLegacy()}). The encoding clears the strings,
+ * but keeps the emptied columns, so that queries which are running at the end of the migration do not fail.
+ * They are dropped together with the oldest partition.
+ */
+class DictionaryMigration {
+
+  private static final int CHUNK_SIZE = 50_000;
+
+  private DictionaryMigration() {
+  }
+
+  static void prepare(Connection connection) throws SQLException {
+    addIdColumn(connection, "AUDITLOG", "ENTITY_ID", Dictionaries.ENTITY_TABLE);
+    addIdColumn(connection, "AUDITLOG", "USER_ID", Dictionaries.USER_TABLE);
+    addIdColumn(connection, "AUDITLOG", "ACTION_ID", Dictionaries.ACTION_TABLE);
+    addIdColumn(connection, "LABELS", "LABEL_ID", Dictionaries.LABEL_TABLE);
+  }
+
+  private static void addIdColumn(Connection connection, String table, String idColumn, String dictionary) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE IF NOT EXISTS " + dictionary + "(ID int auto_increment primary key, VALUE_ varchar not null unique)");
+      statement.execute("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS " + idColumn + " int");
+    }
+  }
+
+  static void encodeExistingEntries(Connection connection) throws SQLException {
+    if (!tableExists(connection, "AUDITLOG")) {
+      return;
+    }
+    encode(connection, "AUDITLOG", "ID", "ENTITY", "ENTITY_ID", Dictionaries.ENTITY_TABLE);
+    encode(connection, "AUDITLOG", "ID", "USERNAME", "USER_ID", Dictionaries.USER_TABLE);
+    encode(connection, "AUDITLOG", "ID", "ACTION_", "ACTION_ID", Dictionaries.ACTION_TABLE);
+    encode(connection, "LABELS", "AUDIT", "LABEL", "LABEL_ID", Dictionaries.LABEL_TABLE);
+  }
+
+  private static void encode(Connection connection, String table, String rangeColumn, String column, String idColumn, String dictionary) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE IF NOT EXISTS " + dictionary + "(ID int auto_increment primary key, VALUE_ varchar not null unique)");
+      statement.execute("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS " + idColumn + " int");
+      if (!columnExists(connection, table, column)) {
+        return;
+      }
+      statement.execute("MERGE INTO " + dictionary + "(VALUE_) KEY(VALUE_) SELECT DISTINCT " + column + " FROM " + table + " WHERE " + column + " IS NOT NULL");
+    }
+
+    // update in chunks to keep the transactions small on large databases
+    long maxId = maxId(connection);
+    try (PreparedStatement update = connection.prepareStatement(
+      "UPDATE " + table + " SET " + idColumn + " = (SELECT ID FROM " + dictionary + " D WHERE D.VALUE_ = " + table + "." + column + "), " + column + " = NULL " +
+        // rows written by the writer in the meantime have no value in the old column
+        "WHERE " + rangeColumn + " > ? AND " + rangeColumn + " <= ? AND " + column + " IS NOT NULL")) {
+      for (long start = 0; start < maxId; start += CHUNK_SIZE) {
+        update.setLong(1, start);
+        update.setLong(2, start + CHUNK_SIZE);
+        update.executeUpdate();
+      }
+    }
+  }
+
+  private static long maxId(Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(ID), 0) FROM AUDITLOG")) {
+      resultSet.next();
+      return resultSet.getLong(1);
+    }
+  }
+
+  private static boolean tableExists(Connection connection, String table) throws SQLException {
+    try (ResultSet tables = connection.getMetaData().getTables(null, null, table, null)) {
+      return tables.next();
+    }
+  }
+
+  private static boolean columnExists(Connection connection, String table, String column) throws SQLException {
+    try (ResultSet columns = connection.getMetaData().getColumns(null, null, table, column)) {
+      return columns.next();
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Storage format of compressed entries in the ENTRY_DATA column. The first byte marks the format
+ * of the remaining bytes, so that other formats can be added later without touching existing rows.
+ */
+class EntryCodec {
+
+  static final byte DEFLATE = 1;
+
+  private EntryCodec() {
+  }
+
+  static byte[] encode(String entry) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream(entry.length() / 4 + 16);
+    output.write(DEFLATE);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try (DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(output, deflater)) {
+      deflaterOutput.write(entry.getBytes(UTF_8));
+    } catch (IOException e) {
+      throw new AuditLogException("Failed to compress audit log entry", e);
+    } finally {
+      deflater.end();
+    }
+    return output.toByteArray();
+  }
+
+  static String decode(byte[] data) {
+    if (data.length == 0 || data[0] != DEFLATE) {
+      throw new AuditLogException("Unknown storage format of audit log entry", null);
+    }
+    try (InputStream input = new InflaterInputStream(new ByteArrayInputStream(data, 1, data.length - 1))) {
+      return new String(input.readAllBytes(), UTF_8);
+    } catch (IOException e) {
+      throw new AuditLogException("Failed to decompress audit log entry", e);
+    }
+  }
+}
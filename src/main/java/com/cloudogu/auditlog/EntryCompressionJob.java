@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.inject.Inject;
+import jakarta.inject.Provider;
+import jakarta.inject.Singleton;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import lombok.extern.slf4j.Slf4j;
+import sonia.scm.plugin.Extension;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Compresses the entries, which have been written before the compression was enabled.
+ * Rows are converted in small chunks, each in its own transaction, so that new entries
+ * can still be written while the job is running.
+ */
+@Slf4j
+@Extension
+@Singleton
+public class EntryCompressionJob implements ServletContextListener {
+
+  private static final int CHUNK_SIZE = 500;
+
+  private final Provider<AuditLogDatabase> database;
+  private final Provider<Partitions> partitions;
+  private final Executor executor;
+  private final boolean enabled;
+
+  private volatile boolean stopped;
+
+  /**
+   * The database is only opened, if the entries are stored in the database.
+   */
+  @Inject
+  EntryCompressionJob(Provider<AuditLogDatabase> database, Provider<Partitions> partitions, AuditLogConfiguration configuration) {
+    this(
+      database,
+      partitions,
+      configuration,
+      Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder()
+          .setNameFormat("AuditLogCompression-%d")
+          .setDaemon(true)
+          .build()
+      )
+    );
+  }
+
+  @VisibleForTesting
+  EntryCompressionJob(AuditLogDatabase database, Partitions partitions, AuditLogConfiguration configuration, Executor executor) {
+    this(() -> database, () -> partitions, configuration, executor);
+  }
+
+  private EntryCompressionJob(Provider<AuditLogDatabase> database, Provider<Partitions> partitions, AuditLogConfiguration configuration, Executor executor) {
+    this.database = database;
+    this.partitions = partitions;
+    this.executor = executor;
+    this.enabled = configuration.isEntryCompression() && configuration.getStore() != AuditLogConfiguration.StoreType.FILE;
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent servletContextEvent) {
+    if (enabled) {
+      executor.execute(this::run);
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent servletContextEvent) {
+    stopped = true;
+  }
+
+  private void run() {
+    try {
+      int compressed = compressExistingEntries();
+      if (compressed > 0) {
+        log.info("compressed {} existing audit log entries", compressed);
+      }
+    } catch (SQLException e) {
+      log.warn("Could not compress existing audit log entries, it will be retried on next start", e);
+    }
+  }
+
+  @VisibleForTesting
+  int compressExistingEntries() throws SQLException {
+    int compressed = 0;
+    try (Connection connection = database.get().getConnection()) {
+      for (Partition partition : partitions.get().getAll()) {
+        compressed += compress(connection, partition);
+      }
+    }
+    return compressed;
+  }
+
+  private int compress(Connection connection, Partition partition) throws SQLException {
+    int compressed = 0;
+    long lastId = 0;
+    while (!stopped) {
+      Chunk chunk = readChunk(connection, partition, lastId);
+      if (chunk.size == 0) {
+        break;
+      }
+      writeChunk(connection, partition, chunk);
+      compressed += chunk.size;
+      lastId = chunk.ids[chunk.size - 1];
+    }
+    return compressed;
+  }
+
+  private Chunk readChunk(Connection connection, Partition partition, long lastId) throws SQLException {
+    Chunk chunk = new Chunk();
+    try (PreparedStatement statement = connection.prepareStatement(
+      "SELECT ID, ENTRY FROM " + partition.getAuditTable() + " WHERE ID > ? AND ENTRY IS NOT NULL ORDER BY ID LIMIT " + CHUNK_SIZE)) {
+      statement.setLong(1, lastId);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          chunk.ids[chunk.size] = resultSet.getLong("ID");
+          chunk.data[chunk.size] = EntryCodec.encode(resultSet.getString("ENTRY"));
+          chunk.size++;
+        }
+      }
+    }
+    return chunk;
+  }
+
+  private void writeChunk(Connection connection, Partition partition, Chunk chunk) throws SQLException {
+    connection.setAutoCommit(false);
+    try (PreparedStatement statement = connection.prepareStatement(
+      "UPDATE " + partition.getAuditTable() + " SET ENTRY = ?, ENTRY_DATA = ? WHERE ID = ? AND ENTRY IS NOT NULL")) {
+      for (int i = 0; i < chunk.size; i++) {
+        statement.setNull(1, Types.VARCHAR);
+        statement.setBytes(2, chunk.data[i]);
+        statement.setLong(3, chunk.ids[i]);
+        statement.addBatch();
+      }
+      statement.executeBatch();
+      connection.commit();
+    } catch (SQLException | RuntimeException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+    }
+  }
+
+  private static class Chunk {
+    private final long[] ids = new long[CHUNK_SIZE];
+    private final byte[][] data = new byte[CHUNK_SIZE][];
+    private int size;
+  }
+}
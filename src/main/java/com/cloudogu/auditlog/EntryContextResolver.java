@@ -17,7 +17,6 @@
 package com.cloudogu.auditlog;
 
 import com.google.common.base.Strings;
-import sonia.scm.auditlog.AuditEntry;
 import sonia.scm.auditlog.AuditLogEntity;
 import sonia.scm.auditlog.EntryCreationContext;
 
@@ -55,14 +54,7 @@ public class EntryContextResolver {
   }
 
   static String[] resolveLabels(EntryCreationContext<?> context) {
-    Object object = resolveObject(context);
-    String[] auditEntryAnnotationLabels;
-    AuditEntry annotation = object.getClass().getAnnotation(AuditEntry.class);
-    if (annotation != null) {
-      auditEntryAnnotationLabels = annotation.labels();
-    } else {
-      auditEntryAnnotationLabels = new String[]{};
-    }
+    String[] auditEntryAnnotationLabels = AuditMetadata.of(resolveObject(context).getClass()).getLabels();
     return concat(stream(auditEntryAnnotationLabels), context.getAdditionalLabels().stream())
       .distinct()
       .toArray(String[]::new);
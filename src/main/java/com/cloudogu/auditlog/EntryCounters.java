@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Number of entries of every partition per day and action and additionally per label. The row with the label id
+ * {@code 0} counts all entries of the day and action. The counters are changed in the same transaction as the
+ * entries, so that unfiltered counts and counts filtered only by label, action or whole days do not have to scan
+ * the entries. Days are the dates of the timestamps in the time zone of the server, like the date filters.
+ * <p>
+ * The counters of a partition are only changed, after the partition has been marked as counted in the catalog
+ * (see {@link #countExistingEntries(Connection)}). Every change locks the row of the partition in the catalog, so that
+ * the writer, the retention and the counting of the existing entries never count the same entries twice.
+ */
+class EntryCounters {
+
+  static final String TABLE = "AUDITLOG_COUNTERS";
+
+  private static final int CHUNK_SIZE = 10_000;
+
+  private static final String DAY = "CAST(A.TIMESTAMP_ AS DATE)";
+  private static final String ACTION = "COALESCE(A.ACTION_ID, 0)";
+
+  private EntryCounters() {
+  }
+
+  /**
+   * Creates the table of the counters and the flag of the catalog, which marks the partitions whose entries are
+   * counted. New partitions are counted from the start, existing partitions are counted by
+   * {@link #countExistingEntries(Connection)} in the background.
+   */
+  static void prepare(Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE IF NOT EXISTS " + TABLE + "(PARTITION_ID int not null, DAY_ date not null, ACTION_ID int not null, " +
+        "LABEL_ID int not null, COUNT_ bigint not null, primary key (PARTITION_ID, DAY_, ACTION_ID, LABEL_ID))");
+      statement.execute("ALTER TABLE " + Partitions.CATALOG_TABLE + " ADD COLUMN IF NOT EXISTS COUNTED boolean default false not null");
+    }
+  }
+
+  /**
+   * Counts the existing entries of all partitions. The partition is marked as counted first, so that the writer
+   * counts its new entries from then on, and the entries, which existed at that time, are counted afterwards in small
+   * chunks. The counters of a partition are replaced, so that the migration can be repeated.
+   */
+  static void countExistingEntries(Connection connection) throws SQLException {
+    List<Partition> partitions = new ArrayList<>();
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT ID, AUDIT_TABLE, LABELS_TABLE FROM " + Partitions.CATALOG_TABLE)) {
+      while (resultSet.next()) {
+        partitions.add(new Partition(resultSet.getInt(1), resultSet.getString(2), resultSet.getString(3), null, null, null));
+      }
+    }
+    connection.setAutoCommit(false);
+    try {
+      for (Partition partition : partitions) {
+        countExistingEntries(connection, partition);
+      }
+    } catch (SQLException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+    }
+  }
+
+  private static void countExistingEntries(Connection connection, Partition partition) throws SQLException {
+    if (!lock(connection, partition).isPresent()) {
+      // the partition has been dropped in the meantime
+      connection.commit();
+      return;
+    }
+    try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE PARTITION_ID = ?")) {
+      statement.setInt(1, partition.getPosition());
+      statement.executeUpdate();
+    }
+    try (PreparedStatement statement = connection.prepareStatement("UPDATE " + Partitions.CATALOG_TABLE + " SET COUNTED = TRUE WHERE ID = ?")) {
+      statement.setInt(1, partition.getPosition());
+      statement.executeUpdate();
+    }
+    long firstId;
+    long lastId;
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MIN(ID), 0), COALESCE(MAX(ID), 0) FROM " + partition.getAuditTable())) {
+      resultSet.next();
+      firstId = resultSet.getLong(1);
+      lastId = resultSet.getLong(2);
+    }
+    // entries, which the writer has not committed yet, are missing here, but the writer reads the flag only after
+    // the lock has been released and counts them itself, like all later entries with greater ids
+    connection.commit();
+
+    for (long start = firstId - 1; start < lastId; start += CHUNK_SIZE) {
+      if (!lock(connection, partition).isPresent()) {
+        connection.commit();
+        return;
+      }
+      update(connection, partition, "A.ID > " + start + " AND A.ID <= " + Math.min(start + CHUNK_SIZE, lastId), 1);
+      connection.commit();
+    }
+  }
+
+  /**
+   * Locks the row of the partition in the catalog until the end of the transaction and returns, whether the partition
+   * is counted. The result is empty, if the partition does not exist anymore.
+   */
+  private static Optional<Boolean> lock(Connection connection, Partition partition) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement("SELECT COUNTED FROM " + Partitions.CATALOG_TABLE + " WHERE ID = ? FOR UPDATE")) {
+      statement.setInt(1, partition.getPosition());
+      try (ResultSet resultSet = statement.executeQuery()) {
+        return resultSet.next() ? Optional.of(resultSet.getBoolean(1)) : Optional.empty();
+      }
+    }
+  }
+
+  private static boolean isCounted(Connection connection, Partition partition) throws SQLException {
+    return lock(connection, partition).orElse(false);
+  }
+
+  /**
+   * Adds the given entries of the partition, after they have been inserted.
+   */
+  static void add(Connection connection, Partition partition, List<Long> ids) throws SQLException {
+    if (isCounted(connection, partition)) {
+      update(connection, partition, idIn(ids), 1);
+    }
+  }
+
+  /**
+   * Subtracts the given entries of the partition, before they are deleted.
+   */
+  static void subtract(Connection connection, Partition partition, List<Long> ids) throws SQLException {
+    subtract(connection, partition, idIn(ids));
+  }
+
+  /**
+   * Subtracts the entries of the partition within the id range, before they are deleted.
+   */
+  static void subtract(Connection connection, Partition partition, long firstId, long lastId) throws SQLException {
+    subtract(connection, partition, "A.ID >= " + firstId + " AND A.ID <= " + lastId);
+  }
+
+  private static void subtract(Connection connection, Partition partition, String condition) throws SQLException {
+    if (!isCounted(connection, partition)) {
+      return;
+    }
+    update(connection, partition, condition, -1);
+    try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE PARTITION_ID = ? AND COUNT_ = 0")) {
+      statement.setInt(1, partition.getPosition());
+      statement.executeUpdate();
+    }
+  }
+
+  /**
+   * Removes the counters of a partition, which is dropped.
+   */
+  static void remove(Connection connection, Partition partition) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE PARTITION_ID = ?")) {
+      statement.setInt(1, partition.getPosition());
+      statement.executeUpdate();
+    }
+  }
+
+  private static void update(Connection connection, Partition partition, String condition, int sign) throws SQLException {
+    String from = " FROM " + partition.getAuditTable() + " A ";
+    String counts = "SELECT " + DAY + " DAY_, " + ACTION + " ACTION_ID, 0 LABEL_ID, " + sign + " * COUNT(*) N" + from +
+      "WHERE " + condition + " GROUP BY " + DAY + ", " + ACTION +
+      " UNION ALL SELECT " + DAY + ", " + ACTION + ", L.LABEL_ID, " + sign + " * COUNT(DISTINCT A.ID)" + from +
+      "JOIN " + partition.getLabelsTable() + " L ON L.AUDIT = A.ID WHERE " + condition + " GROUP BY " + DAY + ", " + ACTION + ", L.LABEL_ID";
+    try (PreparedStatement statement = connection.prepareStatement(
+      "MERGE INTO " + TABLE + " C USING (" + counts + ") S " +
+        "ON C.PARTITION_ID = ? AND C.DAY_ = S.DAY_ AND C.ACTION_ID = S.ACTION_ID AND C.LABEL_ID = S.LABEL_ID " +
+        "WHEN MATCHED THEN UPDATE SET COUNT_ = C.COUNT_ + S.N " +
+        "WHEN NOT MATCHED THEN INSERT (PARTITION_ID, DAY_, ACTION_ID, LABEL_ID, COUNT_) VALUES (?, S.DAY_, S.ACTION_ID, S.LABEL_ID, S.N)")) {
+      statement.setInt(1, partition.getPosition());
+      statement.setInt(2, partition.getPosition());
+      statement.executeUpdate();
+    }
+  }
+
+  private static String idIn(List<Long> ids) {
+    return "A.ID IN (" + ids.stream().map(String::valueOf).collect(Collectors.joining(",")) + ")";
+  }
+
+  /**
+   * Returns {@code true}, if the count of the filter context can be read from the counters. This is the case, if
+   * the context is at most filtered by label, action and whole days.
+   */
+  static boolean canCount(AuditLogFilterContext filterContext) {
+    return filterContext.getEntity() == null
+      && filterContext.getUsername() == null
+      && EntryTerms.ofQuery(filterContext.getQuery()).isEmpty()
+      && isStartOfDay(filterContext.getFrom())
+      && isStartOfDay(filterContext.getTo());
+  }
+
+  private static boolean isStartOfDay(Instant instant) {
+    return instant == null || day(instant).atStartOfDay(ZoneId.systemDefault()).toInstant().equals(instant);
+  }
+
+  private static LocalDate day(Instant instant) {
+    return LocalDate.ofInstant(instant, ZoneId.systemDefault());
+  }
+
+  /**
+   * Sums the counters of the given partitions, which match the filter context. Only valid, if
+   * {@link #canCount(AuditLogFilterContext)} is {@code true}. Partitions, which are hidden from the readers,
+   * are not counted, even if their counters still exist.
+   */
+  static long count(Connection connection, Collection<Partition> partitions, AuditLogFilterContext filterContext, Integer labelId, Integer actionId) throws SQLException {
+    if (partitions.isEmpty()) {
+      return 0;
+    }
+    String partitionIds = partitions.stream().map(partition -> String.valueOf(partition.getPosition())).collect(Collectors.joining(","));
+    StringBuilder sql = new StringBuilder("SELECT COALESCE(SUM(COUNT_), 0) FROM " + TABLE + " WHERE PARTITION_ID IN (" + partitionIds + ") AND LABEL_ID = ?");
+    List<Object> values = new ArrayList<>();
+    values.add(labelId == null ? 0 : labelId);
+    if (actionId != null) {
+      sql.append(" AND ACTION_ID = ?");
+      values.add(actionId);
+    }
+    if (filterContext.getFrom() != null) {
+      sql.append(" AND DAY_ >= ?");
+      values.add(Date.valueOf(day(filterContext.getFrom())));
+    }
+    if (filterContext.getTo() != null) {
+      sql.append(" AND DAY_ < ?");
+      values.add(Date.valueOf(day(filterContext.getTo())));
+    }
+    try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+      for (int i = 0; i < values.size(); i++) {
+        statement.setObject(i + 1, values.get(i));
+      }
+      try (ResultSet resultSet = statement.executeQuery()) {
+        resultSet.next();
+        return resultSet.getLong(1);
+      }
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import lombok.extern.slf4j.Slf4j;
+import sonia.scm.SCMContextProvider;
+import sonia.scm.plugin.Extension;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Overflow file for rendered entries, which could not be queued in memory, because the ingestion queue was full.
+ * The entries are handed to the writer later, as soon as the writer has caught up. Entries, which are left over
+ * from the last run, are replayed on startup. The offset of the replayed entries is stored from time to time and
+ * whenever the replay stops, so that an interrupted replay continues after the entries it has already handed over.
+ * After a crash, at most the entries since the last stored offset are replayed again.
+ * <p>
+ * Spilled entries keep the timestamp of their creation, but get their id when they are replayed. So their ids
+ * are greater than the ids of entries, which have been created later, but written before them.
+ */
+@Slf4j
+@Extension
+@Singleton
+public class EntryOverflow implements ServletContextListener {
+
+  private static final long WAIT_MILLIS = 50;
+  private static final int CHECKPOINT_ENTRIES = 1000;
+
+  private final Path file;
+  private final Path replayFile;
+  private final Path offsetFile;
+  private final AuditLogWriter writer;
+  private final Executor executor;
+  private final int maxWriterQueueDepth;
+  private final AtomicBoolean replayScheduled = new AtomicBoolean();
+
+  private DataOutputStream output;
+  private volatile boolean stopped;
+
+  @Inject
+  EntryOverflow(SCMContextProvider contextProvider, AuditLogWriter writer, AuditLogConfiguration configuration) {
+    this(
+      contextProvider.getBaseDirectory().toPath().resolve("audit-log").resolve("overflow"),
+      writer,
+      configuration,
+      Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder()
+          .setNameFormat("AuditLogOverflow-%d")
+          .setDaemon(true)
+          .build()
+      )
+    );
+  }
+
+  @VisibleForTesting
+  EntryOverflow(Path file, AuditLogWriter writer, AuditLogConfiguration configuration, Executor executor) {
+    this.file = file;
+    this.replayFile = file.resolveSibling(file.getFileName() + ".replay");
+    this.offsetFile = file.resolveSibling(file.getFileName() + ".offset");
+    this.writer = writer;
+    this.executor = executor;
+    this.maxWriterQueueDepth = Math.max(1, configuration.getQueueCapacity());
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent servletContextEvent) {
+    scheduleReplay();
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent servletContextEvent) {
+    stopped = true;
+    synchronized (this) {
+      closeOutput();
+    }
+  }
+
+  /**
+   * Appends the entry to the overflow file and schedules the replay.
+   */
+  void spill(PendingEntry entry) throws IOException {
+    synchronized (this) {
+      if (output == null) {
+        Files.createDirectories(file.getParent());
+        output = new DataOutputStream(new BufferedOutputStream(
+          Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+        ));
+      }
+      entry.writeTo(output);
+      output.flush();
+    }
+    scheduleReplay();
+  }
+
+  private void scheduleReplay() {
+    if (replayScheduled.compareAndSet(false, true)) {
+      executor.execute(this::replay);
+    }
+  }
+
+  private void replay() {
+    try {
+      replayFiles();
+    } catch (IOException e) {
+      log.error("Could not replay audit log entries from overflow file {}", file, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      replayScheduled.set(false);
+    }
+    // entries may have been spilled after the file was moved, but before the flag was reset
+    if (!stopped && Files.exists(file)) {
+      scheduleReplay();
+    }
+  }
+
+  private void replayFiles() throws IOException, InterruptedException {
+    // a replay file exists, if the last replay was interrupted
+    if (!Files.exists(replayFile)) {
+      synchronized (this) {
+        if (!Files.exists(file)) {
+          return;
+        }
+        closeOutput();
+        Files.deleteIfExists(offsetFile);
+        Files.move(file, replayFile, StandardCopyOption.ATOMIC_MOVE);
+      }
+    }
+    long offset = readOffset();
+    int replayed = 0;
+    try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(replayFile)));
+         DataInputStream input = new DataInputStream(counter)) {
+      // the entries before the offset have already been handed to the writer by an interrupted replay,
+      // the skipped bytes are counted as well, so the count is the offset within the whole file
+      ByteStreams.skipFully(input, offset);
+      PendingEntry entry;
+      try {
+        while (!stopped && (entry = read(input)) != null) {
+          // the overflow only happens under load, so the writer must not be flooded again
+          while (writer.getMetrics().getQueueDepth() >= maxWriterQueueDepth) {
+            TimeUnit.MILLISECONDS.sleep(WAIT_MILLIS);
+          }
+          writer.append(entry);
+          replayed++;
+          if (replayed % CHECKPOINT_ENTRIES == 0) {
+            writeOffset(counter.getCount());
+          }
+        }
+      } finally {
+        writeOffset(counter.getCount());
+      }
+    }
+    if (!stopped) {
+      Files.delete(replayFile);
+      Files.deleteIfExists(offsetFile);
+    }
+    log.info("replayed {} audit log entries from overflow file", replayed);
+  }
+
+  private long readOffset() throws IOException {
+    if (!Files.exists(offsetFile)) {
+      return 0;
+    }
+    try (DataInputStream input = new DataInputStream(Files.newInputStream(offsetFile))) {
+      return input.readLong();
+    } catch (EOFException e) {
+      return 0;
+    }
+  }
+
+  private void writeOffset(long offset) throws IOException {
+    Path temp = offsetFile.resolveSibling(offsetFile.getFileName() + ".tmp");
+    try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(temp))) {
+      output.writeLong(offset);
+    }
+    Files.move(temp, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void closeOutput() {
+    if (output != null) {
+      try {
+        output.close();
+      } catch (IOException e) {
+        log.warn("Could not close audit log overflow file {}", file, e);
+      }
+      output = null;
+    }
+  }
+
+  /**
+   * Reads the next entry or returns {@code null} at the end of the file. An incomplete last entry, which may be
+   * left over from a crash, is ignored.
+   */
+  private static PendingEntry read(DataInputStream input) throws IOException {
+    try {
+      return PendingEntry.readFrom(input);
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package com.cloudogu.auditlog;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the text of entries into the terms of the full text index. A term is a lower case word of letters and
+ * digits, which may be joined by {@code . / - _} like branch names or property paths. Joined words are indexed
+ * as a whole and with each of their parts, so that e.g. {@code feature/login} is found by {@code feature/login}
+ * and by {@code login}.
+ */
+class EntryTerms {
+
+  static final int MAX_TERM_LENGTH = 64;
+  /**
+   * Limits the size of the index for entries with huge diffs.
+   */
+  private static final int MAX_TERMS = 1_000;
+
+  private static final Pattern TERM = Pattern.compile("[\\p{L}\\p{N}]+(?:[./_-][\\p{L}\\p{N}]+)*");
+  private static final Pattern QUERY_TERM = Pattern.compile("[\\p{L}\\p{N}*]+(?:[./_-][\\p{L}\\p{N}*]+)*");
+  private static final Pattern SEPARATOR = Pattern.compile("[./_-]");
+
+  private EntryTerms() {
+  }
+
+  /**
+   * Returns the terms of the given entry text.
+   */
+  static Set<String> of(String entry) {
+    Set<String> terms = new LinkedHashSet<>();
+    if (entry == null) {
+      return terms;
+    }
+    Matcher matcher = TERM.matcher(entry);
+    // the leading timestamp is skipped, because it is filtered by the time range
+    matcher.region(entry.indexOf(' ') + 1, entry.length());
+    while (matcher.find() && terms.size() < MAX_TERMS) {
+      String term = normalize(matcher.group());
+      terms.add(term);
+      if (SEPARATOR.matcher(term).find()) {
+        for (String part : SEPARATOR.split(term)) {
+          terms.add(part);
+        }
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * Returns the terms of a full text query, all of which have to be found in an entry.
+   * The terms may contain the wildcard {@code *}.
+   */
+  static List<String> ofQuery(String query) {
+    List<String> terms = new ArrayList<>();
+    if (query == null) {
+      return terms;
+    }
+    Matcher matcher = QUERY_TERM.matcher(query);
+    while (matcher.find()) {
+      String term = normalize(matcher.group());
+      if (!term.replace("*", "").isEmpty() && !terms.contains(term)) {
+        terms.add(term);
+      }
+    }
+    return terms;
+  }
+
+  private static String normalize(String term) {
+    String normalized = term.toLowerCase(Locale.ENGLISH);
+    return normalized.length() > MAX_TERM_LENGTH ? normalized.substring(0, MAX_TERM_LENGTH) : normalized;
+  }
+}
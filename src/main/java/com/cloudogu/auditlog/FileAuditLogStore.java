@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import com.google.common.annotations.VisibleForTesting;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import sonia.scm.SCMContextProvider;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Storage engine without a database, selected with {@code scm.auditLog.store=file}. Every batch is appended to the
+ * log file {@code audit-log/store/entries.log} and forced to disk, before the write returns. The entries of the log
+ * are kept in memory, too. As soon as the log holds {@link AuditLogConfiguration#getFileStoreSegmentEntries()}
+ * entries, they are sealed into an immutable {@link Segment} of the {@link Archive} and the log starts over.
+ * The blocks of the segments are the sparse index, which allows to skip entries by id and timestamp. Readers work on
+ * an immutable snapshot of the log, which is replaced on every write without copying the entries, so only the
+ * matching entries of the log, which are at most one segment, are scanned.
+ * <p>
+ * A record of the log consists of its length, the CRC32 checksum of its data and the data itself. Records with a
+ * wrong checksum can only be the incomplete last write, so they are cut off on the next start.
+ */
+@Slf4j
+@Singleton
+class FileAuditLogStore implements AuditLogStore {
+
+  private static final int RECORD_HEADER = 2 * Integer.BYTES;
+
+  private final Path file;
+  private final Archive archive;
+  private final int segmentEntries;
+  private final Set<String> labels = ConcurrentHashMap.newKeySet();
+  private final FileChannel channel;
+
+  private long nextId;
+  private volatile Snapshot snapshot;
+  private volatile boolean closed;
+
+  @Inject
+  FileAuditLogStore(SCMContextProvider contextProvider, Archive archive, AuditLogConfiguration configuration) {
+    this(contextProvider.getBaseDirectory().toPath().resolve("audit-log").resolve("store"), archive, configuration);
+  }
+
+  @VisibleForTesting
+  FileAuditLogStore(Path directory, Archive archive, AuditLogConfiguration configuration) {
+    this.file = directory.resolve("entries.log");
+    this.archive = archive;
+    this.segmentEntries = Math.max(1, configuration.getFileStoreSegmentEntries());
+    List<Segment> segments = archive.getAll();
+    long sealedMaxId = segments.isEmpty() ? 0 : segments.get(0).getMaxId();
+    segments.forEach(segment -> labels.addAll(segment.getLabels()));
+    List<ArchivedEntry> entries;
+    try {
+      Files.createDirectories(directory);
+      this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      entries = recover(sealedMaxId);
+    } catch (IOException e) {
+      throw new AuditLogException("Failed to open audit log store " + file, e);
+    }
+    this.snapshot = Snapshot.empty(sealedMaxId).append(entries);
+    this.nextId = Math.max(sealedMaxId, entries.isEmpty() ? 0 : entries.get(entries.size() - 1).getId()) + 1;
+  }
+
+  private List<ArchivedEntry> recover(long sealedMaxId) throws IOException {
+    List<ArchivedEntry> entries = new ArrayList<>();
+    long size = channel.size();
+    long valid = 0;
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      while (size - valid >= RECORD_HEADER) {
+        int length = input.readInt();
+        long checksum = Integer.toUnsignedLong(input.readInt());
+        if (length <= 0 || length > size - valid - RECORD_HEADER) {
+          break;
+        }
+        byte[] data = new byte[length];
+        input.readFully(data);
+        if (checksum(data) != checksum) {
+          break;
+        }
+        ArchivedEntry entry = decode(data);
+        // entries up to the newest segment have already been sealed, before the log could be truncated
+        if (entry.getId() > sealedMaxId) {
+          entries.add(entry);
+          Collections.addAll(labels, entry.getLabels());
+        }
+        valid += RECORD_HEADER + length;
+      }
+    } catch (EOFException e) {
+      // incomplete last record
+    }
+    if (valid < size) {
+      log.warn("cutting off incomplete record at the end of audit log store {}", file);
+      channel.truncate(valid);
+    }
+    channel.position(valid);
+    if (!entries.isEmpty()) {
+      log.debug("recovered {} audit log entries from {}", entries.size(), file);
+    }
+    return entries;
+  }
+
+  /**
+   * Appends the batch to the log and forces it to disk. If this fails, the log is cut off at its previous end.
+   */
+  @Override
+  public void write(List<PendingEntry> batch) {
+    List<ArchivedEntry> written = new ArrayList<>(batch.size());
+    try {
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      long id = nextId;
+      for (PendingEntry pendingEntry : batch) {
+        written.add(encode(records, id++, pendingEntry));
+      }
+      append(ByteBuffer.wrap(records.toByteArray()));
+    } catch (IOException e) {
+      throw new AuditLogException("Failed to write audit log entries", e);
+    }
+    nextId += written.size();
+    synchronized (this) {
+      snapshot = snapshot.append(written);
+    }
+    written.forEach(entry -> Collections.addAll(labels, entry.getLabels()));
+    if (snapshot.size >= segmentEntries) {
+      seal();
+    }
+  }
+
+  private void append(ByteBuffer records) throws IOException {
+    long end = channel.position();
+    try {
+      while (records.hasRemaining()) {
+        channel.write(records);
+      }
+      channel.force(false);
+    } catch (IOException e) {
+      channel.truncate(end);
+      channel.position(end);
+      throw e;
+    }
+  }
+
+  /**
+   * Moves the entries of the log into a new segment. The log is only truncated after the segment and its directory
+   * have been forced to disk by {@link Archive#write(List)}, so the entries are never lost in between. Entries, which
+   * are in both after a crash, are skipped on recovery.
+   */
+  private void seal() {
+    List<ArchivedEntry> sealed = snapshot.entries();
+    try {
+      Segment segment = archive.write(sealed);
+      synchronized (this) {
+        snapshot = Snapshot.empty(segment.getMaxId());
+      }
+      channel.truncate(0);
+      channel.position(0);
+      channel.force(false);
+      log.debug("sealed {} audit log entries into {}", sealed.size(), segment.getFile());
+    } catch (IOException e) {
+      log.warn("Could not seal audit log entries into a segment, it will be retried with the next batch", e);
+    }
+  }
+
+  @Override
+  public void read(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer) {
+    Snapshot snapshot = this.snapshot;
+    if (filterContext.getAfterId() != null) {
+      readNewer(filterContext, snapshot, consumer);
+    } else {
+      readOlder(filterContext, snapshot, consumer);
+    }
+  }
+
+  /**
+   * Entries are decoded one by one from the segments, so streaming does not differ from reading.
+   */
+  @Override
+  public void stream(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer) {
+    read(filterContext, consumer);
+  }
+
+  private void readOlder(AuditLogFilterContext filterContext, Snapshot snapshot, Consumer<LogEntry> consumer) {
+    ArchiveFilter filter = ArchiveFilter.withCursor(filterContext);
+    int remaining = filterContext.getReadLimit();
+    long skip = filterContext.hasCursor() ? 0 : (long) (filterContext.getPageNumber() - 1) * filterContext.getLimit();
+    for (int i = snapshot.size - 1; i >= 0; i--) {
+      if (remaining <= 0) {
+        return;
+      }
+      ArchivedEntry entry = snapshot.entries[i];
+      if (filter.matches(entry)) {
+        if (skip > 0) {
+          skip--;
+        } else {
+          consumer.accept(entry.toLogEntry());
+          remaining--;
+        }
+      }
+    }
+    if (remaining > 0) {
+      archive.readOlder(filterContext, snapshot.sealedMaxId, skip, remaining, consumer);
+    }
+  }
+
+  private void readNewer(AuditLogFilterContext filterContext, Snapshot snapshot, Consumer<LogEntry> consumer) {
+    ArchiveFilter filter = ArchiveFilter.withCursor(filterContext);
+    List<LogEntry> page = new ArrayList<>(archive.readNewer(filterContext, snapshot.sealedMaxId, filterContext.getReadLimit()));
+    for (ArchivedEntry entry : snapshot.entries()) {
+      if (page.size() >= filterContext.getReadLimit()) {
+        break;
+      }
+      if (filter.matches(entry)) {
+        page.add(entry.toLogEntry());
+      }
+    }
+    Lists.reverse(page).forEach(consumer);
+  }
+
+  @Override
+  public long count(AuditLogFilterContext filterContext) {
+    Snapshot snapshot = this.snapshot;
+    ArchiveFilter filter = ArchiveFilter.of(filterContext);
+    long archived = archive.count(filterContext, snapshot.sealedMaxId);
+    if (filter.matchesAll()) {
+      return archived + snapshot.size;
+    }
+    return archived + snapshot.entries().stream().filter(filter::matches).count();
+  }
+
+  @Override
+  public Set<String> getLabels() {
+    return Collections.unmodifiableSet(labels);
+  }
+
+  @Override
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.warn("Could not close audit log store {}", file, e);
+    }
+  }
+
+  private static ArchivedEntry encode(ByteArrayOutputStream records, long id, PendingEntry pendingEntry) throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(data);
+    output.writeLong(id);
+    pendingEntry.writeTo(output);
+    output.flush();
+    byte[] bytes = data.toByteArray();
+
+    DataOutputStream recordOutput = new DataOutputStream(records);
+    recordOutput.writeInt(bytes.length);
+    recordOutput.writeInt((int) checksum(bytes));
+    recordOutput.write(bytes);
+    recordOutput.flush();
+    return toArchivedEntry(id, pendingEntry);
+  }
+
+  private static ArchivedEntry decode(byte[] data) throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+    long id = input.readLong();
+    return toArchivedEntry(id, PendingEntry.readFrom(input));
+  }
+
+  private static ArchivedEntry toArchivedEntry(long id, PendingEntry pendingEntry) {
+    return new ArchivedEntry(
+      id,
+      pendingEntry.getTimestamp(),
+      pendingEntry.getEntity(),
+      pendingEntry.getUser(),
+      pendingEntry.getAction(),
+      pendingEntry.getEntry(),
+      pendingEntry.getLabels()
+    );
+  }
+
+  private static long checksum(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  /**
+   * The entries of the log in ascending order and the newest sealed id, which have to be read together, otherwise a
+   * page could contain entries twice or miss them, while the log is sealed. Later snapshots of the same log share the
+   * array and only append entries behind the size of the earlier ones, so an entry is never changed, once it is
+   * visible to a reader.
+   */
+  @AllArgsConstructor
+  private static class Snapshot {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ArchivedEntry[] entries;
+    private final int size;
+    private final long sealedMaxId;
+
+    static Snapshot empty(long sealedMaxId) {
+      return new Snapshot(new ArchivedEntry[INITIAL_CAPACITY], 0, sealedMaxId);
+    }
+
+    Snapshot append(List<ArchivedEntry> written) {
+      ArchivedEntry[] target = entries;
+      if (size + written.size() > target.length) {
+        target = Arrays.copyOf(entries, Math.max(2 * entries.length, size + written.size()));
+      }
+      for (int i = 0; i < written.size(); i++) {
+        target[size + i] = written.get(i);
+      }
+      return new Snapshot(target, size + written.size(), sealedMaxId);
+    }
+
+    List<ArchivedEntry> entries() {
+      return Arrays.asList(entries).subList(0, size);
+    }
+  }
+}
@@ -21,6 +21,7 @@ import lombok.Getter;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -30,8 +31,8 @@ public class Filters {
   private Filters() {
   }
 
-  static String createFilterQuery(AuditLogFilterContext filterContext, List<Filters.AppliedFilter> appliedFilters) {
-    if (!filterContext.hasContentFilter()) {
+  static String createFilterQuery(List<Filters.AppliedFilter> appliedFilters) {
+    if (appliedFilters.isEmpty()) {
       return "";
     } else {
       StringBuilder builder = new StringBuilder();
@@ -45,32 +46,94 @@ public class Filters {
     }
   }
 
-  static List<AppliedFilter> resolveAppliedFilters(AuditLogFilterContext filterContext) {
+  /**
+   * Resolves the filters of the context for a query on the given partition.
+   * The queried audit table must be named {@code AUDITLOG} in the query.
+   */
+  static List<AppliedFilter> resolveAppliedFilters(AuditLogFilterContext filterContext, Partition partition) {
+    return resolveAppliedFilters(filterContext, partition, false);
+  }
+
+  /**
+   * Resolves the filters of the context for a query on the given partition. If the partition is {@code unencoded},
+   * rows without dictionary ids are matched by their string columns (see {@link DictionaryMigration}).
+   */
+  static List<AppliedFilter> resolveAppliedFilters(AuditLogFilterContext filterContext, Partition partition, boolean unencoded) {
     List<AppliedFilter> appliedFilters = new ArrayList<>();
 
-    if (filterContext.getFrom() != null) {
-      appliedFilters.add(new AppliedFilter("AND CAST(AUDITLOG.TIMESTAMP_ as TIMESTAMP WITH TIME ZONE) >= ? ", filterContext.getFrom().toString()));
+    // The timestamps are bound as they are written (java.sql.Timestamp in the zone of the server),
+    // so that the comparison can use the index on the column. Bounds which enclose the whole partition
+    // are left out, so that e.g. the count of a complete partition needs no scan at all.
+    if (filterContext.getFrom() != null && !partition.startsAtOrAfter(filterContext.getFrom())) {
+      appliedFilters.add(new AppliedFilter("AND AUDITLOG.TIMESTAMP_ >= ? ", Timestamp.from(filterContext.getFrom())));
+    }
+    if (filterContext.getTo() != null && !partition.endsAtOrBefore(filterContext.getTo())) {
+      appliedFilters.add(new AppliedFilter("AND AUDITLOG.TIMESTAMP_ < ? ", Timestamp.from(filterContext.getTo())));
     }
-    if (filterContext.getTo() != null) {
-      appliedFilters.add(new AppliedFilter("AND CAST(AUDITLOG.TIMESTAMP_ as TIMESTAMP WITH TIME ZONE) < ? ", filterContext.getTo().toString()));
+    if (unencoded) {
+      resolveUnencodedFilters(filterContext, partition, appliedFilters);
+    } else {
+      resolveEncodedFilters(filterContext, partition, appliedFilters);
+    }
+    // every term of the full text query has to be found in the index of the partition
+    for (String term : EntryTerms.ofQuery(filterContext.getQuery())) {
+      String operator = term.contains("*") ? "LIKE" : "=";
+      appliedFilters.add(new AppliedFilter("AND AUDITLOG.ID IN (SELECT TERMS.AUDIT FROM " + partition.getTermsTable() + " AS TERMS WHERE TERMS.TERM " + operator + " ?) ", normalizeValue(term)));
     }
+
+    return appliedFilters;
+  }
+
+  private static void resolveEncodedFilters(AuditLogFilterContext filterContext, Partition partition, List<AppliedFilter> appliedFilters) {
+    // Strings are resolved to their ids with subqueries on the small dictionary tables,
+    // so that the audit log itself is only filtered by integer comparisons
     if (filterContext.getEntity() != null) {
-      appliedFilters.add(new AppliedFilter("AND AUDITLOG.ENTITY LIKE ? ", normalizeValue(filterContext.getEntity())));
+      appliedFilters.add(new AppliedFilter("AND AUDITLOG.ENTITY_ID IN (SELECT ID FROM ENTITY_DICT WHERE VALUE_ LIKE ?) ", normalizeValue(filterContext.getEntity())));
     }
     if (filterContext.getUsername() != null) {
-      appliedFilters.add(new AppliedFilter("AND AUDITLOG.USERNAME LIKE ? ", normalizeValue(filterContext.getUsername())));
+      appliedFilters.add(new AppliedFilter("AND AUDITLOG.USER_ID IN (SELECT ID FROM USER_DICT WHERE VALUE_ LIKE ?) ", normalizeValue(filterContext.getUsername())));
     }
     if (filterContext.getLabel() != null) {
-      appliedFilters.add(new AppliedFilter("AND AUDITLOG.ID IN (SELECT LABELS.AUDIT FROM LABELS WHERE LABELS.LABEL = ?) ", normalizeValue(filterContext.getLabel())));
+      appliedFilters.add(new AppliedFilter("AND AUDITLOG.ID IN (SELECT LABELS.AUDIT FROM " + partition.getLabelsTable() + " AS LABELS WHERE LABELS.LABEL_ID = (SELECT ID FROM LABEL_DICT WHERE VALUE_ = ?)) ", normalizeValue(filterContext.getLabel())));
     }
     if (filterContext.getAction() != null) {
-      appliedFilters.add(new AppliedFilter("AND AUDITLOG.ACTION_ = ? ", normalizeValue(filterContext.getAction())));
+      appliedFilters.add(new AppliedFilter("AND AUDITLOG.ACTION_ID = (SELECT ID FROM ACTION_DICT WHERE VALUE_ = ?) ", normalizeValue(filterContext.getAction())));
+    }
+  }
+
+  private static void resolveUnencodedFilters(AuditLogFilterContext filterContext, Partition partition, List<AppliedFilter> appliedFilters) {
+    // Only existing rows have strings, rows written since the upgrade have ids. Both are compared
+    // row by row, until the existing rows have been encoded in the background.
+    if (filterContext.getEntity() != null) {
+      appliedFilters.add(new AppliedFilter("AND COALESCE((SELECT VALUE_ FROM ENTITY_DICT WHERE ID = AUDITLOG.ENTITY_ID), AUDITLOG.ENTITY) LIKE ? ", normalizeValue(filterContext.getEntity())));
+    }
+    if (filterContext.getUsername() != null) {
+      appliedFilters.add(new AppliedFilter("AND COALESCE((SELECT VALUE_ FROM USER_DICT WHERE ID = AUDITLOG.USER_ID), AUDITLOG.USERNAME) LIKE ? ", normalizeValue(filterContext.getUsername())));
+    }
+    if (filterContext.getLabel() != null) {
+      appliedFilters.add(new AppliedFilter("AND AUDITLOG.ID IN (SELECT LABELS.AUDIT FROM " + partition.getLabelsTable() + " AS LABELS WHERE COALESCE((SELECT VALUE_ FROM LABEL_DICT WHERE ID = LABELS.LABEL_ID), LABELS.LABEL) = ?) ", normalizeValue(filterContext.getLabel())));
+    }
+    if (filterContext.getAction() != null) {
+      appliedFilters.add(new AppliedFilter("AND COALESCE((SELECT VALUE_ FROM ACTION_DICT WHERE ID = AUDITLOG.ACTION_ID), AUDITLOG.ACTION_) = ? ", normalizeValue(filterContext.getAction())));
+    }
+  }
+
+  /**
+   * Resolves the filters of the context including the cursor of the page, if the context uses cursor based paging.
+   */
+  static List<AppliedFilter> resolveAppliedFiltersWithCursor(AuditLogFilterContext filterContext, Partition partition, boolean unencoded) {
+    List<AppliedFilter> appliedFilters = resolveAppliedFilters(filterContext, partition, unencoded);
+
+    if (filterContext.getBeforeId() != null) {
+      appliedFilters.add(new AppliedFilter("AND AUDITLOG.ID < ? ", filterContext.getBeforeId()));
+    } else if (filterContext.getAfterId() != null) {
+      appliedFilters.add(new AppliedFilter("AND AUDITLOG.ID > ? ", filterContext.getAfterId()));
     }
 
     return appliedFilters;
   }
 
-  private static String normalizeValue(String value) {
+  static String normalizeValue(String value) {
     return value.toLowerCase().replace("*", "%");
   }
 
@@ -78,7 +141,7 @@ public class Filters {
     if (!appliedFilters.isEmpty()) {
       Iterator<AppliedFilter> iterator = appliedFilters.iterator();
       for (int i = 1; i <= appliedFilters.size(); i++) {
-        statement.setString(i, iterator.next().getValue());
+        statement.setObject(i, iterator.next().getValue());
       }
     }
   }
@@ -87,6 +150,6 @@ public class Filters {
   @Getter
   static class AppliedFilter {
     private String sqlClause;
-    private String value;
+    private Object value;
   }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package com.cloudogu.auditlog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Introduces the full text index. Every partition gets a table for the terms of its entries, the terms of the
+ * existing entries are added in the background. Every step can be repeated, so that the migration can be continued
+ * if it was interrupted.
+ */
+class FullTextMigration {
+
+  private static final int CHUNK_SIZE = 10_000;
+
+  private FullTextMigration() {
+  }
+
+  static void apply(Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("ALTER TABLE " + Partitions.CATALOG_TABLE + " ADD COLUMN IF NOT EXISTS TERMS_TABLE varchar");
+    }
+    for (Map.Entry<String, String> partition : readTermsTables(connection).entrySet()) {
+      Partitions.createTermsTable(connection, partition.getValue());
+      try (PreparedStatement statement = connection.prepareStatement("UPDATE " + Partitions.CATALOG_TABLE + " SET TERMS_TABLE = ? WHERE AUDIT_TABLE = ?")) {
+        statement.setString(1, partition.getValue());
+        statement.setString(2, partition.getKey());
+        statement.executeUpdate();
+      }
+    }
+  }
+
+  /**
+   * Returns the names of the terms tables by the names of the audit tables, e.g. {@code TERMS_2024_01} for
+   * {@code AUDITLOG_2024_01} and {@code TERMS} for the partition of the entries before the partitioning.
+   */
+  private static Map<String, String> readTermsTables(Connection connection) throws SQLException {
+    Map<String, String> tables = new LinkedHashMap<>();
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT AUDIT_TABLE FROM " + Partitions.CATALOG_TABLE)) {
+      while (resultSet.next()) {
+        String auditTable = resultSet.getString(1);
+        tables.put(auditTable, auditTable.replaceFirst("^AUDITLOG", "TERMS"));
+      }
+    }
+    return tables;
+  }
+
+  /**
+   * Adds the terms of all existing entries to the full text index. Every chunk replaces the terms of its id range,
+   * so entries written by the writer in the meantime are not indexed twice.
+   */
+  static void indexExistingEntries(Connection connection) throws SQLException {
+    Map<String, String> partitions = new LinkedHashMap<>();
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT AUDIT_TABLE, TERMS_TABLE FROM " + Partitions.CATALOG_TABLE)) {
+      while (resultSet.next()) {
+        partitions.put(resultSet.getString(1), resultSet.getString(2));
+      }
+    }
+    for (Map.Entry<String, String> partition : partitions.entrySet()) {
+      index(connection, partition.getKey(), partition.getValue());
+    }
+  }
+
+  private static void index(Connection connection, String auditTable, String termsTable) throws SQLException {
+    long minId;
+    long maxId;
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MIN(ID), 0), COALESCE(MAX(ID), 0) FROM " + auditTable)) {
+      resultSet.next();
+      minId = resultSet.getLong(1);
+      maxId = resultSet.getLong(2);
+    }
+    for (long start = minId; start <= maxId && maxId > 0; start += CHUNK_SIZE) {
+      connection.setAutoCommit(false);
+      try {
+        indexChunk(connection, auditTable, termsTable, start, start + CHUNK_SIZE - 1);
+        connection.commit();
+      } catch (SQLException | RuntimeException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    }
+  }
+
+  private static void indexChunk(Connection connection, String auditTable, String termsTable, long firstId, long lastId) throws SQLException {
+    try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + termsTable + " WHERE AUDIT >= ? AND AUDIT <= ?")) {
+      delete.setLong(1, firstId);
+      delete.setLong(2, lastId);
+      delete.executeUpdate();
+    }
+    try (PreparedStatement select = connection.prepareStatement("SELECT ID, ENTRY, ENTRY_DATA FROM " + auditTable + " WHERE ID >= ? AND ID <= ?");
+         PreparedStatement insert = connection.prepareStatement("INSERT INTO " + termsTable + "(AUDIT, TERM) VALUES (?, ?)")) {
+      select.setLong(1, firstId);
+      select.setLong(2, lastId);
+      boolean hasTerms = false;
+      try (ResultSet resultSet = select.executeQuery()) {
+        while (resultSet.next()) {
+          long id = resultSet.getLong("ID");
+          String entry = resultSet.getString("ENTRY");
+          if (entry == null) {
+            byte[] data = resultSet.getBytes("ENTRY_DATA");
+            entry = data != null ? EntryCodec.decode(data) : null;
+          }
+          for (String term : EntryTerms.of(entry)) {
+            insert.setLong(1, id);
+            insert.setString(2, term);
+            insert.addBatch();
+            hasTerms = true;
+          }
+        }
+      }
+      if (hasTerms) {
+        insert.executeBatch();
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import org.javers.core.Javers;
+import org.javers.core.JaversBuilder;
+import org.javers.core.metamodel.clazz.ValueObjectDefinitionBuilder;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Creates {@link Javers} instances, which know the ignored properties and ignored classes of the {@link sonia.scm.auditlog.AuditEntry}
+ * annotations of an object graph, so that Javers does not compare them at all. The classes are collected from the
+ * declared field types of the root class, so properties of subclasses, which are only known at runtime, are still
+ * compared and filtered afterwards.
+ */
+class JaversMappings {
+
+  private JaversMappings() {
+  }
+
+  static Javers create(Class<?> rootType) {
+    JaversBuilder builder = JaversBuilder.javers();
+    for (Class<?> type : collectTypes(rootType)) {
+      AuditMetadata metadata = AuditMetadata.of(type);
+      if (metadata.isIgnore() && type != rootType) {
+        builder.registerIgnoredClass(type);
+      } else if (!metadata.getIgnoredFields().isEmpty() && !isEntity(type)) {
+        builder.registerValueObject(
+          ValueObjectDefinitionBuilder.valueObjectDefinition(type)
+            .withIgnoredProperties(new ArrayList<>(metadata.getIgnoredFields()))
+            .build()
+        );
+      }
+    }
+    return builder.build();
+  }
+
+  private static Set<Class<?>> collectTypes(Class<?> rootType) {
+    Set<Class<?>> types = new LinkedHashSet<>();
+    Deque<Type> queue = new ArrayDeque<>();
+    queue.add(rootType);
+    while (!queue.isEmpty()) {
+      Type type = queue.poll();
+      if (type instanceof ParameterizedType) {
+        ParameterizedType parameterizedType = (ParameterizedType) type;
+        queue.add(parameterizedType.getRawType());
+        queue.addAll(List.of(parameterizedType.getActualTypeArguments()));
+      } else if (type instanceof GenericArrayType) {
+        queue.add(((GenericArrayType) type).getGenericComponentType());
+      } else if (type instanceof WildcardType) {
+        queue.addAll(List.of(((WildcardType) type).getUpperBounds()));
+      } else if (type instanceof Class) {
+        Class<?> clazz = (Class<?>) type;
+        if (clazz.isArray()) {
+          queue.add(clazz.getComponentType());
+        } else if (isApplicationType(clazz) && types.add(clazz)) {
+          for (Class<?> current = clazz; isApplicationType(current); current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+              if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                queue.add(field.getGenericType());
+              }
+            }
+          }
+        }
+      }
+    }
+    return types;
+  }
+
+  private static boolean isApplicationType(Class<?> type) {
+    if (type == null || type.isPrimitive() || type.isEnum()) {
+      return false;
+    }
+    String name = type.getName();
+    return !name.startsWith("java.") && !name.startsWith("javax.") && !name.startsWith("jakarta.");
+  }
+
+  /**
+   * Classes with an id are mapped as entities by Javers and must therefore not be registered as value objects.
+   */
+  private static boolean isEntity(Class<?> type) {
+    for (Class<?> current = type; isApplicationType(current); current = current.getSuperclass()) {
+      for (Field field : current.getDeclaredFields()) {
+        if (hasIdAnnotation(field)) {
+          return true;
+        }
+      }
+      for (Method method : current.getDeclaredMethods()) {
+        if (hasIdAnnotation(method)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasIdAnnotation(AccessibleObject member) {
+    for (Annotation annotation : member.getAnnotations()) {
+      if (annotation.annotationType().getSimpleName().equals("Id")) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import com.google.common.collect.Lists;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static com.cloudogu.auditlog.Filters.normalizeValue;
+import static com.cloudogu.auditlog.Filters.resolveAppliedFilters;
+import static com.cloudogu.auditlog.Filters.resolveAppliedFiltersWithCursor;
+import static com.cloudogu.auditlog.Filters.setFilterValues;
+import static com.cloudogu.auditlog.SqlQueryGenerator.createCountQuery;
+import static com.cloudogu.auditlog.SqlQueryGenerator.createEntriesQuery;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * The default storage engine, which keeps the entries in the monthly {@link Partitions} of the h2 database with
+ * dictionary encoded columns. Partitions, which have been moved to the {@link Archive}, are read from its segments.
+ */
+@Singleton
+class JdbcAuditLogStore implements AuditLogStore {
+
+  private static final int STREAM_FETCH_SIZE = 1000;
+  private static final String INSERT_ENTRY = "INSERT INTO %s(ID, TIMESTAMP_, ENTITY_ID, USER_ID, ACTION_ID, ENTRY, ENTRY_DATA) VALUES (?, ?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_LABEL = "INSERT INTO %s(AUDIT, LABEL_ID) VALUES (?, ?)";
+  private static final String INSERT_TERM = "INSERT INTO %s(AUDIT, TERM) VALUES (?, ?)";
+
+  private final AuditLogDatabase database;
+  private final Dictionaries dictionaries;
+  private final Partitions partitions;
+  private final Archive archive;
+  private final boolean compress;
+
+  @Inject
+  JdbcAuditLogStore(AuditLogDatabase database, Dictionaries dictionaries, Partitions partitions, Archive archive, AuditLogConfiguration configuration) {
+    this.database = database;
+    this.dictionaries = dictionaries;
+    this.partitions = partitions;
+    this.archive = archive;
+    this.compress = configuration.isEntryCompression();
+  }
+
+  /**
+   * Writes the batch in one transaction with JDBC batch statements over a single connection.
+   */
+  @Override
+  public void write(List<PendingEntry> batch) {
+    try (Connection connection = database.getWriterConnection()) {
+      // new dictionary values and partitions are committed on their own, so that the cached ids stay valid on rollback
+      List<EncodedEntry> encodedEntries = encode(connection, batch);
+      connection.setAutoCommit(false);
+      try {
+        insert(connection, encodedEntries);
+        connection.commit();
+      } catch (SQLException | RuntimeException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      throw new AuditLogException("Failed to write audit log entries", e);
+    }
+  }
+
+  private List<EncodedEntry> encode(Connection connection, List<PendingEntry> batch) throws SQLException {
+    List<EncodedEntry> encodedEntries = new ArrayList<>(batch.size());
+    long[] ids = partitions.nextIds(connection, batch.size());
+    for (int index = 0; index < batch.size(); index++) {
+      PendingEntry entry = batch.get(index);
+      int[] labelIds = new int[entry.getLabels().length];
+      for (int i = 0; i < labelIds.length; i++) {
+        labelIds[i] = dictionaries.labels().resolve(connection, entry.getLabels()[i]);
+      }
+      encodedEntries.add(new EncodedEntry(
+        entry,
+        ids[index],
+        partitions.resolve(connection, entry.getTimestamp()),
+        dictionaries.entities().resolve(connection, entry.getEntity()),
+        dictionaries.users().resolve(connection, entry.getUser()),
+        dictionaries.actions().resolve(connection, entry.getAction()),
+        labelIds,
+        compress ? EntryCodec.encode(entry.getEntry()) : null,
+        EntryTerms.of(entry.getEntry())
+      ));
+    }
+    return encodedEntries;
+  }
+
+  private void insert(Connection connection, List<EncodedEntry> batch) throws SQLException {
+    // a batch usually belongs to a single partition, except around the turn of a month
+    Map<Partition, List<EncodedEntry>> entriesByPartition = new LinkedHashMap<>();
+    for (EncodedEntry entry : batch) {
+      entriesByPartition.computeIfAbsent(entry.getPartition(), partition -> new ArrayList<>()).add(entry);
+    }
+    for (Map.Entry<Partition, List<EncodedEntry>> partitionEntries : entriesByPartition.entrySet()) {
+      insert(connection, partitionEntries.getKey(), partitionEntries.getValue());
+    }
+  }
+
+  private void insert(Connection connection, Partition partition, List<EncodedEntry> batch) throws SQLException {
+    try (PreparedStatement entryStatement = connection.prepareStatement(String.format(INSERT_ENTRY, partition.getAuditTable()));
+         PreparedStatement labelStatement = connection.prepareStatement(String.format(INSERT_LABEL, partition.getLabelsTable()));
+         PreparedStatement termStatement = connection.prepareStatement(String.format(INSERT_TERM, partition.getTermsTable()))) {
+      boolean hasLabels = false;
+      boolean hasTerms = false;
+      for (EncodedEntry entry : batch) {
+        entryStatement.setLong(1, entry.getId());
+        entryStatement.setTimestamp(2, new Timestamp(entry.getEntry().getTimestamp().toEpochMilli()));
+        entryStatement.setObject(3, entry.getEntityId(), Types.INTEGER);
+        entryStatement.setObject(4, entry.getUserId(), Types.INTEGER);
+        entryStatement.setObject(5, entry.getActionId(), Types.INTEGER);
+        if (entry.getCompressedEntry() != null) {
+          entryStatement.setNull(6, Types.VARCHAR);
+          entryStatement.setBytes(7, entry.getCompressedEntry());
+        } else {
+          entryStatement.setString(6, entry.getEntry().getEntry());
+          entryStatement.setNull(7, Types.BLOB);
+        }
+        entryStatement.addBatch();
+
+        for (int labelId : entry.getLabelIds()) {
+          labelStatement.setLong(1, entry.getId());
+          labelStatement.setInt(2, labelId);
+          labelStatement.addBatch();
+          hasLabels = true;
+        }
+
+        // the full text index is written in the same transaction, so that it always matches the entries
+        for (String term : entry.getTerms()) {
+          termStatement.setLong(1, entry.getId());
+          termStatement.setString(2, term);
+          termStatement.addBatch();
+          hasTerms = true;
+        }
+      }
+      entryStatement.executeBatch();
+      if (hasLabels) {
+        labelStatement.executeBatch();
+      }
+      if (hasTerms) {
+        termStatement.executeBatch();
+      }
+    }
+    EntryCounters.add(connection, partition, batch.stream().map(EncodedEntry::getId).collect(toList()));
+  }
+
+  @Override
+  public void read(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer) {
+    query(filterContext, consumer, false);
+  }
+
+  @Override
+  public void stream(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer) {
+    query(filterContext, consumer, true);
+  }
+
+  private void query(AuditLogFilterContext filterContext, Consumer<LogEntry> consumer, boolean stream) {
+    List<Partition> matchingPartitions = partitions.intersecting(filterContext.getFrom(), filterContext.getTo());
+    try (Connection connection = database.getConnection()) {
+      if (stream) {
+        // Without lazy execution h2 materializes the whole result before the first row is returned
+        setLazyQueryExecution(connection, true);
+      }
+      try {
+        if (filterContext.getAfterId() != null) {
+          queryNewerEntries(connection, filterContext, matchingPartitions, consumer);
+        } else {
+          queryOlderEntries(connection, filterContext, matchingPartitions, consumer, stream);
+        }
+      } finally {
+        if (stream) {
+          setLazyQueryExecution(connection, false);
+        }
+      }
+    } catch (SQLException e) {
+      throw new AuditLogException("Failed to read audit log", e);
+    }
+  }
+
+  /**
+   * Reads a page in descending order. The partitions are ordered from the newest to the oldest one,
+   * so the page is filled partition by partition and the remaining partitions are not queried at all.
+   * The archive is only read, if the page reaches beyond the oldest partition.
+   */
+  private void queryOlderEntries(Connection connection, AuditLogFilterContext filterContext, List<Partition> matchingPartitions, Consumer<LogEntry> consumer, boolean stream) throws SQLException {
+    int remaining = filterContext.getReadLimit();
+    long skip = filterContext.hasCursor() ? 0 : (long) (filterContext.getPageNumber() - 1) * filterContext.getLimit();
+    for (Partition partition : matchingPartitions) {
+      if (remaining <= 0) {
+        break;
+      }
+      if (skip > 0) {
+        int count = count(connection, filterContext, partition);
+        if (count <= skip) {
+          skip -= count;
+          continue;
+        }
+      }
+      boolean unencoded = isUnencoded(partition);
+      List<Filters.AppliedFilter> appliedFilters = resolveAppliedFiltersWithCursor(filterContext, partition, unencoded);
+      String query = createEntriesQuery(filterContext, appliedFilters, partition, unencoded, remaining, skip);
+      remaining -= read(connection, query, appliedFilters, unencoded, consumer, stream);
+      skip = 0;
+    }
+    if (remaining > 0) {
+      archive.readOlder(filterContext, skip, remaining, consumer);
+    }
+  }
+
+  /**
+   * Reads the page after the cursor in ascending order starting with the archive and the oldest partition
+   * and passes it to the consumer in descending order.
+   */
+  private void queryNewerEntries(Connection connection, AuditLogFilterContext filterContext, List<Partition> matchingPartitions, Consumer<LogEntry> consumer) throws SQLException {
+    List<LogEntry> page = new ArrayList<>(archive.readNewer(filterContext, filterContext.getReadLimit()));
+    for (Partition partition : Lists.reverse(matchingPartitions)) {
+      int remaining = filterContext.getReadLimit() - page.size();
+      if (remaining <= 0) {
+        break;
+      }
+      boolean unencoded = isUnencoded(partition);
+      List<Filters.AppliedFilter> appliedFilters = resolveAppliedFiltersWithCursor(filterContext, partition, unencoded);
+      read(connection, createEntriesQuery(filterContext, appliedFilters, partition, unencoded, remaining, 0), appliedFilters, unencoded, page::add, false);
+    }
+    Lists.reverse(page).forEach(consumer);
+  }
+
+  private int read(Connection connection, String query, List<Filters.AppliedFilter> appliedFilters, boolean unencoded, Consumer<LogEntry> consumer, boolean stream) throws SQLException {
+    int read = 0;
+    try (PreparedStatement statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+      if (stream) {
+        statement.setFetchSize(STREAM_FETCH_SIZE);
+      }
+      setFilterValues(statement, appliedFilters);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          consumer.accept(readEntry(resultSet, unencoded));
+          read++;
+        }
+      }
+    }
+    return read;
+  }
+
+  private void setLazyQueryExecution(Connection connection, boolean lazy) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("SET LAZY_QUERY_EXECUTION " + lazy);
+    }
+  }
+
+  @Override
+  public long count(AuditLogFilterContext filterContext) {
+    try (Connection connection = database.getConnection()) {
+      long total = archive.count(filterContext);
+      // the entries are scanned, until the existing entries have been counted in the background
+      if (database.isApplied(SchemaMigrations.COUNT_EXISTING_ENTRIES) && EntryCounters.canCount(filterContext)) {
+        return total + countWithCounters(connection, filterContext);
+      }
+      for (Partition partition : partitions.intersecting(filterContext.getFrom(), filterContext.getTo())) {
+        total += count(connection, filterContext, partition);
+      }
+      return total;
+    } catch (SQLException e) {
+      throw new AuditLogException("Failed to count audit log entries", e);
+    }
+  }
+
+  private long countWithCounters(Connection connection, AuditLogFilterContext filterContext) throws SQLException {
+    Integer labelId = null;
+    if (filterContext.getLabel() != null) {
+      labelId = dictionaries.labels().idOf(normalizeValue(filterContext.getLabel()));
+      if (labelId == null) {
+        return 0;
+      }
+    }
+    Integer actionId = null;
+    if (filterContext.getAction() != null) {
+      actionId = dictionaries.actions().idOf(normalizeValue(filterContext.getAction()));
+      if (actionId == null) {
+        return 0;
+      }
+    }
+    return EntryCounters.count(connection, partitions.getAll(), filterContext, labelId, actionId);
+  }
+
+  private int count(Connection connection, AuditLogFilterContext filterContext, Partition partition) throws SQLException {
+    List<Filters.AppliedFilter> appliedFilters = resolveAppliedFilters(filterContext, partition, isUnencoded(partition));
+    try (PreparedStatement statement = connection.prepareStatement(createCountQuery(appliedFilters, partition))) {
+      setFilterValues(statement, appliedFilters);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        resultSet.next();
+        return resultSet.getInt("total");
+      }
+    }
+  }
+
+  /**
+   * Returns {@code true}, if the partition may still contain existing rows with strings instead of ids.
+   * The string columns are kept after the encoding, so a query which has been prepared just before
+   * the end of the migration still finds them.
+   */
+  private boolean isUnencoded(Partition partition) {
+    return partition.isLegacy() && !database.isApplied(SchemaMigrations.ENCODE_EXISTING_ENTRIES);
+  }
+
+  @Override
+  public boolean isComplete(AuditLogFilterContext filterContext) {
+    // existing entries are only found by a search, after their terms have been added to the full text index
+    return filterContext.getQuery() == null || database.isApplied(SchemaMigrations.INDEX_EXISTING_TERMS);
+  }
+
+  @Override
+  public Set<String> getLabels() {
+    return dictionaries.getLabels();
+  }
+
+  @Override
+  public boolean isClosed() {
+    return database.isClosed();
+  }
+
+  @Override
+  public void close() {
+    database.close();
+  }
+
+  private LogEntry readEntry(ResultSet resultSet, boolean unencoded) throws SQLException {
+    LogEntry logEntry = new LogEntry();
+    logEntry.setId(resultSet.getLong("ID"));
+    logEntry.setEntity(dictionaries.entities().valueOf(resultSet, "ENTITY_ID"));
+    logEntry.setUser(dictionaries.users().valueOf(resultSet, "USER_ID"));
+    logEntry.setAction(dictionaries.actions().valueOf(resultSet, "ACTION_ID"));
+    if (unencoded) {
+      // existing rows have strings instead of ids, until they are encoded
+      logEntry.setEntity(orString(logEntry.getEntity(), resultSet, "ENTITY"));
+      logEntry.setUser(orString(logEntry.getUser(), resultSet, "USERNAME"));
+      logEntry.setAction(orString(logEntry.getAction(), resultSet, "ACTION_"));
+    }
+    logEntry.setEntry(readEntryText(resultSet));
+    logEntry.setTimestamp(resultSet.getTimestamp("TIMESTAMP_").toInstant());
+    return logEntry;
+  }
+
+  private static String orString(String value, ResultSet resultSet, String column) throws SQLException {
+    return value != null ? value : resultSet.getString(column);
+  }
+
+  private static String readEntryText(ResultSet resultSet) throws SQLException {
+    String entry = resultSet.getString("ENTRY");
+    if (entry != null) {
+      return entry;
+    }
+    // compressed entries are only decoded for the rows which are actually returned
+    byte[] data = resultSet.getBytes("ENTRY_DATA");
+    return data != null ? EntryCodec.decode(data) : null;
+  }
+
+  @Getter
+  @AllArgsConstructor
+  private static class EncodedEntry {
+    private final PendingEntry entry;
+    private final long id;
+    private final Partition partition;
+    private final Integer entityId;
+    private final Integer userId;
+    private final Integer actionId;
+    private final int[] labelIds;
+    private final byte[] compressedEntry;
+    private final Set<String> terms;
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import com.google.common.annotations.VisibleForTesting;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import sonia.scm.SCMContextProvider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal for rendered entries, which have been handed to the {@link AuditLogWriter}, but have not been
+ * written to the database yet. Entries are appended to memory mapped segment files, which only costs a copy into the
+ * page cache. After the writer has committed a batch, the batch is acknowledged by moving the checkpoint forward.
+ * Entries after the checkpoint are replayed on the next start, so queued entries are not lost, if the server is
+ * killed.
+ * <p>
+ * A record consists of its length, the CRC32 checksum of its data and the data itself. The unused rest of a segment
+ * is zero, so a length of 0 marks the end of the records. A record with a wrong checksum is treated as the end, too,
+ * because it can only be the incomplete last record.
+ */
+@Slf4j
+@Singleton
+class Journal {
+
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final int SEGMENT_SIZE = 8 * 1024 * 1024;
+  private static final int RECORD_HEADER = 2 * Integer.BYTES;
+
+  private final Path directory;
+  private final Deque<Position> unacknowledged = new ArrayDeque<>();
+  /**
+   * Guards the checkpoint file, which is written outside of the monitor of the journal, so that appending new
+   * entries does not wait for it.
+   */
+  private final Object checkpointLock = new Object();
+
+  private MappedByteBuffer segment;
+  private long segmentNumber;
+  private boolean closed;
+
+  private FileChannel checkpoint;
+  private long checkpointSegment;
+
+  @Inject
+  Journal(SCMContextProvider contextProvider, AuditLogConfiguration configuration) {
+    this(configuration.isJournal() ? contextProvider.getBaseDirectory().toPath().resolve("audit-log").resolve("journal") : null);
+  }
+
+  @VisibleForTesting
+  Journal(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns a journal, which does not store anything.
+   */
+  static Journal disabled() {
+    return new Journal((Path) null);
+  }
+
+  /**
+   * Forces the appended entries to disk and stops appending new ones. Batches, which are still written, are
+   * acknowledged after this, so the writer has to be stopped before (see {@link AuditLogShutdown}).
+   */
+  void close() {
+    synchronized (this) {
+      if (segment != null) {
+        segment.force();
+      }
+      closed = true;
+    }
+    synchronized (checkpointLock) {
+      closeCheckpoint();
+    }
+  }
+
+  /**
+   * Reads all entries, which have not been acknowledged before the last shutdown. The entries stay in the journal,
+   * until they are acknowledged again. New entries are always appended to a new segment.
+   */
+  synchronized List<PendingEntry> recover() {
+    List<PendingEntry> entries = new ArrayList<>();
+    if (directory == null) {
+      return entries;
+    }
+    try {
+      Files.createDirectories(directory);
+      TreeMap<Long, Path> segments = listSegments();
+      Position checkpoint = readCheckpoint();
+      for (Map.Entry<Long, Path> existing : segments.tailMap(checkpoint.segment, true).entrySet()) {
+        int offset = existing.getKey() == checkpoint.segment ? checkpoint.offset : 0;
+        recover(existing.getKey(), existing.getValue(), offset, entries);
+      }
+      segmentNumber = segments.isEmpty() ? 0 : segments.lastKey();
+    } catch (IOException e) {
+      log.error("Could not recover audit log journal in {}", directory, e);
+    }
+    if (!entries.isEmpty()) {
+      log.info("recovered {} audit log entries from journal", entries.size());
+    }
+    return entries;
+  }
+
+  private void recover(long number, Path file, int offset, List<PendingEntry> entries) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+    buffer.position(offset);
+    while (buffer.remaining() >= RECORD_HEADER) {
+      int length = buffer.getInt();
+      long checksum = Integer.toUnsignedLong(buffer.getInt());
+      if (length <= 0 || length > buffer.remaining()) {
+        break;
+      }
+      byte[] data = new byte[length];
+      buffer.get(data);
+      if (checksum(data) != checksum) {
+        log.warn("found corrupt record in audit log journal {}, ignoring the rest of the segment", file);
+        break;
+      }
+      entries.add(PendingEntry.readFrom(new DataInputStream(new ByteArrayInputStream(data))));
+      unacknowledged.add(new Position(number, buffer.position()));
+    }
+  }
+
+  /**
+   * Appends the entry to the journal.
+   */
+  synchronized void append(PendingEntry entry) throws IOException {
+    if (directory == null || closed) {
+      return;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+    entry.writeTo(new DataOutputStream(bytes));
+    byte[] data = bytes.toByteArray();
+    // keep space for the terminating zero length
+    int required = RECORD_HEADER + data.length + Integer.BYTES;
+    if (segment == null || segment.remaining() < required) {
+      openNextSegment(required);
+    }
+    segment.putInt(data.length);
+    segment.putInt((int) checksum(data));
+    segment.put(data);
+    unacknowledged.add(new Position(segmentNumber, segment.position()));
+  }
+
+  private void openNextSegment(int required) throws IOException {
+    Files.createDirectories(directory);
+    segmentNumber++;
+    Path file = segmentFile(segmentNumber);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // the mapping stays valid after the channel has been closed, the new file is filled with zeros
+      segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(SEGMENT_SIZE, required));
+    }
+  }
+
+  /**
+   * Acknowledges the given number of the oldest entries, because they have been written to the database.
+   * Must only be called by the writer thread, so that the checkpoint never moves back.
+   */
+  void acknowledge(int count) {
+    // acknowledgements are still stored after the journal has been closed, otherwise written entries would be replayed
+    if (directory == null) {
+      return;
+    }
+    Position last = null;
+    synchronized (this) {
+      for (int i = 0; i < count && !unacknowledged.isEmpty(); i++) {
+        last = unacknowledged.poll();
+      }
+    }
+    if (last == null) {
+      return;
+    }
+    synchronized (checkpointLock) {
+      try {
+        writeCheckpoint(last);
+        // older segments can only be deleted, once the checkpoint has moved into a newer segment
+        if (last.segment > checkpointSegment) {
+          deleteSegmentsBefore(last.segment);
+          checkpointSegment = last.segment;
+        }
+      } catch (IOException e) {
+        log.warn("Could not update checkpoint of audit log journal in {}", directory, e);
+        closeCheckpoint();
+      }
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getUnacknowledged() {
+    return unacknowledged.size();
+  }
+
+  private void deleteSegmentsBefore(long number) throws IOException {
+    for (Map.Entry<Long, Path> existing : listSegments().headMap(number, false).entrySet()) {
+      try {
+        Files.deleteIfExists(existing.getValue());
+      } catch (IOException e) {
+        // segments may still be mapped on some platforms, they are deleted with one of the next checkpoints
+        log.debug("Could not delete audit log journal segment {}", existing.getValue(), e);
+      }
+    }
+  }
+
+  private TreeMap<Long, Path> listSegments() throws IOException {
+    TreeMap<Long, Path> segments = new TreeMap<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      files.forEach(file -> {
+        String name = file.getFileName().toString();
+        if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())), file);
+        }
+      });
+    }
+    return segments;
+  }
+
+  private Path segmentFile(long number) {
+    return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+  }
+
+  private Position readCheckpoint() throws IOException {
+    Path file = directory.resolve(CHECKPOINT_FILE);
+    if (!Files.exists(file)) {
+      return new Position(0, 0);
+    }
+    try (DataInputStream input = new DataInputStream(Files.newInputStream(file))) {
+      return new Position(input.readLong(), input.readInt());
+    }
+  }
+
+  private void writeCheckpoint(Position position) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+    buffer.putLong(position.segment).putInt(position.offset).flip();
+    if (checkpoint == null) {
+      checkpoint = FileChannel.open(directory.resolve(CHECKPOINT_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+    // the checkpoint has a fixed size, so it is overwritten in place
+    checkpoint.write(buffer, 0);
+  }
+
+  private void closeCheckpoint() {
+    if (checkpoint != null) {
+      try {
+        checkpoint.close();
+      } catch (IOException e) {
+        log.debug("Could not close checkpoint of audit log journal in {}", directory, e);
+      }
+      checkpoint = null;
+    }
+  }
+
+  private static long checksum(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  @AllArgsConstructor
+  private static class Position {
+    private final long segment;
+    private final int offset;
+  }
+}
@@ -28,9 +28,14 @@ import java.time.Instant;
 @NoArgsConstructor
 @AllArgsConstructor
 public class LogEntry {
+  private long id;
   private Instant timestamp;
   private String entity;
   private String user;
   private String action;
   private String entry;
+
+  public LogEntry(Instant timestamp, String entity, String user, String action, String entry) {
+    this(0, timestamp, entity, user, action, entry);
+  }
 }
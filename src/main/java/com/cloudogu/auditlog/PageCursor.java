@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import jakarta.ws.rs.BadRequestException;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque cursor for seek based paging. The cursor points to an entry and defines,
+ * whether the older or the newer entries relative to this entry are requested.
+ */
+@Getter
+@EqualsAndHashCode
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+class PageCursor {
+
+  private static final String BEFORE = "b";
+  private static final String AFTER = "a";
+
+  private final boolean before;
+  private final long id;
+
+  static PageCursor before(long id) {
+    return new PageCursor(true, id);
+  }
+
+  static PageCursor after(long id) {
+    return new PageCursor(false, id);
+  }
+
+  static PageCursor decode(String value) {
+    try {
+      String decoded = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+      String[] parts = decoded.split(":", 2);
+      if (parts.length == 2 && (BEFORE.equals(parts[0]) || AFTER.equals(parts[0]))) {
+        return new PageCursor(BEFORE.equals(parts[0]), Long.parseLong(parts[1]));
+      }
+    } catch (IllegalArgumentException e) {
+      // NumberFormatException is an IllegalArgumentException, too
+      throw new BadRequestException("invalid cursor " + value, e);
+    }
+    throw new BadRequestException("invalid cursor " + value);
+  }
+
+  String encode() {
+    String value = (before ? BEFORE : AFTER) + ":" + id;
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  void applyTo(AuditLogFilterContext filterContext) {
+    if (before) {
+      filterContext.setBeforeId(id);
+    } else {
+      filterContext.setAfterId(id);
+    }
+  }
+}
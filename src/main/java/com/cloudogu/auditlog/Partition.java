@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.time.Instant;
+
+/**
+ * A table of audit log entries together with its label and full text index tables, which holds all entries of a time range.
+ */
+@Getter
+@EqualsAndHashCode
+@AllArgsConstructor
+class Partition {
+
+  /**
+   * Position in the catalog. Partitions created later hold entries with higher ids.
+   */
+  private final int position;
+  private final String auditTable;
+  private final String labelsTable;
+  private final String termsTable;
+  /**
+   * Inclusive start of the time range or {@code null}, if the range is open.
+   */
+  private final Instant start;
+  /**
+   * Exclusive end of the time range or {@code null}, if the range is open.
+   */
+  private final Instant end;
+
+  /**
+   * Returns {@code true} for the partition of the entries, which have been written before the partitioning
+   * (see {@link PartitionMigration}). Its existing rows have strings instead of ids, until they are encoded
+   * by {@link DictionaryMigration#encodeExistingEntries(java.sql.Connection)}.
+   */
+  boolean isLegacy() {
+    return "AUDITLOG".equals(auditTable);
+  }
+
+  boolean intersects(Instant from, Instant to) {
+    return (to == null || start == null || start.isBefore(to))
+      && (from == null || end == null || end.isAfter(from));
+  }
+
+  /**
+   * Returns {@code true}, if all entries of the partition are at or after the given (inclusive) lower bound.
+   */
+  boolean startsAtOrAfter(Instant from) {
+    return start != null && !start.isBefore(from);
+  }
+
+  /**
+   * Returns {@code true}, if all entries of the partition are before the given (exclusive) upper bound.
+   */
+  boolean endsAtOrBefore(Instant to) {
+    return end != null && !end.isAfter(to);
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Introduces the partition catalog. The existing tables AUDITLOG and LABELS are kept as they are and are
+ * registered as the oldest partition, so that no entries have to be copied. Empty tables are dropped instead.
+ * Every step can be repeated, so that the migration can be continued if it was interrupted.
+ */
+class PartitionMigration {
+
+  private PartitionMigration() {
+  }
+
+  static void apply(Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE IF NOT EXISTS " + Partitions.CATALOG_TABLE + "(ID int auto_increment primary key, AUDIT_TABLE varchar not null unique, LABELS_TABLE varchar not null, START_MILLIS bigint, END_MILLIS bigint)");
+      if (!tableExists(connection, "AUDITLOG")) {
+        statement.execute("CREATE SEQUENCE IF NOT EXISTS " + Partitions.ID_SEQUENCE + " START WITH 1");
+        return;
+      }
+      long count;
+      long maxId;
+      long start = 0;
+      long end = 0;
+      try (ResultSet resultSet = statement.executeQuery("SELECT COUNT(*), COALESCE(MAX(ID), 0), MIN(TIMESTAMP_), MAX(TIMESTAMP_) FROM AUDITLOG")) {
+        resultSet.next();
+        count = resultSet.getLong(1);
+        maxId = resultSet.getLong(2);
+        if (count > 0) {
+          start = resultSet.getTimestamp(3).getTime();
+          end = resultSet.getTimestamp(4).getTime() + 1;
+        }
+      }
+      // new ids have to be greater than the existing ones to keep the order of the entries
+      statement.execute("CREATE SEQUENCE IF NOT EXISTS " + Partitions.ID_SEQUENCE + " START WITH " + (maxId + 1));
+      if (count == 0) {
+        statement.execute("DROP TABLE IF EXISTS LABELS");
+        statement.execute("DROP TABLE IF EXISTS AUDITLOG");
+      } else {
+        register(connection, start, end);
+      }
+    }
+  }
+
+  private static void register(Connection connection, long start, long end) throws SQLException {
+    try (PreparedStatement statement = connection.prepareStatement(
+      "MERGE INTO " + Partitions.CATALOG_TABLE + "(AUDIT_TABLE, LABELS_TABLE, START_MILLIS, END_MILLIS) KEY(AUDIT_TABLE) VALUES ('AUDITLOG', 'LABELS', ?, ?)")) {
+      statement.setLong(1, start);
+      statement.setLong(2, end);
+      statement.executeUpdate();
+    }
+  }
+
+  /**
+   * Creates the indexes of all partitions, which have been registered by the migration.
+   */
+  static void createIndexes(Connection connection) throws SQLException {
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT AUDIT_TABLE, LABELS_TABLE FROM " + Partitions.CATALOG_TABLE)) {
+      while (resultSet.next()) {
+        Partitions.createIndexes(connection, resultSet.getString(1), resultSet.getString(2));
+      }
+    }
+  }
+
+  private static boolean tableExists(Connection connection, String table) throws SQLException {
+    try (ResultSet tables = connection.getMetaData().getTables(null, null, table, null)) {
+      return tables.next();
+    }
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * The catalog of the audit log partitions. Every month of entries is stored in its own set of tables
+ * ({@code AUDITLOG_yyyy_MM}, {@code LABELS_yyyy_MM} and {@code TERMS_yyyy_MM}), so that queries only touch the
+ * months of the requested time range and old months can be dropped as a whole. Ids are taken from a sequence shared
+ * by all partitions, so they are unique and increase from older to newer partitions. Late entries are written into the
+ * newest partition, whose time range is extended accordingly (see {@link #resolve(Connection, Instant)}).
+ * <p>
+ * Schema migrations which change the structure of the audit log have to change all tables of the catalog.
+ */
+@Slf4j
+@Singleton
+class Partitions {
+
+  static final String CATALOG_TABLE = "AUDITLOG_PARTITIONS";
+  static final String ID_SEQUENCE = "AUDITLOG_ID_SEQ";
+
+  private static final Comparator<Partition> NEWEST_FIRST = Comparator.comparingInt(Partition::getPosition).reversed();
+
+  private volatile List<Partition> partitions;
+
+  @Inject
+  Partitions(AuditLogDatabase database) {
+    try (Connection connection = database.getConnection()) {
+      partitions = load(connection);
+    } catch (SQLException e) {
+      throw new AuditLogException("Failed to read audit log partitions", e);
+    }
+  }
+
+  private static List<Partition> load(Connection connection) throws SQLException {
+    List<Partition> result = new ArrayList<>();
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT * FROM " + CATALOG_TABLE)) {
+      while (resultSet.next()) {
+        result.add(new Partition(
+          resultSet.getInt("ID"),
+          resultSet.getString("AUDIT_TABLE"),
+          resultSet.getString("LABELS_TABLE"),
+          resultSet.getString("TERMS_TABLE"),
+          readInstant(resultSet, "START_MILLIS"),
+          readInstant(resultSet, "END_MILLIS")
+        ));
+      }
+    }
+    result.sort(NEWEST_FIRST);
+    return Collections.unmodifiableList(result);
+  }
+
+  private static Instant readInstant(ResultSet resultSet, String column) throws SQLException {
+    long millis = resultSet.getLong(column);
+    return resultSet.wasNull() ? null : Instant.ofEpochMilli(millis);
+  }
+
+  /**
+   * Returns all partitions, the newest first.
+   */
+  List<Partition> getAll() {
+    return partitions;
+  }
+
+  /**
+   * Returns the partitions, which may contain entries of the given time range, the newest first.
+   */
+  List<Partition> intersecting(Instant from, Instant to) {
+    return partitions.stream()
+      .filter(partition -> partition.intersects(from, to))
+      .collect(toList());
+  }
+
+  /**
+   * Returns the partition for entries with the given timestamp and creates it, if it does not exist yet.
+   * Must only be called by the writer thread and outside of transactions, because tables may be created.
+   * <p>
+   * Ids have to increase with the position of the partitions, because paging and cursors read the partitions one
+   * after another. Entries, which are older than the newest partition, e.g. entries replayed from the journal or the
+   * overflow file or written with a clock behind the others, are therefore written into the newest partition, whose
+   * start is moved back to cover them. This way a month, which has already been dropped by the retention or moved
+   * into the archive, is never created again.
+   */
+  Partition resolve(Connection connection, Instant timestamp) throws SQLException {
+    if (!partitions.isEmpty()) {
+      Partition newest = partitions.get(0);
+      if (newest.getEnd() == null || timestamp.isBefore(newest.getEnd())) {
+        if (newest.getStart() != null && timestamp.isBefore(newest.getStart())) {
+          return extend(connection, newest, timestamp);
+        }
+        return newest;
+      }
+    }
+    YearMonth month = YearMonth.from(timestamp.atOffset(ZoneOffset.UTC));
+    String suffix = String.format("%04d_%02d", month.getYear(), month.getMonthValue());
+    return create(
+      connection,
+      "AUDITLOG_" + suffix,
+      "LABELS_" + suffix,
+      "TERMS_" + suffix,
+      month.atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC),
+      month.plusMonths(1).atDay(1).atStartOfDay().toInstant(ZoneOffset.UTC)
+    );
+  }
+
+  private synchronized Partition extend(Connection connection, Partition partition, Instant start) throws SQLException {
+    log.debug("moving start of audit log partition {} back to {}", partition.getAuditTable(), start);
+    try (PreparedStatement statement = connection.prepareStatement("UPDATE " + CATALOG_TABLE + " SET START_MILLIS = ? WHERE ID = ?")) {
+      statement.setLong(1, start.toEpochMilli());
+      statement.setInt(2, partition.getPosition());
+      statement.executeUpdate();
+    }
+    partitions = load(connection);
+    return find(partition.getAuditTable());
+  }
+
+  private synchronized Partition create(Connection connection, String auditTable, String labelsTable, String termsTable, Instant start, Instant end) throws SQLException {
+    log.info("creating audit log partition {}", auditTable);
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE IF NOT EXISTS " + auditTable + "(ID bigint primary key, TIMESTAMP_ timestamp, ENTITY_ID int, USER_ID int, ACTION_ID int, ENTRY varchar, ENTRY_DATA blob)");
+      statement.execute("CREATE TABLE IF NOT EXISTS " + labelsTable + "(AUDIT bigint, LABEL_ID int)");
+    }
+    createIndexes(connection, auditTable, labelsTable);
+    createTermsTable(connection, termsTable);
+    // new partitions are empty, so their entries are counted from the start
+    try (PreparedStatement statement = connection.prepareStatement(
+      "MERGE INTO " + CATALOG_TABLE + "(AUDIT_TABLE, LABELS_TABLE, TERMS_TABLE, START_MILLIS, END_MILLIS, COUNTED) KEY(AUDIT_TABLE) VALUES (?, ?, ?, ?, ?, TRUE)")) {
+      statement.setString(1, auditTable);
+      statement.setString(2, labelsTable);
+      statement.setString(3, termsTable);
+      statement.setLong(4, start.toEpochMilli());
+      statement.setLong(5, end.toEpochMilli());
+      statement.executeUpdate();
+    }
+    partitions = load(connection);
+    return find(auditTable);
+  }
+
+  private Partition find(String auditTable) throws SQLException {
+    return partitions.stream()
+      .filter(partition -> partition.getAuditTable().equals(auditTable))
+      .findFirst()
+      .orElseThrow(() -> new SQLException("partition " + auditTable + " is missing in catalog"));
+  }
+
+  /**
+   * Hides the partition from readers without removing it from the catalog, e.g. while its entries become
+   * visible somewhere else. The partition has to be dropped afterwards or restored with {@link #reload(Connection)}.
+   */
+  synchronized void hide(Partition partition) {
+    partitions = Collections.unmodifiableList(
+      partitions.stream()
+        .filter(p -> p.getPosition() != partition.getPosition())
+        .collect(toList())
+    );
+  }
+
+  /**
+   * Reads the partitions from the catalog again.
+   */
+  synchronized void reload(Connection connection) throws SQLException {
+    partitions = load(connection);
+  }
+
+  /**
+   * Removes the partition from the catalog and drops its tables.
+   */
+  synchronized void drop(Connection connection, Partition partition) throws SQLException {
+    log.info("dropping audit log partition {}", partition.getAuditTable());
+    hide(partition);
+    try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + CATALOG_TABLE + " WHERE ID = ?")) {
+      statement.setInt(1, partition.getPosition());
+      statement.executeUpdate();
+    }
+    EntryCounters.remove(connection, partition);
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("DROP TABLE IF EXISTS " + partition.getTermsTable());
+      statement.execute("DROP TABLE IF EXISTS " + partition.getLabelsTable());
+      statement.execute("DROP TABLE IF EXISTS " + partition.getAuditTable());
+    }
+  }
+
+  /**
+   * Reserves the given number of ids for new entries in ascending order.
+   */
+  long[] nextIds(Connection connection, int count) throws SQLException {
+    long[] ids = new long[count];
+    try (PreparedStatement statement = connection.prepareStatement("SELECT NEXT VALUE FOR " + ID_SEQUENCE + " FROM SYSTEM_RANGE(1, ?)")) {
+      statement.setInt(1, count);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        for (int i = 0; i < count; i++) {
+          if (!resultSet.next()) {
+            throw new SQLException("could not reserve ids for audit log entries");
+          }
+          ids[i] = resultSet.getLong(1);
+        }
+      }
+    }
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  static void createIndexes(Connection connection, String auditTable, String labelsTable) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE INDEX IF NOT EXISTS IDX_" + labelsTable + "_AUDIT ON " + labelsTable + "(AUDIT)");
+      statement.execute("CREATE INDEX IF NOT EXISTS IDX_" + labelsTable + "_LABEL_ID_AUDIT ON " + labelsTable + "(LABEL_ID, AUDIT)");
+      // with the id, the retention can page through entries with equal timestamps (see RetentionJob)
+      statement.execute("CREATE INDEX IF NOT EXISTS IDX_" + auditTable + "_TIMESTAMP ON " + auditTable + "(TIMESTAMP_, ID)");
+      statement.execute("CREATE INDEX IF NOT EXISTS IDX_" + auditTable + "_ACTION_ID ON " + auditTable + "(ACTION_ID)");
+      statement.execute("CREATE INDEX IF NOT EXISTS IDX_" + auditTable + "_ENTITY_ID ON " + auditTable + "(ENTITY_ID)");
+      statement.execute("CREATE INDEX IF NOT EXISTS IDX_" + auditTable + "_USER_ID ON " + auditTable + "(USER_ID)");
+    }
+  }
+
+  /**
+   * Creates the table of the full text index, which maps the terms of {@link EntryTerms} to the ids of the entries.
+   */
+  static void createTermsTable(Connection connection, String termsTable) throws SQLException {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE IF NOT EXISTS " + termsTable + "(AUDIT bigint, TERM varchar(" + EntryTerms.MAX_TERM_LENGTH + "))");
+      statement.execute("CREATE INDEX IF NOT EXISTS IDX_" + termsTable + "_TERM_AUDIT ON " + termsTable + "(TERM, AUDIT)");
+      statement.execute("CREATE INDEX IF NOT EXISTS IDX_" + termsTable + "_AUDIT ON " + termsTable + "(AUDIT)");
+    }
+  }
+}
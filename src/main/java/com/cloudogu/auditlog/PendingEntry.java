@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A rendered audit log entry, which has not been written to the database yet.
+ * All filterable values are already normalized to lower case.
+ */
+@Getter
+@AllArgsConstructor
+class PendingEntry {
+  private final Instant timestamp;
+  private final String entity;
+  private final String user;
+  private final String action;
+  private final String entry;
+  private final String[] labels;
+  /**
+   * Time the entry has been rendered, see {@link System#nanoTime()}.
+   */
+  private final long queuedNanos = System.nanoTime();
+
+  /**
+   * Writes the entry for the overflow file and the journal.
+   */
+  void writeTo(DataOutput output) throws IOException {
+    output.writeLong(timestamp.toEpochMilli());
+    writeString(output, entity);
+    writeString(output, user);
+    writeString(output, action);
+    writeString(output, entry);
+    output.writeInt(labels.length);
+    for (String label : labels) {
+      writeString(output, label);
+    }
+  }
+
+  static PendingEntry readFrom(DataInput input) throws IOException {
+    Instant timestamp = Instant.ofEpochMilli(input.readLong());
+    String entity = readString(input);
+    String user = readString(input);
+    String action = readString(input);
+    String entry = readString(input);
+    String[] labels = new String[input.readInt()];
+    for (int i = 0; i < labels.length; i++) {
+      labels[i] = readString(input);
+    }
+    return new PendingEntry(timestamp, entity, user, action, entry, labels);
+  }
+
+  private static void writeString(DataOutput output, String value) throws IOException {
+    if (value == null) {
+      output.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(UTF_8);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+    }
+  }
+
+  private static String readString(DataInput input) throws IOException {
+    int length = input.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
@@ -0,0 +1,536 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import jakarta.inject.Inject;
+import jakarta.inject.Provider;
+import jakarta.inject.Singleton;
+import jakarta.servlet.ServletContextEvent;
+import jakarta.servlet.ServletContextListener;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import sonia.scm.plugin.Extension;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Removes expired entries (see {@link RetentionPolicy}) and the oldest entries beyond the configured maximum
+ * number of entries. Partitions are dropped as a whole, if all of their entries have to be removed. Otherwise,
+ * the entries are deleted in small chunks of consecutive ids, each in its own transaction, so that the writer
+ * and the readers are never blocked for long. Segments of the {@link Archive} are immutable, so they are only
+ * deleted once all of their entries have expired. With the {@link FileAuditLogStore} only segments are deleted.
+ */
+@Slf4j
+@Extension
+@Singleton
+public class RetentionJob implements ServletContextListener {
+
+  private static final long INTERVAL_MINUTES = 60;
+
+  private final Provider<AuditLogDatabase> database;
+  private final Provider<Partitions> partitions;
+  private final Provider<Dictionaries> dictionaries;
+  private final AuditLogStore store;
+  private final Archive archive;
+  private final ScheduledExecutorService executor;
+  private final Clock clock;
+  private final boolean fileStore;
+  private final int retentionDays;
+  private final Map<String, Integer> retentionDaysByLabel;
+  private final long maxEntries;
+  private final int chunkSize;
+
+  private volatile boolean stopped;
+  // the earliest expiry of the last complete run; older entries which have been left are kept forever
+  private volatile Instant checkedExpiry;
+  // the highest id at the start of the last complete run; later entries may be older than its earliest expiry
+  private volatile long checkedId;
+
+  /**
+   * The database is only opened, if the entries are stored in the database.
+   */
+  @Inject
+  RetentionJob(Provider<AuditLogDatabase> database, Provider<Partitions> partitions, Provider<Dictionaries> dictionaries, AuditLogStore store, Archive archive, AuditLogConfiguration configuration) {
+    this(
+      database,
+      partitions,
+      dictionaries,
+      store,
+      archive,
+      configuration,
+      Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+          .setNameFormat("AuditLogRetention-%d")
+          .setDaemon(true)
+          .build()
+      ),
+      Clock.systemUTC()
+    );
+  }
+
+  @VisibleForTesting
+  RetentionJob(AuditLogDatabase database, Partitions partitions, Dictionaries dictionaries, AuditLogStore store, Archive archive, AuditLogConfiguration configuration, ScheduledExecutorService executor, Clock clock) {
+    this(() -> database, () -> partitions, () -> dictionaries, store, archive, configuration, executor, clock);
+  }
+
+  private RetentionJob(Provider<AuditLogDatabase> database, Provider<Partitions> partitions, Provider<Dictionaries> dictionaries, AuditLogStore store, Archive archive, AuditLogConfiguration configuration, ScheduledExecutorService executor, Clock clock) {
+    this.database = database;
+    this.partitions = partitions;
+    this.dictionaries = dictionaries;
+    this.store = store;
+    this.archive = archive;
+    this.executor = executor;
+    this.clock = clock;
+    this.fileStore = configuration.getStore() == AuditLogConfiguration.StoreType.FILE;
+    this.retentionDays = configuration.getRetentionDays();
+    this.retentionDaysByLabel = configuration.getRetentionDaysByLabel();
+    this.maxEntries = configuration.getRetentionMaxEntries();
+    this.chunkSize = Math.max(1, configuration.getRetentionChunkSize());
+  }
+
+  @Override
+  public void contextInitialized(ServletContextEvent servletContextEvent) {
+    if (retentionDays > 0 || !retentionDaysByLabel.isEmpty() || maxEntries > 0) {
+      executor.scheduleWithFixedDelay(this::run, 1, INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent servletContextEvent) {
+    stopped = true;
+    executor.shutdownNow();
+  }
+
+  private void run() {
+    try {
+      long removed = purge();
+      if (removed > 0) {
+        log.info("removed {} audit log entries", removed);
+      }
+    } catch (SQLException | IOException | RuntimeException e) {
+      log.warn("Could not remove expired audit log entries", e);
+    }
+  }
+
+  /**
+   * Removes expired and excess entries and returns the number of removed entries.
+   */
+  @VisibleForTesting
+  long purge() throws SQLException, IOException {
+    Instant now = clock.instant();
+    RetentionPolicy policy = new RetentionPolicy(now, retentionDays, retentionDaysByLabel, store.getLabels());
+    if (fileStore) {
+      return purgeFileStore(policy);
+    }
+    if (!database.get().isApplied(SchemaMigrations.ENCODE_EXISTING_ENTRIES)) {
+      // the labels of entries without dictionary ids are unknown, so their retention could be too short
+      log.debug("existing entries are still encoded, removing entries is postponed");
+      return 0;
+    }
+    if (!database.get().isApplied(SchemaMigrations.COUNT_EXISTING_ENTRIES)) {
+      // entries, which are removed before they have been counted, would be subtracted from the counters of others
+      log.debug("existing entries are still counted, removing entries is postponed");
+      return 0;
+    }
+    long removed = 0;
+    try (Connection connection = database.get().getConnection()) {
+      if (policy.isActive()) {
+        removed += purgeExpiredSegments(policy);
+        removed += purgeExpiredEntries(connection, policy);
+      }
+      if (maxEntries > 0) {
+        removed += purgeExcessEntries(connection, now);
+      }
+      dropEmptyPartitions(connection, now);
+    }
+    return removed;
+  }
+
+  /**
+   * The file store only removes whole segments of the archive. The entries of its log file are too new to
+   * have expired and are sealed into a segment, before they can be removed.
+   */
+  private long purgeFileStore(RetentionPolicy policy) throws IOException {
+    long removed = 0;
+    if (policy.isActive()) {
+      removed += purgeExpiredSegments(policy);
+    }
+    if (maxEntries > 0) {
+      removed += purgeExcessSegments();
+    }
+    return removed;
+  }
+
+  /**
+   * Deletes the oldest segments, as long as all of their entries are beyond the maximum. Segments are immutable,
+   * so up to one segment more than the maximum is kept.
+   */
+  private long purgeExcessSegments() throws IOException {
+    long excess = store.count(new AuditLogFilterContext()) - maxEntries;
+    long removed = 0;
+    for (Segment segment : Lists.reverse(archive.getAll())) {
+      if (stopped || segment.getCount() > excess) {
+        break;
+      }
+      archive.delete(segment);
+      excess -= segment.getCount();
+      removed += segment.getCount();
+    }
+    return removed;
+  }
+
+  private long purgeExpiredSegments(RetentionPolicy policy) throws IOException {
+    Instant expiryOfAll = policy.expiryOfAllEntries();
+    Instant expiryOfAny = policy.expiryOfAnyEntry();
+    long removed = 0;
+    for (Segment segment : Lists.reverse(archive.getAll())) {
+      if (stopped || !segment.getMinTimestamp().isBefore(expiryOfAny)) {
+        break;
+      }
+      if ((expiryOfAll != null && segment.getMaxTimestamp().isBefore(expiryOfAll))
+        || (segment.getMaxTimestamp().isBefore(expiryOfAny) && isExpired(segment, policy))) {
+        archive.delete(segment);
+        removed += segment.getCount();
+      }
+    }
+    return removed;
+  }
+
+  private boolean isExpired(Segment segment, RetentionPolicy policy) {
+    return segment.read(ArchiveFilter.of(new AuditLogFilterContext()), true,
+      entry -> policy.isExpired(entry.getTimestamp(), Arrays.asList(entry.getLabels()))
+    );
+  }
+
+  private long purgeExpiredEntries(Connection connection, RetentionPolicy policy) throws SQLException {
+    Instant expiryOfAll = policy.expiryOfAllEntries();
+    Instant expiryOfAny = policy.expiryOfAnyEntry();
+    Map<Integer, String> labels = new HashMap<>();
+    for (String label : policy.getLabels()) {
+      Integer id = dictionaries.get().labels().idOf(label);
+      // a label without id has not been written to the database, e.g. it is only found in the archive
+      if (id != null) {
+        labels.put(id, label);
+      }
+    }
+    long maxId = maxId(connection);
+    long removed = 0;
+    for (Partition partition : Lists.reverse(partitions.get().getAll())) {
+      if (stopped) {
+        break;
+      }
+      if (expiryOfAll != null && partition.endsAtOrBefore(expiryOfAll)) {
+        removed += drop(connection, partition);
+      } else if (partition.getStart() == null || partition.getStart().isBefore(expiryOfAny)) {
+        removed += deleteExpiredEntries(connection, partition, policy, labels, expiryOfAny);
+      }
+    }
+    if (!stopped) {
+      checkedId = maxId;
+      checkedExpiry = policy.earliestExpiry();
+    }
+    return removed;
+  }
+
+  /**
+   * Deletes the expired entries of a partition. Ids do not increase with the timestamps, because late entries are
+   * written into the newest partition (see {@link Partitions#resolve(Connection, Instant)}), so the entries are read
+   * in the order of their timestamps with the index on the column, until no more entries can have expired.
+   * <p>
+   * Entries before the earliest expiry of the last complete run are either gone or kept forever, because the
+   * configuration does not change while the job is running. So only the entries after it are read again, instead of
+   * the whole partition every hour, together with the late entries which have been written since the last run.
+   */
+  private long deleteExpiredEntries(Connection connection, Partition partition, RetentionPolicy policy, Map<Integer, String> policyLabels, Instant expiryOfAny) throws SQLException {
+    long removed = 0;
+    Instant from = checkedExpiry;
+    if (from != null) {
+      removed += deleteExpiredLateEntries(connection, partition, policy, policyLabels, from);
+    } else {
+      from = oldestTimestamp(connection, partition);
+      if (from == null) {
+        return 0;
+      }
+    }
+    Timestamp lastTimestamp = Timestamp.from(from);
+    long lastId = 0;
+    while (!stopped) {
+      Chunk chunk;
+      try (PreparedStatement statement = connection.prepareStatement(
+        "SELECT ID, TIMESTAMP_ FROM " + partition.getAuditTable() + " WHERE TIMESTAMP_ >= ? AND TIMESTAMP_ < ? AND (TIMESTAMP_ > ? OR ID > ?) " +
+          "ORDER BY TIMESTAMP_, ID LIMIT " + chunkSize)) {
+        statement.setTimestamp(1, lastTimestamp);
+        statement.setTimestamp(2, Timestamp.from(expiryOfAny));
+        statement.setTimestamp(3, lastTimestamp);
+        statement.setLong(4, lastId);
+        chunk = readChunk(statement);
+      }
+      if (chunk.ids.isEmpty()) {
+        break;
+      }
+      removed += deleteExpired(connection, partition, policy, policyLabels, chunk);
+      lastTimestamp = Timestamp.from(chunk.timestamps.get(chunk.ids.size() - 1));
+      lastId = chunk.ids.get(chunk.ids.size() - 1);
+    }
+    return removed;
+  }
+
+  /**
+   * Deletes the expired entries, which have been written since the last complete run with a timestamp
+   * before its earliest expiry, e.g. entries replayed from the journal.
+   */
+  private long deleteExpiredLateEntries(Connection connection, Partition partition, RetentionPolicy policy, Map<Integer, String> policyLabels, Instant checked) throws SQLException {
+    long removed = 0;
+    long lastId = checkedId;
+    while (!stopped) {
+      Chunk chunk;
+      try (PreparedStatement statement = connection.prepareStatement(
+        "SELECT ID, TIMESTAMP_ FROM " + partition.getAuditTable() + " WHERE ID > ? AND TIMESTAMP_ < ? ORDER BY ID LIMIT " + chunkSize)) {
+        statement.setLong(1, lastId);
+        statement.setTimestamp(2, Timestamp.from(checked));
+        chunk = readChunk(statement);
+      }
+      if (chunk.ids.isEmpty()) {
+        break;
+      }
+      removed += deleteExpired(connection, partition, policy, policyLabels, chunk);
+      lastId = chunk.ids.get(chunk.ids.size() - 1);
+    }
+    return removed;
+  }
+
+  private Chunk readChunk(PreparedStatement statement) throws SQLException {
+    Chunk chunk = new Chunk(new ArrayList<>(chunkSize), new ArrayList<>(chunkSize));
+    try (ResultSet resultSet = statement.executeQuery()) {
+      while (resultSet.next()) {
+        chunk.ids.add(resultSet.getLong("ID"));
+        chunk.timestamps.add(resultSet.getTimestamp("TIMESTAMP_").toInstant());
+      }
+    }
+    return chunk;
+  }
+
+  private long deleteExpired(Connection connection, Partition partition, RetentionPolicy policy, Map<Integer, String> policyLabels, Chunk chunk) throws SQLException {
+    Map<Long, List<String>> labels = readLabels(connection, partition, policyLabels, chunk.ids);
+    List<Long> expired = new ArrayList<>();
+    for (int i = 0; i < chunk.ids.size(); i++) {
+      if (policy.isExpired(chunk.timestamps.get(i), labels.getOrDefault(chunk.ids.get(i), Collections.emptyList()))) {
+        expired.add(chunk.ids.get(i));
+      }
+    }
+    delete(connection, partition, expired, false);
+    return expired.size();
+  }
+
+  private Instant oldestTimestamp(Connection connection, Partition partition) throws SQLException {
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT MIN(TIMESTAMP_) FROM " + partition.getAuditTable())) {
+      resultSet.next();
+      Timestamp timestamp = resultSet.getTimestamp(1);
+      return timestamp != null ? timestamp.toInstant() : null;
+    }
+  }
+
+  private long maxId(Connection connection) throws SQLException {
+    long maxId = 0;
+    for (Partition partition : partitions.get().getAll()) {
+      try (Statement statement = connection.createStatement();
+           ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(ID), 0) FROM " + partition.getAuditTable())) {
+        resultSet.next();
+        maxId = Math.max(maxId, resultSet.getLong(1));
+      }
+    }
+    return maxId;
+  }
+
+  /**
+   * Reads the labels with their own retention period of the given entries.
+   */
+  private Map<Long, List<String>> readLabels(Connection connection, Partition partition, Map<Integer, String> policyLabels, List<Long> ids) throws SQLException {
+    Map<Long, List<String>> labels = new HashMap<>();
+    if (policyLabels.isEmpty()) {
+      return labels;
+    }
+    String labelIds = policyLabels.keySet().stream().map(String::valueOf).collect(joining(","));
+    // the ids of a chunk are not consecutive, if it is read in the order of the timestamps
+    String auditIds = ids.stream().map(String::valueOf).collect(joining(","));
+    try (PreparedStatement statement = connection.prepareStatement(
+      "SELECT AUDIT, LABEL_ID FROM " + partition.getLabelsTable() + " WHERE LABEL_ID IN (" + labelIds + ") AND AUDIT IN (" + auditIds + ")")) {
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          labels.computeIfAbsent(resultSet.getLong("AUDIT"), id -> new ArrayList<>()).add(policyLabels.get(resultSet.getInt("LABEL_ID")));
+        }
+      }
+    }
+    return labels;
+  }
+
+  private long purgeExcessEntries(Connection connection, Instant now) throws SQLException {
+    long excess = -maxEntries;
+    for (Partition partition : partitions.get().getAll()) {
+      excess += count(connection, partition);
+    }
+    long removed = 0;
+    for (Partition partition : Lists.reverse(partitions.get().getAll())) {
+      if (excess <= 0 || stopped) {
+        break;
+      }
+      long count = count(connection, partition);
+      // the partition of the current month is never dropped, because the writer may still use it
+      if (count <= excess && partition.endsAtOrBefore(now)) {
+        removed += drop(connection, partition);
+        excess -= count;
+      } else {
+        long deleted = deleteOldestEntries(connection, partition, excess);
+        removed += deleted;
+        excess -= deleted;
+      }
+    }
+    return removed;
+  }
+
+  private long deleteOldestEntries(Connection connection, Partition partition, long count) throws SQLException {
+    long removed = 0;
+    while (removed < count && !stopped) {
+      List<Long> ids = new ArrayList<>(chunkSize);
+      try (Statement statement = connection.createStatement();
+           ResultSet resultSet = statement.executeQuery(
+             "SELECT ID FROM " + partition.getAuditTable() + " ORDER BY ID LIMIT " + Math.min(chunkSize, count - removed))) {
+        while (resultSet.next()) {
+          ids.add(resultSet.getLong("ID"));
+        }
+      }
+      if (ids.isEmpty()) {
+        break;
+      }
+      delete(connection, partition, ids, true);
+      removed += ids.size();
+    }
+    return removed;
+  }
+
+  /**
+   * Deletes the given ids. If they are all ids of the partition between the first and the last one,
+   * their range is deleted at once.
+   */
+  private void delete(Connection connection, Partition partition, List<Long> ids, boolean range) throws SQLException {
+    if (ids.isEmpty()) {
+      return;
+    }
+    connection.setAutoCommit(false);
+    try {
+      // the counters are decreased before the entries are gone, in the same transaction
+      if (range) {
+        EntryCounters.subtract(connection, partition, ids.get(0), ids.get(ids.size() - 1));
+        deleteRange(connection, partition, ids.get(0), ids.get(ids.size() - 1));
+      } else {
+        EntryCounters.subtract(connection, partition, ids);
+        deleteIds(connection, partition, ids);
+      }
+      connection.commit();
+    } catch (SQLException | RuntimeException e) {
+      connection.rollback();
+      throw e;
+    } finally {
+      connection.setAutoCommit(true);
+    }
+  }
+
+  private void deleteRange(Connection connection, Partition partition, long firstId, long lastId) throws SQLException {
+    try (PreparedStatement labels = connection.prepareStatement("DELETE FROM " + partition.getLabelsTable() + " WHERE AUDIT >= ? AND AUDIT <= ?");
+         PreparedStatement terms = connection.prepareStatement("DELETE FROM " + partition.getTermsTable() + " WHERE AUDIT >= ? AND AUDIT <= ?");
+         PreparedStatement entries = connection.prepareStatement("DELETE FROM " + partition.getAuditTable() + " WHERE ID >= ? AND ID <= ?")) {
+      labels.setLong(1, firstId);
+      labels.setLong(2, lastId);
+      labels.executeUpdate();
+      terms.setLong(1, firstId);
+      terms.setLong(2, lastId);
+      terms.executeUpdate();
+      entries.setLong(1, firstId);
+      entries.setLong(2, lastId);
+      entries.executeUpdate();
+    }
+  }
+
+  private void deleteIds(Connection connection, Partition partition, List<Long> ids) throws SQLException {
+    try (PreparedStatement labels = connection.prepareStatement("DELETE FROM " + partition.getLabelsTable() + " WHERE AUDIT = ?");
+         PreparedStatement terms = connection.prepareStatement("DELETE FROM " + partition.getTermsTable() + " WHERE AUDIT = ?");
+         PreparedStatement entries = connection.prepareStatement("DELETE FROM " + partition.getAuditTable() + " WHERE ID = ?")) {
+      for (Long id : ids) {
+        labels.setLong(1, id);
+        labels.addBatch();
+        terms.setLong(1, id);
+        terms.addBatch();
+        entries.setLong(1, id);
+        entries.addBatch();
+      }
+      labels.executeBatch();
+      terms.executeBatch();
+      entries.executeBatch();
+    }
+  }
+
+  private void dropEmptyPartitions(Connection connection, Instant now) throws SQLException {
+    for (Partition partition : partitions.get().getAll()) {
+      if (partition.endsAtOrBefore(now) && count(connection, partition) == 0) {
+        partitions.get().drop(connection, partition);
+      }
+    }
+  }
+
+  private long drop(Connection connection, Partition partition) throws SQLException {
+    long count = count(connection, partition);
+    partitions.get().drop(connection, partition);
+    return count;
+  }
+
+  private long count(Connection connection, Partition partition) throws SQLException {
+    try (Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + partition.getAuditTable())) {
+      resultSet.next();
+      return resultSet.getLong(1);
+    }
+  }
+
+  @AllArgsConstructor
+  private static class Chunk {
+    private final List<Long> ids;
+    private final List<Instant> timestamps;
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which entries have expired at a given point in time. Entries expire after the default retention
+ * period, unless they have a label with its own period. If an entry has several of these labels,
+ * the longest period applies. A period of 0 days keeps the entries forever.
+ */
+class RetentionPolicy {
+
+  private final Instant defaultExpiry;
+  private final Map<String, Instant> expiryByLabel = new HashMap<>();
+
+  RetentionPolicy(Instant now, int defaultDays, Map<String, Integer> daysByLabel, Set<String> usedLabels) {
+    this.defaultExpiry = expiry(now, defaultDays);
+    daysByLabel.forEach((label, days) -> {
+      // labels which have never been used cannot be found on any entry
+      if (usedLabels.contains(label)) {
+        expiryByLabel.put(label, expiry(now, days));
+      }
+    });
+  }
+
+  private static Instant expiry(Instant now, int days) {
+    return days > 0 ? now.minus(Duration.ofDays(days)) : null;
+  }
+
+  /**
+   * Returns {@code true}, if there may be any entries which expire.
+   */
+  boolean isActive() {
+    return defaultExpiry != null || expiryByLabel.values().stream().anyMatch(expiry -> expiry != null);
+  }
+
+  /**
+   * Returns the labels with their own retention period.
+   */
+  Set<String> getLabels() {
+    return expiryByLabel.keySet();
+  }
+
+  /**
+   * Returns the point in time before which every entry has expired regardless of its labels,
+   * or {@code null}, if some entries are kept forever.
+   */
+  Instant expiryOfAllEntries() {
+    if (defaultExpiry == null || expiryByLabel.containsValue(null)) {
+      return null;
+    }
+    Instant expiry = defaultExpiry;
+    for (Instant labelExpiry : expiryByLabel.values()) {
+      if (labelExpiry.isBefore(expiry)) {
+        expiry = labelExpiry;
+      }
+    }
+    return expiry;
+  }
+
+  /**
+   * Returns the point in time from which on no entry has expired, or {@code null}, if no entries expire.
+   */
+  Instant expiryOfAnyEntry() {
+    Instant expiry = defaultExpiry;
+    for (Instant labelExpiry : expiryByLabel.values()) {
+      if (labelExpiry != null && (expiry == null || labelExpiry.isAfter(expiry))) {
+        expiry = labelExpiry;
+      }
+    }
+    return expiry;
+  }
+
+  /**
+   * Returns the earliest point in time at which any entry expires, or {@code null}, if no entries expire.
+   * Entries before this point in time, which are not expired, are kept forever.
+   */
+  Instant earliestExpiry() {
+    Instant expiry = defaultExpiry;
+    for (Instant labelExpiry : expiryByLabel.values()) {
+      if (labelExpiry != null && (expiry == null || labelExpiry.isBefore(expiry))) {
+        expiry = labelExpiry;
+      }
+    }
+    return expiry;
+  }
+
+  boolean isExpired(Instant timestamp, Collection<String> labels) {
+    Instant expiry = defaultExpiry;
+    boolean overridden = false;
+    for (String label : labels) {
+      if (expiryByLabel.containsKey(label)) {
+        Instant labelExpiry = expiryByLabel.get(label);
+        if (labelExpiry == null) {
+          return false;
+        }
+        // the longest period wins, which is the earliest expiry
+        expiry = overridden && expiry.isBefore(labelExpiry) ? expiry : labelExpiry;
+        overridden = true;
+      }
+    }
+    return expiry != null && timestamp.isBefore(expiry);
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A single versioned change of the audit log database schema.
+ * Blocking migrations are applied before the database is used, background migrations
+ * are applied afterwards and must therefore be idempotent and must not change the
+ * structure the plugin relies on.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+class SchemaMigration {
+
+  private final int version;
+  private final String description;
+  private final boolean background;
+  private final Step step;
+
+  static SchemaMigration blocking(int version, String description, String... statements) {
+    return new SchemaMigration(version, description, false, execute(statements));
+  }
+
+  static SchemaMigration blocking(int version, String description, Step step) {
+    return new SchemaMigration(version, description, false, step);
+  }
+
+  static SchemaMigration background(int version, String description, String... statements) {
+    return new SchemaMigration(version, description, true, execute(statements));
+  }
+
+  static SchemaMigration background(int version, String description, Step step) {
+    return new SchemaMigration(version, description, true, step);
+  }
+
+  private static Step execute(String... statements) {
+    return connection -> {
+      try (Statement statement = connection.createStatement()) {
+        for (String sql : statements) {
+          statement.execute(sql);
+        }
+      }
+    };
+  }
+
+  @FunctionalInterface
+  interface Step {
+    void apply(Connection connection) throws SQLException;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import java.util.List;
+
+import static com.cloudogu.auditlog.SchemaMigration.background;
+import static com.cloudogu.auditlog.SchemaMigration.blocking;
+
+/**
+ * All schema migrations of the audit log database. New migrations must be appended with a higher version,
+ * existing migrations must never be changed.
+ */
+class SchemaMigrations {
+
+  /**
+   * Version of the background migration, which encodes the entries of the old schema with the dictionaries.
+   */
+  static final int ENCODE_EXISTING_ENTRIES = 8;
+  /**
+   * Version of the background migration, which adds the entries of the old schema to the full text index.
+   */
+  static final int INDEX_EXISTING_TERMS = 9;
+  /**
+   * Version of the background migration, which counts the entries of all partitions, which existed before the
+   * counters (see {@link EntryCounters}).
+   */
+  static final int COUNT_EXISTING_ENTRIES = 10;
+
+  private SchemaMigrations() {
+  }
+
+  static List<SchemaMigration> all() {
+    return List.of(
+      blocking(1, "create tables",
+        "CREATE TABLE IF NOT EXISTS AUDITLOG(ID int auto_increment primary key, TIMESTAMP_ timestamp, ENTITY varchar, USERNAME varchar, ACTION_ varchar, ENTRY varchar)",
+        "CREATE TABLE IF NOT EXISTS LABELS(AUDIT int, LABEL varchar)"
+      ),
+      blocking(2, "add dictionaries and id columns", DictionaryMigration::prepare),
+      blocking(3, "add column for compressed entries",
+        "ALTER TABLE AUDITLOG ADD COLUMN IF NOT EXISTS ENTRY_DATA BLOB"
+      ),
+      blocking(4, "register existing entries as partition", PartitionMigration::apply),
+      // the existing entries are encoded, indexed and counted in the background,
+      // because this would otherwise block the startup on a large existing database
+      background(5, "index existing partition", PartitionMigration::createIndexes),
+      blocking(6, "add full text index to partitions", FullTextMigration::apply),
+      blocking(7, "add entry counters and mark counted partitions", EntryCounters::prepare),
+      background(ENCODE_EXISTING_ENTRIES, "encode existing entries", DictionaryMigration::encodeExistingEntries),
+      background(INDEX_EXISTING_TERMS, "add existing entries to full text index", FullTextMigration::indexExistingEntries),
+      // the counters need the label and action ids of the encoded entries
+      background(COUNT_EXISTING_ENTRIES, "count existing entries per day, action and label", EntryCounters::countExistingEntries)
+    );
+  }
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * An immutable file of archived entries in ascending id order. The entries are stored in deflate compressed
+ * blocks. A footer at the end of the file describes the whole segment (id range, time range, min and max of
+ * the filterable columns and the used labels) and every block (position, id and time range and a bitmap of
+ * the labels), so that segments and blocks which cannot match a filter are skipped without decompression.
+ * <p>
+ * Layout: {@code MAGIC | block* | footer | footer offset (long) | MAGIC}
+ */
+@Slf4j
+@Getter
+class Segment {
+
+  static final String FILE_EXTENSION = ".segment";
+
+  private static final int MAGIC = 0x53434d41;
+  private static final int VERSION = 1;
+  private static final int TRAILER_LENGTH = Long.BYTES + Integer.BYTES;
+  private static final int BLOCK_SIZE = 256;
+
+  private final Path file;
+  private final long count;
+  private final long minId;
+  private final long maxId;
+  private final Instant minTimestamp;
+  private final Instant maxTimestamp;
+  private final ColumnRange entities;
+  private final ColumnRange users;
+  private final ColumnRange actions;
+  private final List<String> labels;
+  private final List<Block> blocks;
+  @Getter(AccessLevel.NONE)
+  private final ByteBuffer buffer;
+
+  private Segment(Path file, ByteBuffer buffer, DataInputStream footer) throws IOException {
+    this.file = file;
+    this.buffer = buffer;
+    if (footer.readInt() != VERSION) {
+      throw new IOException("unsupported version of archive segment " + file);
+    }
+    count = footer.readLong();
+    minId = footer.readLong();
+    maxId = footer.readLong();
+    minTimestamp = Instant.ofEpochMilli(footer.readLong());
+    maxTimestamp = Instant.ofEpochMilli(footer.readLong());
+    entities = ColumnRange.read(footer);
+    users = ColumnRange.read(footer);
+    actions = ColumnRange.read(footer);
+    int labelCount = footer.readInt();
+    List<String> segmentLabels = new ArrayList<>(labelCount);
+    for (int i = 0; i < labelCount; i++) {
+      segmentLabels.add(readString(footer));
+    }
+    labels = Collections.unmodifiableList(segmentLabels);
+    int blockCount = footer.readInt();
+    List<Block> segmentBlocks = new ArrayList<>(blockCount);
+    for (int i = 0; i < blockCount; i++) {
+      segmentBlocks.add(Block.read(footer));
+    }
+    blocks = Collections.unmodifiableList(segmentBlocks);
+  }
+
+  /**
+   * Maps the segment file into memory and reads its footer.
+   */
+  static Segment open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // the mapping stays valid after the channel has been closed
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      int trailer = buffer.limit() - TRAILER_LENGTH;
+      if (trailer < Integer.BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(trailer + Long.BYTES) != MAGIC) {
+        throw new IOException("invalid or incomplete archive segment " + file);
+      }
+      int footerOffset = (int) buffer.getLong(trailer);
+      byte[] footer = new byte[trailer - footerOffset];
+      buffer.duplicate().position(footerOffset).get(footer);
+      return new Segment(file, buffer, new DataInputStream(new ByteArrayInputStream(footer)));
+    }
+  }
+
+  /**
+   * Writes the entries, which have to be in ascending id order, to a new segment file. The file is written
+   * to a temporary file first and moved afterwards, so that a segment is either complete or missing.
+   */
+  static Segment write(Path file, List<ArchivedEntry> entries) throws IOException {
+    if (entries.isEmpty()) {
+      throw new IllegalArgumentException("segments must not be empty");
+    }
+    Map<String, Integer> labelIndex = new LinkedHashMap<>();
+    for (ArchivedEntry entry : entries) {
+      for (String label : entry.getLabels()) {
+        labelIndex.putIfAbsent(label, labelIndex.size());
+      }
+    }
+
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+         CountingOutputStream counter = new CountingOutputStream(Channels.newOutputStream(channel));
+         DataOutputStream output = new DataOutputStream(new BufferedOutputStream(counter))) {
+      output.writeInt(MAGIC);
+      List<Block> blocks = new ArrayList<>();
+      for (int start = 0; start < entries.size(); start += BLOCK_SIZE) {
+        blocks.add(writeBlock(output, counter, entries.subList(start, Math.min(entries.size(), start + BLOCK_SIZE)), labelIndex));
+      }
+      output.flush();
+      long footerOffset = counter.count;
+      writeFooter(output, entries, labelIndex, blocks);
+      output.writeLong(footerOffset);
+      output.writeInt(MAGIC);
+      output.flush();
+      // otherwise the renamed file could be empty or truncated after a crash
+      channel.force(true);
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return open(file);
+  }
+
+  /**
+   * Forces the entries of the directory to disk, so that files, which have been created or renamed within it,
+   * are found after a crash. Some platforms, e.g. Windows, cannot open directories, they are skipped.
+   */
+  static void forceDirectory(Path directory) throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(directory, StandardOpenOption.READ);
+    } catch (IOException e) {
+      log.debug("could not open directory {} to force it to disk", directory, e);
+      return;
+    }
+    try (channel) {
+      channel.force(true);
+    }
+  }
+
+  private static Block writeBlock(DataOutputStream output, CountingOutputStream counter, List<ArchivedEntry> entries, Map<String, Integer> labelIndex) throws IOException {
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    DataOutputStream rawOutput = new DataOutputStream(raw);
+    BitSet bitmap = new BitSet();
+    long minTs = Long.MAX_VALUE;
+    long maxTs = Long.MIN_VALUE;
+    for (ArchivedEntry entry : entries) {
+      long timestamp = entry.getTimestamp().toEpochMilli();
+      minTs = Math.min(minTs, timestamp);
+      maxTs = Math.max(maxTs, timestamp);
+      rawOutput.writeLong(entry.getId());
+      rawOutput.writeLong(timestamp);
+      writeString(rawOutput, entry.getEntity());
+      writeString(rawOutput, entry.getUser());
+      writeString(rawOutput, entry.getAction());
+      writeString(rawOutput, entry.getEntry());
+      rawOutput.writeInt(entry.getLabels().length);
+      for (String label : entry.getLabels()) {
+        int index = labelIndex.get(label);
+        rawOutput.writeInt(index);
+        bitmap.set(index);
+      }
+    }
+    rawOutput.flush();
+    byte[] uncompressed = raw.toByteArray();
+    byte[] compressed = deflate(uncompressed);
+
+    output.flush();
+    long offset = counter.count;
+    output.write(compressed);
+    return new Block(
+      offset,
+      compressed.length,
+      uncompressed.length,
+      entries.get(0).getId(),
+      entries.get(entries.size() - 1).getId(),
+      Instant.ofEpochMilli(minTs),
+      Instant.ofEpochMilli(maxTs),
+      bitmap
+    );
+  }
+
+  private static void writeFooter(DataOutputStream output, List<ArchivedEntry> entries, Map<String, Integer> labelIndex, List<Block> blocks) throws IOException {
+    output.writeInt(VERSION);
+    output.writeLong(entries.size());
+    output.writeLong(entries.get(0).getId());
+    output.writeLong(entries.get(entries.size() - 1).getId());
+    output.writeLong(blocks.stream().map(Block::getMinTimestamp).min(Instant::compareTo).orElseThrow().toEpochMilli());
+    output.writeLong(blocks.stream().map(Block::getMaxTimestamp).max(Instant::compareTo).orElseThrow().toEpochMilli());
+    ColumnRange.of(entries, ArchivedEntry::getEntity).write(output);
+    ColumnRange.of(entries, ArchivedEntry::getUser).write(output);
+    ColumnRange.of(entries, ArchivedEntry::getAction).write(output);
+    output.writeInt(labelIndex.size());
+    for (String label : labelIndex.keySet()) {
+      writeString(output, label);
+    }
+    output.writeInt(blocks.size());
+    for (Block block : blocks) {
+      block.write(output);
+    }
+  }
+
+  /**
+   * Passes the entries of all blocks, which may match the filter, to the consumer until it returns {@code false}.
+   * The entries themselves are not filtered.
+   */
+  boolean read(ArchiveFilter filter, boolean ascending, Predicate<ArchivedEntry> consumer) {
+    List<Block> ordered = ascending ? blocks : reverse(blocks);
+    for (Block block : ordered) {
+      if (!filter.mayMatch(this, block)) {
+        continue;
+      }
+      List<ArchivedEntry> entries = readBlock(block);
+      if (!ascending) {
+        Collections.reverse(entries);
+      }
+      for (ArchivedEntry entry : entries) {
+        if (!consumer.test(entry)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private List<ArchivedEntry> readBlock(Block block) {
+    ByteBuffer compressed = buffer.duplicate();
+    compressed.position((int) block.getOffset()).limit((int) block.getOffset() + block.getCompressedLength());
+    byte[] uncompressed = new byte[block.getUncompressedLength()];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int read = 0;
+      while (read < uncompressed.length && !inflater.finished()) {
+        int inflated = inflater.inflate(uncompressed, read, uncompressed.length - read);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("truncated or corrupt block at offset " + block.getOffset());
+        }
+        read += inflated;
+      }
+      DataInputStream input = new DataInputStream(new ByteArrayInputStream(uncompressed));
+      List<ArchivedEntry> entries = new ArrayList<>(BLOCK_SIZE);
+      while (input.available() > 0) {
+        long id = input.readLong();
+        Instant timestamp = Instant.ofEpochMilli(input.readLong());
+        String entity = readString(input);
+        String user = readString(input);
+        String action = readString(input);
+        String entry = readString(input);
+        String[] entryLabels = new String[input.readInt()];
+        for (int i = 0; i < entryLabels.length; i++) {
+          entryLabels[i] = labels.get(input.readInt());
+        }
+        entries.add(new ArchivedEntry(id, timestamp, entity, user, action, entry, entryLabels));
+      }
+      return entries;
+    } catch (IOException | DataFormatException e) {
+      throw new AuditLogException("Failed to read archive segment " + file, e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static byte[] deflate(byte[] data) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 4 + 64);
+      byte[] chunk = new byte[8192];
+      while (!deflater.finished()) {
+        output.write(chunk, 0, deflater.deflate(chunk));
+      }
+      return output.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static <T> List<T> reverse(List<T> list) {
+    List<T> reversed = new ArrayList<>(list);
+    Collections.reverse(reversed);
+    return reversed;
+  }
+
+  private static void writeString(DataOutputStream output, String value) throws IOException {
+    if (value == null) {
+      output.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(UTF_8);
+      output.writeInt(bytes.length);
+      output.write(bytes);
+    }
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    int length = input.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Smallest and largest value of a column in the segment, {@code null} if the column has no values.
+   */
+  @Getter
+  @AllArgsConstructor
+  static class ColumnRange {
+    private final String min;
+    private final String max;
+
+    boolean mayContain(String value) {
+      return min != null && value.compareTo(min) >= 0 && value.compareTo(max) <= 0;
+    }
+
+    static ColumnRange of(List<ArchivedEntry> entries, Function<ArchivedEntry, String> column) {
+      String min = null;
+      String max = null;
+      for (ArchivedEntry entry : entries) {
+        String value = column.apply(entry);
+        if (value != null) {
+          min = min == null || value.compareTo(min) < 0 ? value : min;
+          max = max == null || value.compareTo(max) > 0 ? value : max;
+        }
+      }
+      return new ColumnRange(min, max);
+    }
+
+    static ColumnRange read(DataInputStream input) throws IOException {
+      return new ColumnRange(readString(input), readString(input));
+    }
+
+    void write(DataOutputStream output) throws IOException {
+      writeString(output, min);
+      writeString(output, max);
+    }
+  }
+
+  @Getter
+  @AllArgsConstructor
+  static class Block {
+    private final long offset;
+    private final int compressedLength;
+    private final int uncompressedLength;
+    private final long firstId;
+    private final long lastId;
+    private final Instant minTimestamp;
+    private final Instant maxTimestamp;
+    private final BitSet labels;
+
+    static Block read(DataInputStream input) throws IOException {
+      long offset = input.readLong();
+      int compressedLength = input.readInt();
+      int uncompressedLength = input.readInt();
+      long firstId = input.readLong();
+      long lastId = input.readLong();
+      Instant minTimestamp = Instant.ofEpochMilli(input.readLong());
+      Instant maxTimestamp = Instant.ofEpochMilli(input.readLong());
+      long[] words = new long[input.readInt()];
+      for (int i = 0; i < words.length; i++) {
+        words[i] = input.readLong();
+      }
+      return new Block(offset, compressedLength, uncompressedLength, firstId, lastId, minTimestamp, maxTimestamp, BitSet.valueOf(words));
+    }
+
+    void write(DataOutputStream output) throws IOException {
+      output.writeLong(offset);
+      output.writeInt(compressedLength);
+      output.writeInt(uncompressedLength);
+      output.writeLong(firstId);
+      output.writeLong(lastId);
+      output.writeLong(minTimestamp.toEpochMilli());
+      output.writeLong(maxTimestamp.toEpochMilli());
+      long[] words = labels.toLongArray();
+      output.writeInt(words.length);
+      for (long word : words) {
+        output.writeLong(word);
+      }
+    }
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
@@ -24,20 +24,38 @@ public class SqlQueryGenerator {
 
   private SqlQueryGenerator() {}
 
-  static String createEntriesQuery(AuditLogFilterContext filterContext, List<Filters.AppliedFilter> appliedFilters) {
-    return "SELECT TIMESTAMP_,ENTITY,USERNAME,ACTION_,ENTRY FROM AUDITLOG " +
-      createFilterQuery(filterContext, appliedFilters) +
+  private static final String SELECT_ENTRIES = "SELECT ID,TIMESTAMP_,ENTITY_ID,USER_ID,ACTION_ID,ENTRY,ENTRY_DATA FROM ";
+  // existing rows of the partition before the partitioning have strings instead of ids, until they are encoded
+  private static final String SELECT_UNENCODED_ENTRIES = "SELECT ID,TIMESTAMP_,ENTITY_ID,USER_ID,ACTION_ID,ENTITY,USERNAME,ACTION_,ENTRY,ENTRY_DATA FROM ";
+
+  /**
+   * Creates the query for entries of a single partition. The applied filters have to contain the cursor filter
+   * (see {@link Filters#resolveAppliedFiltersWithCursor(AuditLogFilterContext, Partition, boolean)}), if the context uses cursor based paging.
+   * Entries after a cursor are returned in ascending order, all other entries in descending order.
+   * The string columns are selected too, if the partition is {@code unencoded} (see {@link DictionaryMigration}).
+   */
+  static String createEntriesQuery(AuditLogFilterContext filterContext, List<Filters.AppliedFilter> appliedFilters, Partition partition, boolean unencoded, int limit, long offset) {
+    String select = unencoded ? SELECT_UNENCODED_ENTRIES : SELECT_ENTRIES;
+    if (filterContext.getAfterId() != null) {
+      // seek to the next newer entries, the caller restores the descending order afterwards
+      return select + from(partition) +
+        createFilterQuery(appliedFilters) +
+        "ORDER BY ID ASC " +
+        "LIMIT " + limit + ";";
+    }
+    return select + from(partition) +
+      createFilterQuery(appliedFilters) +
       "ORDER BY ID DESC " +
-      "LIMIT " + filterContext.getLimit() + " " +
-      "OFFSET " + (filterContext.getPageNumber() - 1) * filterContext.getLimit() + ";";
+      "LIMIT " + limit +
+      (offset > 0 ? " OFFSET " + offset : "") + ";";
   }
 
-  static String createCountQuery(AuditLogFilterContext filterContext, List<Filters.AppliedFilter> appliedFilters) {
-    return "SELECT COUNT(*) AS total FROM AUDITLOG "
-      + createFilterQuery(filterContext, appliedFilters) + ";";
+  static String createCountQuery(List<Filters.AppliedFilter> appliedFilters, Partition partition) {
+    return "SELECT COUNT(*) AS total FROM " + from(partition)
+      + createFilterQuery(appliedFilters) + ";";
   }
 
-  static String createLabelsQuery() {
-    return "SELECT DISTINCT LABEL FROM LABELS";
+  private static String from(Partition partition) {
+    return partition.getAuditTable() + " AS AUDITLOG ";
   }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Queue depth and latency of a stage of the write path. The latency of an entry is the time from being queued
+ * for the stage until the stage has finished it.
+ */
+class StageMetrics {
+
+  private final AtomicInteger queueDepth = new AtomicInteger();
+  private final LongAdder processed = new LongAdder();
+  private final LongAdder totalLatencyNanos = new LongAdder();
+  private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+  void queued() {
+    queueDepth.incrementAndGet();
+  }
+
+  /**
+   * Records a finished entry, which has been queued at the given {@link System#nanoTime()}.
+   */
+  void finished(long queuedNanos) {
+    long latency = System.nanoTime() - queuedNanos;
+    queueDepth.decrementAndGet();
+    processed.increment();
+    totalLatencyNanos.add(latency);
+    maxLatencyNanos.accumulate(latency);
+  }
+
+  int getQueueDepth() {
+    return queueDepth.get();
+  }
+
+  long getProcessed() {
+    return processed.sum();
+  }
+
+  Duration getAverageLatency() {
+    long count = processed.sum();
+    return count == 0 ? Duration.ZERO : Duration.ofNanos(totalLatencyNanos.sum() / count);
+  }
+
+  Duration getMaxLatency() {
+    return Duration.ofNanos(maxLatencyNanos.get());
+  }
+}
@@ -16,7 +16,7 @@
 
 import React, { FC, useState } from "react";
 import { useTranslation } from "react-i18next";
-import { ErrorNotification, Level, LinkPaginator, Loading, Title, urls } from "@scm-manager/ui-components";
+import { Button, ErrorNotification, Level, Loading, Notification, Title, urls } from "@scm-manager/ui-components";
 import { useDocumentTitle } from "@scm-manager/ui-core";
 import { Filters, useAuditLog } from "./useAuditLog";
 import { Redirect, useLocation, useRouteMatch } from "react-router-dom";
@@ -35,7 +35,7 @@ const ExportButton: FC<{ links: Links; filters: Filters }> = ({ links, filters }
         } else {
           link += "&";
         }
-        link += `${filter[0]}=${filter[1]}`;
+        link += `${filter[0]}=${encodeURIComponent(filter[1])}`;
       }
     }
     return (
@@ -47,6 +47,24 @@ const ExportButton: FC<{ links: Links; filters: Filters }> = ({ links, filters }
   return null;
 };
 
+const Paginator: FC<{ page: number; hasMore: boolean }> = ({ page, hasMore }) => {
+  const [t] = useTranslation("plugins");
+  return (
+    <Level
+      left={
+        <Button
+          link={`/admin/audit-log/${page - 1}`}
+          disabled={page <= 1}
+          label={t("scm-audit-log-plugin.paging.previous")}
+        />
+      }
+      right={
+        <Button link={`/admin/audit-log/${page + 1}`} disabled={!hasMore} label={t("scm-audit-log-plugin.paging.next")} />
+      }
+    />
+  );
+};
+
 const AuditLog: FC<{ links: Links }> = ({ links }) => {
   const match = useRouteMatch();
   const page = urls.getPageFromMatch(match);
@@ -56,6 +74,7 @@ const AuditLog: FC<{ links: Links }> = ({ links }) => {
     username?: string;
     label?: string;
     action?: string;
+    q?: string;
   };
   const [filters, setFilters] = useState<Filters>({
     entity: searchParams.entity || "",
@@ -63,13 +82,14 @@ const AuditLog: FC<{ links: Links }> = ({ links }) => {
     label: searchParams.label || "",
     action: searchParams.action || "",
     from: "",
-    to: ""
+    to: "",
+    q: searchParams.q || ""
   });
   const { data, error, isLoading } = useAuditLog(page, filters);
   const [t] = useTranslation("plugins");
   useDocumentTitle(
-    data?.pageTotal && data.pageTotal > 1 && page
-      ? t("scm-audit-log-plugin.auditLogWithPage", { page, total: data.pageTotal })
+    page > 1 || data?.hasMore
+      ? t("scm-audit-log-plugin.auditLogPage", { page })
       : t("scm-audit-log-plugin.title"),
   );
 
@@ -78,7 +98,7 @@ const AuditLog: FC<{ links: Links }> = ({ links }) => {
       onSubmit={setFilters}
       defaultValues={filters}
       translationPath={["plugins", "scm-audit-log-plugin.filter"]}
-      withResetTo={{ entity: "", username: "", label: "", action: "", from: "", to: "" }}
+      withResetTo={{ entity: "", username: "", label: "", action: "", from: "", to: "", q: "" }}
     >
       <Form.Row>
         <Form.Input name="entity" />
@@ -102,6 +122,9 @@ const AuditLog: FC<{ links: Links }> = ({ links }) => {
         <Form.Input name="from" type="date" />
         <Form.Input name="to" type="date" />
       </Form.Row>
+      <Form.Row>
+        <Form.Input name="q" />
+      </Form.Row>
     </Form>
   );
 
@@ -114,8 +137,8 @@ const AuditLog: FC<{ links: Links }> = ({ links }) => {
     return <Loading />;
   }
 
-  if (data && data.pageTotal < page && page > 1) {
-    return <Redirect to={`/admin/audit-log/${data.pageTotal}`} />;
+  if (data && data._embedded?.entries.length === 0 && page > 1) {
+    return <Redirect to="/admin/audit-log/1" />;
   }
 
   return (
@@ -123,10 +146,13 @@ const AuditLog: FC<{ links: Links }> = ({ links }) => {
       <Title title={t("scm-audit-log-plugin.title")} />
       {filterForm}
       <hr />
+      {data.complete === false ? (
+        <Notification type="info">{t("scm-audit-log-plugin.incomplete")}</Notification>
+      ) : null}
       <Level right={<ExportButton links={links} filters={filters} />} />
       <pre>{data?._embedded?.entries.map(e => e.entry + "\n")}</pre>
       <hr />
-      <LinkPaginator collection={data} page={page} />
+      <Paginator page={page} hasMore={data.hasMore} />
     </>
   );
 };
@@ -33,7 +33,9 @@ type AuditLogEntries = {
 
 type AuditLog = HalRepresentationWithEmbedded<AuditLogEntries> & {
   page: number;
-  pageTotal: number;
+  pageTotal?: number;
+  hasMore: boolean;
+  complete: boolean;
 };
 
 export type Filters = {
@@ -43,6 +45,7 @@ export type Filters = {
   action: string;
   from: string;
   to: string;
+  q: string;
 };
 
 export const useAuditLog = (pageNumber: number, filters: Filters): ApiResult<AuditLog> => {
@@ -51,8 +54,9 @@ export const useAuditLog = (pageNumber: number, filters: Filters): ApiResult<Aud
     apiClient
       .get(
         Object.entries(filters).reduce(
-          (link, [filterKey, filterValue]) => (filterValue ? `${link}&${filterKey}=${filterValue}` : link),
-          indexLink + `?pageNumber=${pageNumber}`
+          (link, [filterKey, filterValue]) => (filterValue ? `${link}&${filterKey}=${encodeURIComponent(filterValue)}` : link),
+          // counting all entries is more expensive than reading the page, so only previous and next pages are offered
+          indexLink + `?pageNumber=${pageNumber}&total=false`
         )
       )
       .then(response => response.json())
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import org.github.sdorra.jse.ShiroExtension;
+import org.github.sdorra.jse.SubjectAware;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ExtendWith(ShiroExtension.class)
+@SubjectAware(value = "trillian", permissions = "auditLog:read")
+class ArchiveJobTest {
+
+  private static final String CONNECTION_URL = "jdbc:h2:mem:archive-tests";
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+  @TempDir
+  private Path archiveDirectory;
+
+  private Connection connection;
+  private AuditLogDatabase database;
+  private Dictionaries dictionaries;
+  private Partitions partitions;
+  private AuditLogConfiguration configuration;
+  private AuditLogWriter writer;
+  private Archive archive;
+  private DefaultAuditLogService service;
+
+  @BeforeEach
+  void initTestDB() throws SQLException {
+    connection = DriverManager.getConnection(CONNECTION_URL);
+    database = new AuditLogDatabase(CONNECTION_URL);
+    dictionaries = new Dictionaries(database);
+    partitions = new Partitions(database);
+    configuration = new AuditLogConfiguration();
+    configuration.setWriterLingerMillis(0);
+    configuration.setArchiveAfterDays(30);
+    archive = new Archive(archiveDirectory);
+    JdbcAuditLogStore store = new JdbcAuditLogStore(database, dictionaries, partitions, archive, configuration);
+    writer = new AuditLogWriter(store, configuration, Runnable::run);
+    service = new DefaultAuditLogService(store, Runnable::run, writer, configuration, null, AuditLogMetrics.unpublished());
+  }
+
+  @AfterEach
+  void clearDB() throws SQLException {
+    executor.shutdownNow();
+    connection.createStatement().executeUpdate("DROP ALL OBJECTS");
+    connection.close();
+  }
+
+  @Test
+  void shouldArchiveOldPartitionsIntoDailySegments() throws SQLException, IOException {
+    writeEntries();
+
+    long archived = createJob("2024-03-20T10:00:00Z").archive();
+
+    assertThat(archived).isEqualTo(3);
+    assertThat(partitions.getAll()).extracting(Partition::getAuditTable).containsExactly("AUDITLOG_2024_03", "AUDITLOG_2024_02");
+    assertThat(archive.getAll()).extracting(Segment::getCount).containsExactly(1L, 2L);
+    assertThat(archiveDirectory.resolve("AUDITLOG_2024_01").resolve("2024-01-10_1.segment")).exists();
+    assertThat(archiveDirectory.resolve("AUDITLOG_2024_01").resolve("2024-01-11_3.segment")).exists();
+    assertThat(new Archive(archiveDirectory).getAll()).hasSize(2);
+  }
+
+  @Test
+  void shouldIgnoreSegmentsWhichHaveNotBeenPublished() throws SQLException, IOException {
+    writeEntries();
+    archive.stage("AUDITLOG_2024_01").write(List.of(archivedEntry(1, "2024-01-10T10:00:00Z")));
+
+    assertThat(new Archive(archiveDirectory).getAll()).isEmpty();
+
+    assertThat(createJob("2024-03-20T10:00:00Z").archive()).isEqualTo(3);
+    assertThat(new Archive(archiveDirectory).getAll()).extracting(Segment::getCount).containsExactly(1L, 2L);
+  }
+
+  @Test
+  void shouldDropPartitionWhichHasBeenPublishedBeforeInterruption() throws SQLException, IOException {
+    writeEntries();
+    Archive.Staging staging = archive.stage("AUDITLOG_2024_01");
+    staging.write(List.of(archivedEntry(1, "2024-01-10T10:00:00Z"), archivedEntry(2, "2024-01-10T11:00:00Z")));
+    staging.write(List.of(archivedEntry(3, "2024-01-11T10:00:00Z")));
+    archive.publish(staging);
+
+    createJob("2024-01-20T10:00:00Z").dropPublishedPartitions();
+
+    assertThat(partitions.getAll()).extracting(Partition::getAuditTable).containsExactly("AUDITLOG_2024_03", "AUDITLOG_2024_02");
+    assertThat(entities(new AuditLogFilterContext()))
+      .containsExactly("mar", "feb", "jan-3", "jan-2", "jan-1");
+    assertThat(service.getTotalEntries(new AuditLogFilterContext())).isEqualTo(5);
+  }
+
+  @Test
+  void shouldNotArchiveRecentPartitions() throws SQLException, IOException {
+    writeEntries();
+
+    assertThat(createJob("2024-02-20T10:00:00Z").archive()).isZero();
+    assertThat(archive.getAll()).isEmpty();
+  }
+
+  @Test
+  void shouldReadArchivedEntriesAfterDatabaseEntries() throws SQLException, IOException {
+    writeEntries();
+    createJob("2024-04-20T10:00:00Z").archive();
+
+    assertThat(partitions.getAll()).extracting(Partition::getAuditTable).containsExactly("AUDITLOG_2024_03");
+    assertThat(entities(new AuditLogFilterContext()))
+      .containsExactly("mar", "feb", "jan-3", "jan-2", "jan-1");
+    assertThat(service.getTotalEntries(new AuditLogFilterContext())).isEqualTo(5);
+  }
+
+  @Test
+  void shouldPageAndFilterAcrossArchive() throws SQLException, IOException {
+    writeEntries();
+    createJob("2024-04-20T10:00:00Z").archive();
+
+    AuditLogFilterContext secondPage = new AuditLogFilterContext(2, 2, null, null, null, null, null, null);
+    assertThat(entities(secondPage)).containsExactly("jan-3", "jan-2");
+
+    AuditLogFilterContext byLabel = new AuditLogFilterContext(1, 100, null, null, null, null, "permission", null);
+    assertThat(entities(byLabel)).containsExactly("mar", "jan-2");
+    assertThat(service.getTotalEntries(byLabel)).isEqualTo(2);
+
+    AuditLogFilterContext newer = new AuditLogFilterContext();
+    newer.setLimit(2);
+    newer.setAfterId(1L);
+    assertThat(entities(newer)).containsExactly("jan-3", "jan-2");
+  }
+
+  private void writeEntries() {
+    write("jan-1", "2024-01-10T10:00:00Z", "repository");
+    write("jan-2", "2024-01-10T11:00:00Z", "permission");
+    write("jan-3", "2024-01-11T10:00:00Z", "repository");
+    write("feb", "2024-02-10T10:00:00Z", "repository");
+    write("mar", "2024-03-10T10:00:00Z", "permission");
+  }
+
+  private ArchiveJob createJob(String now) {
+    Clock clock = Clock.fixed(Instant.parse(now), ZoneOffset.UTC);
+    return new ArchiveJob(database, partitions, dictionaries, archive, configuration, executor, clock);
+  }
+
+  private void write(String entity, String timestamp, String label) {
+    writer.append(new PendingEntry(Instant.parse(timestamp), entity, "trillian", "modified", "Diff of " + entity, new String[]{label}));
+  }
+
+  private ArchivedEntry archivedEntry(long id, String timestamp) {
+    return new ArchivedEntry(id, Instant.parse(timestamp), "jan-" + id, "trillian", "modified", "Diff", new String[]{"repository"});
+  }
+
+  private List<String> entities(AuditLogFilterContext filterContext) {
+    return service.getLogEntries(filterContext).stream().map(LogEntry::getEntity).collect(toList());
+  }
+}
@@ -172,6 +172,34 @@ class AuditEntryGeneratorTest {
     assertThat(entry).isEmpty();
   }
 
+  @Test
+  void shouldNotCompareIgnoredClasses() {
+    String entry = generator.generate(
+      new EntryCreationContext<>(new WithIgnoredPart("new", new IgnoredPart("b")), new WithIgnoredPart("old", new IgnoredPart("a"))),
+      Instant.ofEpochSecond(1700000000),
+      "trillian",
+      "modified",
+      "",
+      new String[]{});
+
+    assertThat(entry)
+      .contains("'name' changed: 'old' -> 'new'")
+      .doesNotContain("cache");
+  }
+
+  @Test
+  void shouldNotCreateDiffForIgnoredClass() {
+    String entry = generator.generate(
+      new EntryCreationContext<>(new IgnoredPart("b"), new IgnoredPart("a")),
+      Instant.ofEpochSecond(1700000000),
+      "trillian",
+      "modified",
+      "",
+      new String[]{});
+
+    assertThat(entry).doesNotContain("Diff");
+  }
+
   @Test
   void shouldMaskFieldsWithEncryptionAutomatically() {
     String entry = generator.generate(
@@ -350,6 +378,20 @@ class TopLevel implements AuditLogEntity {
   }
 }
 
+@AllArgsConstructor
+@Getter
+class WithIgnoredPart {
+  private String name;
+  private IgnoredPart part;
+}
+
+@AllArgsConstructor
+@Getter
+@AuditEntry(ignore = true)
+class IgnoredPart {
+  private String cache;
+}
+
 class DerivativeSecretConfig extends SecretConfig {
   public DerivativeSecretConfig(String name, String password, String token) {
     super(name, password, token);
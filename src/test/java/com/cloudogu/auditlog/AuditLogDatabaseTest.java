@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.cloudogu.auditlog.SchemaMigration.background;
+import static com.cloudogu.auditlog.SchemaMigration.blocking;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class AuditLogDatabaseTest {
+
+  private static final String CONNECTION_URL = "jdbc:h2:mem:database-tests";
+
+  private Connection connection;
+
+  @BeforeEach
+  void openConnection() throws SQLException {
+    connection = DriverManager.getConnection(CONNECTION_URL);
+  }
+
+  @AfterEach
+  void clearDB() throws SQLException {
+    connection.createStatement().executeUpdate("DROP ALL OBJECTS");
+    connection.close();
+  }
+
+  @Test
+  void shouldCreateIndexesForExistingEntries() throws SQLException {
+    createOldSchemaWithEntries();
+
+    new AuditLogDatabase(CONNECTION_URL);
+
+    assertThat(query("SELECT INDEX_NAME FROM INFORMATION_SCHEMA.INDEXES WHERE INDEX_NAME LIKE 'IDX_%'"))
+      .containsExactlyInAnyOrder(
+        "IDX_LABELS_AUDIT",
+        "IDX_LABELS_LABEL_ID_AUDIT",
+        "IDX_AUDITLOG_TIMESTAMP",
+        "IDX_AUDITLOG_ACTION_ID",
+        "IDX_AUDITLOG_ENTITY_ID",
+        "IDX_AUDITLOG_USER_ID"
+      );
+  }
+
+  @Test
+  void shouldRecordAppliedMigrations() throws SQLException {
+    new AuditLogDatabase(CONNECTION_URL);
+
+    assertThat(query("SELECT VERSION FROM SCHEMA_MIGRATIONS ORDER BY VERSION"))
+      .containsExactly("1", "2", "3", "4", "5", "6", "7", "8", "9", "10");
+  }
+
+  @Test
+  void shouldApplyMigrationsOnlyOnce() throws SQLException {
+    AtomicInteger counter = new AtomicInteger();
+    List<SchemaMigration> migrations = List.of(blocking(1, "count", c -> counter.incrementAndGet()));
+
+    new AuditLogDatabase(CONNECTION_URL, Runnable::run, migrations).close();
+    // restart
+    new AuditLogDatabase(CONNECTION_URL, Runnable::run, migrations);
+
+    assertThat(counter).hasValue(1);
+  }
+
+  @Test
+  void shouldApplyBackgroundMigrationsAfterBlockingMigrations() throws SQLException {
+    List<String> applied = new ArrayList<>();
+    List<Runnable> backgroundTasks = new ArrayList<>();
+    List<SchemaMigration> migrations = List.of(
+      blocking(1, "first", c -> applied.add("first")),
+      background(2, "second", c -> applied.add("second")),
+      blocking(3, "third", c -> applied.add("third"))
+    );
+
+    new AuditLogDatabase(CONNECTION_URL, backgroundTasks::add, migrations);
+
+    assertThat(applied).containsExactly("first", "third");
+
+    backgroundTasks.forEach(Runnable::run);
+
+    assertThat(applied).containsExactly("first", "third", "second");
+  }
+
+  @Test
+  void shouldSkipBackgroundMigrationWhichHasBeenAppliedInTheMeantime() throws SQLException {
+    AtomicInteger counter = new AtomicInteger();
+    List<Runnable> backgroundTasks = new ArrayList<>();
+    List<SchemaMigration> migrations = List.of(background(1, "count", c -> counter.incrementAndGet()));
+
+    AuditLogDatabase database = new AuditLogDatabase(CONNECTION_URL, backgroundTasks::add, migrations);
+    // e.g. by the instance before a restart of the plugin
+    connection.createStatement().executeUpdate("INSERT INTO SCHEMA_MIGRATIONS(VERSION, DESCRIPTION) VALUES (1, 'count')");
+    backgroundTasks.forEach(Runnable::run);
+
+    assertThat(counter).hasValue(0);
+    assertThat(database.isApplied(1)).isTrue();
+  }
+
+  @Test
+  void shouldStopBackgroundMigrationsAfterClose() throws SQLException {
+    AtomicInteger counter = new AtomicInteger();
+    List<Runnable> backgroundTasks = new ArrayList<>();
+    List<SchemaMigration> migrations = List.of(background(1, "count", c -> counter.incrementAndGet()));
+
+    new AuditLogDatabase(CONNECTION_URL, backgroundTasks::add, migrations).close();
+    backgroundTasks.forEach(Runnable::run);
+
+    assertThat(counter).hasValue(0);
+    assertThat(query("SELECT VERSION FROM SCHEMA_MIGRATIONS")).isEmpty();
+  }
+
+  @Test
+  void shouldEncodeExistingEntriesWithDictionaries() throws SQLException {
+    createOldSchemaWithEntries();
+
+    new AuditLogDatabase(CONNECTION_URL);
+
+    assertThat(query("SELECT E.VALUE_ || ',' || COALESCE(U.VALUE_, '-') || ',' || A.VALUE_ FROM AUDITLOG L " +
+      "JOIN ENTITY_DICT E ON E.ID = L.ENTITY_ID JOIN ACTION_DICT A ON A.ID = L.ACTION_ID LEFT JOIN USER_DICT U ON U.ID = L.USER_ID ORDER BY L.ID"))
+      .containsExactly("hitchhiker/42puzzle,trillian,created", "hitchhiker/42puzzle,-,modified");
+    assertThat(query("SELECT L.AUDIT || ':' || D.VALUE_ FROM LABELS L JOIN LABEL_DICT D ON D.ID = L.LABEL_ID ORDER BY L.AUDIT, D.VALUE_"))
+      .containsExactly("1:repository", "2:permission", "2:repository");
+    assertThat(query("SELECT COUNT(*) FROM AUDITLOG WHERE ENTITY IS NOT NULL OR USERNAME IS NOT NULL OR ACTION_ IS NOT NULL"))
+      .containsExactly("0");
+    assertThat(query("SELECT COUNT(*) FROM LABELS WHERE LABEL IS NOT NULL")).containsExactly("0");
+  }
+
+  @Test
+  void shouldReadAndFilterExistingEntriesBeforeTheyAreEncoded(@TempDir Path archiveDirectory) throws SQLException {
+    createOldSchemaWithEntries();
+    List<Runnable> backgroundTasks = new ArrayList<>();
+    AuditLogDatabase database = new AuditLogDatabase(CONNECTION_URL, backgroundTasks::add, SchemaMigrations.all());
+    JdbcAuditLogStore store = new JdbcAuditLogStore(database, new Dictionaries(database), new Partitions(database), new Archive(archiveDirectory), new AuditLogConfiguration());
+    store.write(List.of(new PendingEntry(Instant.parse("2000-01-01T00:00:00Z"), "hitchhiker/heartofgold", "trillian", "created", "third", new String[]{"repository"})));
+
+    assertThat(database.isApplied(SchemaMigrations.ENCODE_EXISTING_ENTRIES)).isFalse();
+    assertThat(readEntries(store, new AuditLogFilterContext()))
+      .containsExactly("hitchhiker/heartofgold,trillian,created", "hitchhiker/42puzzle,null,modified", "hitchhiker/42puzzle,trillian,created");
+
+    AuditLogFilterContext byEntity = new AuditLogFilterContext();
+    byEntity.setEntity("hitchhiker/42*");
+    assertThat(readEntries(store, byEntity))
+      .containsExactly("hitchhiker/42puzzle,null,modified", "hitchhiker/42puzzle,trillian,created");
+    assertThat(store.count(byEntity)).isEqualTo(2);
+
+    AuditLogFilterContext byUserAndAction = new AuditLogFilterContext();
+    byUserAndAction.setUsername("trillian");
+    byUserAndAction.setAction("created");
+    assertThat(readEntries(store, byUserAndAction))
+      .containsExactly("hitchhiker/heartofgold,trillian,created", "hitchhiker/42puzzle,trillian,created");
+
+    AuditLogFilterContext byLabel = new AuditLogFilterContext();
+    byLabel.setLabel("permission");
+    assertThat(readEntries(store, byLabel)).containsExactly("hitchhiker/42puzzle,null,modified");
+
+    backgroundTasks.forEach(Runnable::run);
+
+    assertThat(readEntries(store, byEntity))
+      .containsExactly("hitchhiker/42puzzle,null,modified", "hitchhiker/42puzzle,trillian,created");
+    assertThat(readEntries(store, byLabel)).containsExactly("hitchhiker/42puzzle,null,modified");
+  }
+
+  private List<String> readEntries(JdbcAuditLogStore store, AuditLogFilterContext filterContext) {
+    List<String> entries = new ArrayList<>();
+    store.read(filterContext, entry -> entries.add(entry.getEntity() + "," + entry.getUser() + "," + entry.getAction()));
+    return entries;
+  }
+
+  @Test
+  void shouldEncodeExistingEntriesInBackground() throws SQLException {
+    createOldSchemaWithEntries();
+    List<Runnable> backgroundTasks = new ArrayList<>();
+
+    AuditLogDatabase database = new AuditLogDatabase(CONNECTION_URL, backgroundTasks::add, SchemaMigrations.all());
+    Dictionaries dictionaries = new Dictionaries(database);
+
+    assertThat(database.isApplied(SchemaMigrations.ENCODE_EXISTING_ENTRIES)).isFalse();
+    assertThat(query("SELECT COUNT(*) FROM AUDITLOG WHERE ENTITY_ID IS NULL")).containsExactly("2");
+
+    backgroundTasks.forEach(Runnable::run);
+
+    assertThat(database.isApplied(SchemaMigrations.ENCODE_EXISTING_ENTRIES)).isTrue();
+    assertThat(query("SELECT COUNT(*) FROM AUDITLOG WHERE ENTITY_ID IS NULL")).containsExactly("0");
+    assertThat(dictionaries.entities().idOf("hitchhiker/42puzzle")).isNotNull();
+  }
+
+  @Test
+  void shouldMarkSearchesIncompleteUntilExistingEntriesAreIndexed(@TempDir Path archiveDirectory) throws SQLException {
+    createOldSchemaWithEntries();
+    List<Runnable> backgroundTasks = new ArrayList<>();
+    AuditLogDatabase database = new AuditLogDatabase(CONNECTION_URL, backgroundTasks::add, SchemaMigrations.all());
+    JdbcAuditLogStore store = new JdbcAuditLogStore(database, new Dictionaries(database), new Partitions(database), new Archive(archiveDirectory), new AuditLogConfiguration());
+    AuditLogFilterContext search = new AuditLogFilterContext();
+    search.setQuery("first");
+
+    assertThat(database.isApplied(SchemaMigrations.INDEX_EXISTING_TERMS)).isFalse();
+    assertThat(store.isComplete(search)).isFalse();
+    assertThat(store.isComplete(new AuditLogFilterContext())).isTrue();
+
+    backgroundTasks.forEach(Runnable::run);
+
+    assertThat(store.isComplete(search)).isTrue();
+  }
+
+  @Test
+  void shouldRegisterExistingEntriesAsOldestPartition() throws SQLException {
+    createOldSchemaWithEntries();
+
+    AuditLogDatabase database = new AuditLogDatabase(CONNECTION_URL);
+
+    assertThat(new Partitions(database).getAll())
+      .extracting(Partition::getAuditTable, Partition::getLabelsTable)
+      .containsExactly(tuple("AUDITLOG", "LABELS"));
+    assertThat(query("SELECT NEXT VALUE FOR AUDITLOG_ID_SEQ")).containsExactly("3");
+  }
+
+  @Test
+  void shouldAddExistingEntriesToFullTextIndex() throws SQLException {
+    createOldSchemaWithEntries();
+
+    new AuditLogDatabase(CONNECTION_URL);
+
+    assertThat(query("SELECT TERMS_TABLE FROM AUDITLOG_PARTITIONS")).containsExactly("TERMS");
+    assertThat(query("SELECT AUDIT || ':' || TERM FROM TERMS ORDER BY AUDIT"))
+      .containsExactly("1:first", "2:second");
+  }
+
+  @Test
+  void shouldCountExistingEntries() throws SQLException {
+    createOldSchemaWithEntries();
+
+    new AuditLogDatabase(CONNECTION_URL);
+
+    assertThat(query("SELECT SUM(COUNT_) FROM AUDITLOG_COUNTERS WHERE LABEL_ID = 0")).containsExactly("2");
+    assertThat(query("SELECT D.VALUE_ || ':' || SUM(C.COUNT_) FROM AUDITLOG_COUNTERS C JOIN LABEL_DICT D ON D.ID = C.LABEL_ID GROUP BY D.VALUE_ ORDER BY D.VALUE_"))
+      .containsExactly("permission:1", "repository:2");
+  }
+
+  @Test
+  void shouldCountExistingEntriesInBackground(@TempDir Path archiveDirectory) throws SQLException {
+    createOldSchemaWithEntries();
+    List<Runnable> backgroundTasks = new ArrayList<>();
+    AuditLogDatabase database = new AuditLogDatabase(CONNECTION_URL, backgroundTasks::add, SchemaMigrations.all());
+    JdbcAuditLogStore store = new JdbcAuditLogStore(database, new Dictionaries(database), new Partitions(database), new Archive(archiveDirectory), new AuditLogConfiguration());
+
+    // written into the existing partition, which is not counted yet
+    store.write(List.of(new PendingEntry(Instant.parse("2000-01-01T00:00:00Z"), "hitchhiker/heartOfGold", "trillian", "created", "third", new String[]{"repository"})));
+
+    assertThat(database.isApplied(SchemaMigrations.COUNT_EXISTING_ENTRIES)).isFalse();
+    assertThat(query("SELECT COUNT(*) FROM AUDITLOG_COUNTERS")).containsExactly("0");
+    assertThat(store.count(new AuditLogFilterContext())).isEqualTo(3);
+
+    backgroundTasks.forEach(Runnable::run);
+
+    assertThat(database.isApplied(SchemaMigrations.COUNT_EXISTING_ENTRIES)).isTrue();
+    assertThat(query("SELECT COUNTED FROM AUDITLOG_PARTITIONS")).containsExactly("TRUE");
+    assertThat(query("SELECT SUM(COUNT_) FROM AUDITLOG_COUNTERS WHERE LABEL_ID = 0")).containsExactly("3");
+    assertThat(store.count(new AuditLogFilterContext())).isEqualTo(3);
+  }
+
+  @Test
+  void shouldReserveConnectionForWriter() throws SQLException {
+    AuditLogConfiguration configuration = new AuditLogConfiguration();
+    configuration.setDbMaxConnections(1);
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    AuditLogDatabase database = new AuditLogDatabase(CONNECTION_URL, configuration, new AuditLogMetrics(registry), Runnable::run, SchemaMigrations.all());
+
+    try (Connection query = database.getConnection(); Connection writer = database.getWriterConnection()) {
+      assertThat(writer.isValid(1)).isTrue();
+    }
+    assertThat(registry.get("scm.auditlog.connection.wait").tag("pool", "writer").timer().count()).isEqualTo(1);
+  }
+
+  @Test
+  void shouldDropEmptyTablesOfOldSchema() throws SQLException {
+    AuditLogDatabase database = new AuditLogDatabase(CONNECTION_URL);
+
+    assertThat(new Partitions(database).getAll()).isEmpty();
+    assertThat(query("SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME IN ('AUDITLOG', 'LABELS')")).isEmpty();
+  }
+
+  private void createOldSchemaWithEntries() throws SQLException {
+    connection.createStatement().execute("CREATE TABLE AUDITLOG(ID int auto_increment primary key, TIMESTAMP_ timestamp, ENTITY varchar, USERNAME varchar, ACTION_ varchar, ENTRY varchar)");
+    connection.createStatement().execute("CREATE TABLE LABELS(AUDIT int, LABEL varchar)");
+    connection.createStatement().execute("INSERT INTO AUDITLOG(TIMESTAMP_, ENTITY, USERNAME, ACTION_, ENTRY) VALUES " +
+      "(CURRENT_TIMESTAMP, 'hitchhiker/42puzzle', 'trillian', 'created', 'first'), " +
+      "(CURRENT_TIMESTAMP, 'hitchhiker/42puzzle', NULL, 'modified', 'second')");
+    connection.createStatement().execute("INSERT INTO LABELS(AUDIT, LABEL) VALUES (1, 'repository'), (2, 'repository'), (2, 'permission')");
+  }
+
+  private List<String> query(String sql) throws SQLException {
+    List<String> result = new ArrayList<>();
+    try (ResultSet resultSet = connection.createStatement().executeQuery(sql)) {
+      while (resultSet.next()) {
+        result.add(resultSet.getString(1));
+      }
+    }
+    return result;
+  }
+}
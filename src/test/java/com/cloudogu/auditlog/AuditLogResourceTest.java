@@ -39,12 +39,16 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.Instant;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.function.Consumer;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -72,6 +76,7 @@ class AuditLogResourceTest {
     ScmPathInfoStore scmPathInfoStore = new ScmPathInfoStore();
     scmPathInfoStore.set(() -> URI.create(""));
     lenient().when(scmPathInfoStoreProvider.get()).thenReturn(scmPathInfoStore);
+    lenient().when(service.getPage(any())).thenCallRealMethod();
   }
 
   @AfterEach
@@ -81,7 +86,7 @@ class AuditLogResourceTest {
 
   @Test
   void shouldGetEntriesAsText() throws URISyntaxException, UnsupportedEncodingException {
-    when(service.getEntries(any())).thenReturn(
+    mockStreamedEntries(
       ImmutableList.of(
         new LogEntry(
           Instant.ofEpochMilli(1700000000),
@@ -128,20 +133,21 @@ class AuditLogResourceTest {
 
     restDispatcher.invoke(request, response);
 
-    verify(service).getEntries(argThat(filterContext -> {
+    verify(service).streamEntries(argThat(filterContext -> {
       assertThat(filterContext.getEntity()).isEqualTo("scmadmin");
       assertThat(filterContext.getUsername()).isEqualTo("trillian");
       assertThat(filterContext.getLabel()).isEqualTo("jenkins");
-      assertThat(filterContext.getFrom()).hasToString("2023-01-01");
+      // Dates are interpreted in the time zone of the server (ECT)
+      assertThat(filterContext.getFrom()).hasToString("2022-12-31T23:00:00Z");
       // Day increased by one to 'include' all matches
-      assertThat(filterContext.getTo()).hasToString("2023-02-02");
+      assertThat(filterContext.getTo()).hasToString("2023-02-01T23:00:00Z");
       return true;
-    }));
+    }), any());
   }
 
   @Test
   void shouldGetEntriesAsCsv() throws URISyntaxException, UnsupportedEncodingException {
-    when(service.getEntries(any())).thenReturn(ImmutableList.of(new LogEntry(Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", """
+    mockStreamedEntries(ImmutableList.of(new LogEntry(Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", """
       2023-11-14T22:13:20Z [MODIFIED] 'trillian' modified group 'admins'
       Diff:
       * changes on sonia.scm.group.Group/ :
@@ -168,15 +174,16 @@ class AuditLogResourceTest {
 
     restDispatcher.invoke(request, response);
 
-    verify(service).getEntries(argThat(filterContext -> {
+    verify(service).streamEntries(argThat(filterContext -> {
       assertThat(filterContext.getEntity()).isEqualTo("scmadmin");
       assertThat(filterContext.getUsername()).isEqualTo("trillian");
       assertThat(filterContext.getLabel()).isEqualTo("jenkins");
-      assertThat(filterContext.getFrom()).hasToString("2023-01-01");
+      // Dates are interpreted in the time zone of the server (ECT)
+      assertThat(filterContext.getFrom()).hasToString("2022-12-31T23:00:00Z");
       // Day increased by one to 'include' all matches
-      assertThat(filterContext.getTo()).hasToString("2023-02-02");
+      assertThat(filterContext.getTo()).hasToString("2023-02-01T23:00:00Z");
       return true;
-    }));
+    }), any());
   }
 
   @Test
@@ -236,16 +243,17 @@ class AuditLogResourceTest {
       assertThat(filterContext.getEntity()).isEqualTo("scmadmin");
       assertThat(filterContext.getUsername()).isEqualTo("trillian");
       assertThat(filterContext.getLabel()).isEqualTo("jenkins");
-      assertThat(filterContext.getFrom()).hasToString("2023-01-01");
+      // Dates are interpreted in the time zone of the server (ECT)
+      assertThat(filterContext.getFrom()).hasToString("2022-12-31T23:00:00Z");
       // Day increased by one to 'include' all matches
-      assertThat(filterContext.getTo()).hasToString("2023-02-02");
+      assertThat(filterContext.getTo()).hasToString("2023-02-01T23:00:00Z");
       return true;
     }));
   }
 
   @Test
   void shouldEncodeTimestampWithSystemDefaultZoneWhenExportingToCSV() throws UnsupportedEncodingException, URISyntaxException {
-    when(service.getEntries(any())).thenReturn(ImmutableList.of(new LogEntry(Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", """
+    mockStreamedEntries(ImmutableList.of(new LogEntry(Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", """
       1970-01-20T17:13:20+01:00[Europe/Paris] [MODIFIED] 'trillian' modified group 'admins'
       Diff:
       * changes on sonia.scm.group.Group/ :
@@ -260,4 +268,129 @@ class AuditLogResourceTest {
       .contains("1970-01-20T17:13:20+01:00[Europe/Paris],trillian,modified,admins,1970-01-20T17:13:20+01:00[Europe/Paris] [MODIFIED] 'trillian' modified group 'admins' Diff: * changes on sonia.scm.group.Group/ :   - 'type' changed: 'external' -> 'internal'");
   }
 
+  @Test
+  void shouldCreateCursorLinksForCursorPaging() throws URISyntaxException {
+    when(service.getEntries(any())).thenReturn(ImmutableList.of(
+      new LogEntry(42, Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", "second"),
+      new LogEntry(21, Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", "first"),
+      new LogEntry(10, Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", "next page")));
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/audit-log?paging=cursor&pageSize=2&entity=admins");
+    JsonMockHttpResponse response = new JsonMockHttpResponse();
+
+    restDispatcher.invoke(request, response);
+
+    JsonNode links = response.getContentAsJson().get("_links");
+    assertThat(links.get("first").get("href").asText()).endsWith("?paging=cursor&pageSize=2&entity=admins");
+    assertThat(links.get("next").get("href").asText())
+      .endsWith("?paging=cursor&cursor=" + PageCursor.before(21).encode() + "&pageSize=2&entity=admins");
+    assertThat(links.get("prev")).isNull();
+    assertThat(links.get("last")).isNull();
+  }
+
+  @Test
+  void shouldReadOneMoreEntryInsteadOfCounting() throws URISyntaxException {
+    when(service.getEntries(any())).thenReturn(ImmutableList.of(
+      new LogEntry(3, Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", "third"),
+      new LogEntry(2, Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", "second"),
+      new LogEntry(1, Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", "first")));
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/audit-log?pageSize=2&total=false");
+    JsonMockHttpResponse response = new JsonMockHttpResponse();
+
+    restDispatcher.invoke(request, response);
+
+    verify(service).getEntries(argThat(filterContext -> {
+      assertThat(filterContext.getReadLimit()).isEqualTo(3);
+      return true;
+    }));
+    verify(service, never()).getTotalEntries(any());
+    JsonNode content = response.getContentAsJson();
+    assertThat(content.get("_embedded").get("entries").size()).isEqualTo(2);
+    assertThat(content.get("hasMore").asBoolean()).isTrue();
+    assertThat(content.path("pageTotal").isIntegralNumber()).isFalse();
+    JsonNode links = content.get("_links");
+    assertThat(links.get("next").get("href").asText()).contains("total=false");
+    assertThat(links.get("last")).isNull();
+  }
+
+  @Test
+  void shouldSeekWithCursor() throws URISyntaxException {
+    when(service.getEntries(any())).thenReturn(ImmutableList.of(
+      new LogEntry(20, Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", "older")));
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/audit-log?pageSize=2&cursor=" + PageCursor.before(21).encode());
+    JsonMockHttpResponse response = new JsonMockHttpResponse();
+
+    restDispatcher.invoke(request, response);
+
+    verify(service).getEntries(argThat(filterContext -> {
+      assertThat(filterContext.getBeforeId()).isEqualTo(21L);
+      assertThat(filterContext.getAfterId()).isNull();
+      return true;
+    }));
+    JsonNode links = response.getContentAsJson().get("_links");
+    assertThat(links.get("next")).isNull();
+    assertThat(links.get("prev").get("href").asText())
+      .endsWith("?paging=cursor&cursor=" + PageCursor.after(20).encode() + "&pageSize=2");
+  }
+
+  @Test
+  void shouldNotLinkToEmptyPageAfterFullCursorPage() throws URISyntaxException {
+    when(service.getEntries(any())).thenReturn(ImmutableList.of(
+      new LogEntry(20, Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", "second"),
+      new LogEntry(19, Instant.ofEpochMilli(1700000000), "admins", "trillian", "modified", "first")));
+
+    MockHttpRequest request = MockHttpRequest.get("/v2/audit-log?pageSize=2&cursor=" + PageCursor.before(21).encode());
+    JsonMockHttpResponse response = new JsonMockHttpResponse();
+
+    restDispatcher.invoke(request, response);
+
+    verify(service).getEntries(argThat(filterContext -> {
+      assertThat(filterContext.getReadLimit()).isEqualTo(3);
+      return true;
+    }));
+    JsonNode content = response.getContentAsJson();
+    assertThat(content.get("_embedded").get("entries").size()).isEqualTo(2);
+    assertThat(content.get("hasMore").asBoolean()).isFalse();
+    assertThat(content.get("_links").get("next")).isNull();
+  }
+
+  @Test
+  void shouldRejectInvalidCursor() throws URISyntaxException {
+    MockHttpRequest request = MockHttpRequest.get("/v2/audit-log?cursor=invalid");
+    MockHttpResponse response = new MockHttpResponse();
+
+    restDispatcher.invoke(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(400);
+  }
+
+  @Test
+  void shouldRejectMalformedDate() throws URISyntaxException {
+    MockHttpRequest request = MockHttpRequest.get("/v2/audit-log?from=2024-13-45");
+    MockHttpResponse response = new MockHttpResponse();
+
+    restDispatcher.invoke(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(400);
+  }
+
+  @Test
+  void shouldRejectMalformedDateOnExport() throws URISyntaxException {
+    MockHttpRequest request = MockHttpRequest.get("/v2/audit-log/export/text-plain?to=yesterday");
+    MockHttpResponse response = new MockHttpResponse();
+
+    restDispatcher.invoke(request, response);
+
+    assertThat(response.getStatus()).isEqualTo(400);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void mockStreamedEntries(List<LogEntry> entries) {
+    doAnswer(invocation -> {
+      entries.forEach(invocation.getArgument(1, Consumer.class));
+      return null;
+    }).when(service).streamEntries(any(), any());
+  }
 }
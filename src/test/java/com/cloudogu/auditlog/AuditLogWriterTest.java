@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AuditLogWriterTest {
+
+  private static final String CONNECTION_URL = "jdbc:h2:mem:writer-tests";
+
+  private final List<Runnable> scheduledTasks = new ArrayList<>();
+
+  private Connection connection;
+  private Dictionaries dictionaries;
+  private Partitions partitions;
+  private AuditLogWriter writer;
+
+  @BeforeEach
+  void initTestDB(@TempDir Path archiveDirectory) throws SQLException {
+    connection = DriverManager.getConnection(CONNECTION_URL);
+    AuditLogConfiguration configuration = new AuditLogConfiguration();
+    configuration.setWriterBatchSize(2);
+    configuration.setWriterLingerMillis(0);
+    AuditLogDatabase database = new AuditLogDatabase(CONNECTION_URL);
+    dictionaries = new Dictionaries(database);
+    partitions = new Partitions(database);
+    JdbcAuditLogStore store = new JdbcAuditLogStore(database, dictionaries, partitions, new Archive(archiveDirectory), configuration);
+    writer = new AuditLogWriter(store, configuration, scheduledTasks::add);
+  }
+
+  @AfterEach
+  void clearDB() throws SQLException {
+    connection.createStatement().executeUpdate("DROP ALL OBJECTS");
+    connection.close();
+  }
+
+  @Test
+  void shouldScheduleOnlyOneDrainForQueuedEntries() {
+    writer.append(entry("first", "repository"));
+    writer.append(entry("second", "user"));
+    writer.append(entry("third", "group"));
+
+    assertThat(scheduledTasks).hasSize(1);
+  }
+
+  @Test
+  void shouldNotKnowLabelsBeforeWrite() {
+    writer.append(entry("first", "repository"));
+
+    assertThat(dictionaries.getLabels()).isEmpty();
+  }
+
+  @Test
+  void shouldWriteAllQueuedEntriesInBatches() throws SQLException {
+    writer.append(entry("first", "repository", "permission"));
+    writer.append(entry("second", "user"));
+    writer.append(entry("third"));
+
+    runScheduledTasks();
+
+    assertThat(query("SELECT E.VALUE_ FROM AUDITLOG_2024_01 A JOIN ENTITY_DICT E ON E.ID = A.ENTITY_ID ORDER BY A.ID")).containsExactly("first", "second", "third");
+    assertThat(query("SELECT E.VALUE_ || ':' || D.VALUE_ FROM LABELS_2024_01 L JOIN AUDITLOG_2024_01 A ON A.ID = L.AUDIT JOIN ENTITY_DICT E ON E.ID = A.ENTITY_ID JOIN LABEL_DICT D ON D.ID = L.LABEL_ID ORDER BY D.VALUE_"))
+      .containsExactly("first:permission", "first:repository", "second:user");
+    assertThat(dictionaries.getLabels()).containsExactlyInAnyOrder("permission", "repository", "user");
+  }
+
+  @Test
+  void shouldScheduleNewDrainForEntriesAfterFlush() throws SQLException {
+    writer.append(entry("first"));
+    runScheduledTasks();
+
+    writer.append(entry("second"));
+
+    assertThat(scheduledTasks).hasSize(1);
+    runScheduledTasks();
+    assertThat(query("SELECT E.VALUE_ FROM AUDITLOG_2024_01 A JOIN ENTITY_DICT E ON E.ID = A.ENTITY_ID ORDER BY A.ID")).containsExactly("first", "second");
+  }
+
+  @Test
+  void shouldReuseDictionaryIds() throws SQLException {
+    writer.append(entry("first", "repository"));
+    writer.append(entry("first", "repository"));
+    writer.append(entry("second", "repository"));
+
+    runScheduledTasks();
+
+    assertThat(query("SELECT COUNT(DISTINCT ENTITY_ID) FROM AUDITLOG_2024_01")).containsExactly("2");
+    assertThat(query("SELECT COUNT(*) FROM LABEL_DICT")).containsExactly("1");
+    assertThat(query("SELECT COUNT(*) FROM ACTION_DICT")).containsExactly("1");
+  }
+
+  @Test
+  void shouldWriteEntriesIntoPartitionOfTheirMonth() throws SQLException {
+    writer.append(entry(Instant.parse("2024-01-31T23:59:59.999Z"), "first", "repository"));
+    writer.append(entry(Instant.parse("2024-02-01T00:00:00Z"), "second", "repository"));
+
+    runScheduledTasks();
+
+    assertThat(partitions.getAll())
+      .extracting(Partition::getAuditTable)
+      .containsExactly("AUDITLOG_2024_02", "AUDITLOG_2024_01");
+    assertThat(query("SELECT ID FROM AUDITLOG_2024_01")).containsExactly("1");
+    assertThat(query("SELECT ID FROM AUDITLOG_2024_02")).containsExactly("2");
+    assertThat(query("SELECT AUDIT FROM LABELS_2024_02")).containsExactly("2");
+  }
+
+  @Test
+  void shouldWriteLateEntriesIntoNewestPartition() throws SQLException {
+    writer.append(entry(Instant.parse("2024-02-10T10:00:00Z"), "first", "repository"));
+    runScheduledTasks();
+    writer.append(entry(Instant.parse("2024-01-20T10:00:00Z"), "late", "repository"));
+    runScheduledTasks();
+
+    assertThat(partitions.getAll())
+      .extracting(Partition::getAuditTable)
+      .containsExactly("AUDITLOG_2024_02");
+    assertThat(partitions.getAll().get(0).getStart()).isEqualTo(Instant.parse("2024-01-20T10:00:00Z"));
+    assertThat(query("SELECT ID FROM AUDITLOG_2024_02 ORDER BY ID")).containsExactly("1", "2");
+    assertThat(query("SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'AUDITLOG_2024_01'")).containsExactly("0");
+  }
+
+  private void runScheduledTasks() {
+    while (!scheduledTasks.isEmpty()) {
+      scheduledTasks.remove(0).run();
+    }
+  }
+
+  private PendingEntry entry(String entity, String... labels) {
+    return entry(Instant.parse("2024-01-15T10:00:00Z"), entity, labels);
+  }
+
+  private PendingEntry entry(Instant timestamp, String entity, String... labels) {
+    return new PendingEntry(timestamp, entity, "trillian", "created", "created " + entity, labels);
+  }
+
+  private List<String> query(String sql) throws SQLException {
+    List<String> result = new ArrayList<>();
+    try (ResultSet resultSet = connection.createStatement().executeQuery(sql)) {
+      while (resultSet.next()) {
+        result.add(resultSet.getString(1));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import jakarta.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import org.junit.jupiter.api.Test;
+import sonia.scm.auditlog.AuditEntry;
+import sonia.scm.xml.XmlCipherStringAdapter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AuditMetadataTest {
+
+  @Test
+  void shouldResolveMetadataOncePerClass() {
+    assertThat(AuditMetadata.of(Annotated.class)).isSameAs(AuditMetadata.of(Annotated.class));
+  }
+
+  @Test
+  void shouldResolveAnnotation() {
+    AuditMetadata metadata = AuditMetadata.of(Annotated.class);
+
+    assertThat(metadata.getLabels()).containsExactly("heart-of-gold");
+    assertThat(metadata.isMasked("improbability")).isTrue();
+    assertThat(metadata.isIgnored("name")).isTrue();
+    assertThat(metadata.isMasked("name")).isFalse();
+    assertThat(metadata.isMasked("accessToken")).isFalse();
+  }
+
+  @Test
+  void shouldAcceptDuplicateFieldNames() {
+    AuditMetadata metadata = AuditMetadata.of(Duplicates.class);
+
+    assertThat(metadata.isMasked("password")).isTrue();
+    assertThat(metadata.isIgnored("name")).isTrue();
+  }
+
+  @Test
+  void shouldMaskEncryptedFieldsOfSuperClasses() {
+    AuditMetadata metadata = AuditMetadata.of(Derived.class);
+
+    assertThat(metadata.isMasked("cipher")).isTrue();
+    assertThat(metadata.isMasked("apiKey")).isTrue();
+    assertThat(metadata.isMasked("url")).isFalse();
+  }
+
+  @Test
+  void shouldAutoMaskWithoutAnnotation() {
+    assertThat(AuditMetadata.DEFAULT.getLabels()).isEmpty();
+    assertThat(AuditMetadata.DEFAULT.isMasked("Password")).isTrue();
+    assertThat(AuditMetadata.of(String.class).isMasked("value")).isFalse();
+  }
+
+  @AuditEntry(labels = "heart-of-gold", maskedFields = "improbability", ignoredFields = "name", autoMask = false)
+  static class Annotated {
+    String name;
+    String improbability;
+    String accessToken;
+  }
+
+  @AuditEntry(maskedFields = {"password", "password"}, ignoredFields = {"name", "name"})
+  static class Duplicates {
+    String name;
+    String password;
+  }
+
+  static class Base {
+    @XmlJavaTypeAdapter(XmlCipherStringAdapter.class)
+    String cipher;
+  }
+
+  static class Derived extends Base {
+    String apiKey;
+    String url;
+  }
+}
@@ -16,6 +16,7 @@
 
 package com.cloudogu.auditlog;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.AllArgsConstructor;
 import org.apache.shiro.authz.AuthorizationException;
 import org.github.sdorra.jse.ShiroExtension;
@@ -25,29 +26,37 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.junit.jupiter.MockitoExtension;
 import sonia.scm.auditlog.AuditEntry;
 import sonia.scm.auditlog.AuditLogEntity;
 import sonia.scm.auditlog.EntryCreationContext;
 import sonia.scm.repository.Repository;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.Connection;
-import java.sql.Date;
 import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.RejectedExecutionException;
 
 import static java.util.Collections.emptySet;
 import static org.assertj.core.api.Assertions.as;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.InstanceOfAssertFactories.STRING;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static sonia.scm.repository.RepositoryTestData.create42Puzzle;
 import static sonia.scm.repository.RepositoryTestData.createHeartOfGold;
@@ -55,22 +64,41 @@ import static sonia.scm.repository.RepositoryTestData.createHeartOfGold;
 @ExtendWith({MockitoExtension.class, ShiroExtension.class})
 class DefaultAuditLogServiceTest {
 
+  private final String connectionUrl = "jdbc:h2:mem:unit-tests;TIME ZONE=ECT";
+
   private Connection connection;
+  private AuditLogDatabase database;
+  private Dictionaries dictionaries;
+  private Partitions partitions;
+  private AuditLogConfiguration configuration;
+  private AuditLogWriter writer;
+  private Archive archive;
+  private JdbcAuditLogStore store;
+  private SimpleMeterRegistry meterRegistry;
+  private AuditLogMetrics metrics;
   private DefaultAuditLogService service;
   private final TimeZone defaultTimeZone = TimeZone.getDefault();
 
   @BeforeEach
-  void initTestDB() throws SQLException {
-    String connectionUrl = "jdbc:h2:mem:unit-tests;TIME ZONE=ECT";
+  void initTestDB(@TempDir Path archiveDirectory) throws SQLException {
     connection = DriverManager.getConnection(connectionUrl);
-    service = new DefaultAuditLogService(new AuditLogDatabase(connectionUrl), Runnable::run);
+    database = new AuditLogDatabase(connectionUrl);
+    configuration = new AuditLogConfiguration();
+    configuration.setWriterLingerMillis(0);
+    dictionaries = new Dictionaries(database);
+    partitions = new Partitions(database);
+    archive = new Archive(archiveDirectory);
+    store = new JdbcAuditLogStore(database, dictionaries, partitions, archive, configuration);
+    writer = new AuditLogWriter(store, configuration, Runnable::run);
+    meterRegistry = new SimpleMeterRegistry();
+    metrics = new AuditLogMetrics(meterRegistry);
+    service = new DefaultAuditLogService(store, Runnable::run, writer, configuration, null, metrics);
     TimeZone.setDefault(TimeZone.getTimeZone("ECT"));
   }
 
   @AfterEach
   void clearDB() throws SQLException {
-    connection.createStatement().executeUpdate("DROP TABLE AUDITLOG");
-    connection.createStatement().executeUpdate("DROP TABLE LABELS");
+    connection.createStatement().executeUpdate("DROP ALL OBJECTS");
     TimeZone.setDefault(defaultTimeZone);
   }
 
@@ -78,6 +106,7 @@ class DefaultAuditLogServiceTest {
   void shouldNotReadAuditLogWithoutPermission() {
     assertThrows(AuthorizationException.class, () -> service.getTotalEntries(new AuditLogFilterContext()));
     assertThrows(AuthorizationException.class, () -> service.getEntries(new AuditLogFilterContext()));
+    assertThrows(AuthorizationException.class, () -> service.streamEntries(new AuditLogFilterContext(), entry -> {}));
   }
 
   @Nested
@@ -107,6 +136,36 @@ class DefaultAuditLogServiceTest {
       assertThat(entry.getEntry()).contains("[MODIFIED] 'trillian' modified repository 'hitchhiker/42Puzzle'");
     }
 
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldFindEntriesByFullTextQuery() {
+      Repository repository = create42Puzzle();
+      Repository withDescription = repository.clone();
+      withDescription.setDescription("The answer to life");
+      Repository withContact = repository.clone();
+      withContact.setContact("deep-thought@hitchhiker.com");
+      service.createEntry(new EntryCreationContext<>(withDescription, repository));
+      service.createEntry(new EntryCreationContext<>(withContact, repository));
+
+      AuditLogFilterContext filterContext = new AuditLogFilterContext();
+      filterContext.setQuery("Answer LIFE");
+      assertThat(service.getEntries(filterContext))
+        .extracting(LogEntry::getEntry)
+        .singleElement(as(STRING))
+        .contains("The answer to life");
+      assertThat(service.getTotalEntries(filterContext)).isEqualTo(1);
+
+      filterContext.setQuery("thought");
+      filterContext.setAction("modified");
+      assertThat(service.getEntries(filterContext))
+        .extracting(LogEntry::getEntry)
+        .singleElement(as(STRING))
+        .contains("deep-thought@hitchhiker.com");
+
+      filterContext.setQuery("deep-th*");
+      assertThat(service.getTotalEntries(filterContext)).isEqualTo(1);
+    }
+
     @Test
     @SubjectAware(value = "trillian")
     void shouldCreateNewEntryForCreated() {
@@ -139,6 +198,168 @@ class DefaultAuditLogServiceTest {
       assertThat(entry.getEntry()).contains("[DELETED] 'trillian' deleted repository 'hitchhiker/42Puzzle'");
     }
 
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldWriteEntriesInOrderOfCreationIfDiffsFinishInDifferentOrder() {
+      List<Runnable> diffTasks = new ArrayList<>();
+      DefaultAuditLogService parallelService = new DefaultAuditLogService(store, diffTasks::add, writer, configuration, null, metrics);
+      parallelService.createEntry(new EntryCreationContext<>(create42Puzzle(), null));
+      parallelService.createEntry(new EntryCreationContext<>(createHeartOfGold(), null));
+      parallelService.createEntry(new EntryCreationContext<>(null, create42Puzzle()));
+
+      diffTasks.get(2).run();
+      diffTasks.get(1).run();
+
+      assertThat(parallelService.getDiffMetrics().getQueueDepth()).isEqualTo(1);
+      assertThat(service.getEntries(new AuditLogFilterContext())).isEmpty();
+
+      diffTasks.get(0).run();
+
+      List<LogEntry> entries = new ArrayList<>(service.getEntries(new AuditLogFilterContext()));
+      assertThat(entries)
+        .extracting(LogEntry::getAction)
+        .containsExactly("deleted", "created", "created");
+      assertThat(entries.get(0).getTimestamp()).isAfterOrEqualTo(entries.get(1).getTimestamp());
+      assertThat(entries.get(1).getTimestamp()).isAfterOrEqualTo(entries.get(2).getTimestamp());
+      assertThat(entries.get(2).getEntity()).isEqualTo("hitchhiker/42puzzle");
+      assertThat(parallelService.getDiffMetrics().getProcessed()).isEqualTo(3);
+      assertThat(writer.getMetrics().getQueueDepth()).isZero();
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldDropEntriesIfQueueIsFull() {
+      configuration.setQueueCapacity(1);
+      configuration.setQueueOverflow(AuditLogConfiguration.OverflowPolicy.DROP);
+      List<Runnable> diffTasks = new ArrayList<>();
+      DefaultAuditLogService boundedService = new DefaultAuditLogService(store, diffTasks::add, writer, configuration, null, metrics);
+
+      boundedService.createEntry(new EntryCreationContext<>(create42Puzzle(), null));
+      boundedService.createEntry(new EntryCreationContext<>(createHeartOfGold(), null));
+      diffTasks.forEach(Runnable::run);
+
+      assertThat(boundedService.getDroppedEntries()).isEqualTo(1);
+      assertThat(meterRegistry.get("scm.auditlog.entries.dropped").counter().count()).isEqualTo(1);
+      assertThat(service.getEntries(new AuditLogFilterContext()))
+        .extracting(LogEntry::getEntity)
+        .containsExactly("hitchhiker/42puzzle");
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldKeepPlaceInQueueUntilEntryHasBeenWritten() {
+      configuration.setQueueCapacity(1);
+      configuration.setQueueOverflow(AuditLogConfiguration.OverflowPolicy.DROP);
+      List<Runnable> writerTasks = new ArrayList<>();
+      AuditLogWriter slowWriter = new AuditLogWriter(store, configuration, writerTasks::add);
+      DefaultAuditLogService boundedService = new DefaultAuditLogService(store, Runnable::run, slowWriter, configuration, null, metrics);
+
+      boundedService.createEntry(new EntryCreationContext<>(create42Puzzle(), null));
+      // the diff of the first entry has been created, but it has not been written yet
+      boundedService.createEntry(new EntryCreationContext<>(createHeartOfGold(), null));
+      writerTasks.remove(0).run();
+      boundedService.createEntry(new EntryCreationContext<>(createHeartOfGold(), null));
+      writerTasks.remove(0).run();
+
+      assertThat(boundedService.getDroppedEntries()).isEqualTo(1);
+      assertThat(service.getEntries(new AuditLogFilterContext()))
+        .extracting(LogEntry::getEntity)
+        .containsExactly("hitchhiker/heartofgold", "hitchhiker/42puzzle");
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldSpillEntriesIfQueueIsFull(@TempDir Path overflowDirectory) {
+      configuration.setQueueCapacity(1);
+      configuration.setQueueOverflow(AuditLogConfiguration.OverflowPolicy.SPILL);
+      EntryOverflow overflow = new EntryOverflow(overflowDirectory.resolve("overflow"), writer, configuration, Runnable::run);
+      List<Runnable> diffTasks = new ArrayList<>();
+      DefaultAuditLogService boundedService = new DefaultAuditLogService(store, diffTasks::add, writer, configuration, overflow, metrics);
+
+      boundedService.createEntry(new EntryCreationContext<>(create42Puzzle(), null));
+      boundedService.createEntry(new EntryCreationContext<>(createHeartOfGold(), null));
+      diffTasks.forEach(Runnable::run);
+
+      assertThat(boundedService.getSpilledEntries()).isEqualTo(1);
+      assertThat(service.getEntries(new AuditLogFilterContext()))
+        .extracting(LogEntry::getEntity)
+        .containsExactlyInAnyOrder("hitchhiker/42puzzle", "hitchhiker/heartofgold");
+      assertThat(overflowDirectory).isEmptyDirectory();
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldContinueInterruptedReplayOfOverflow(@TempDir Path overflowDirectory) throws IOException {
+      ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+      new PendingEntry(Instant.now(), "replayed", "trillian", "created", "Diff", new String[]{"repository"})
+        .writeTo(new DataOutputStream(replayed));
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      content.writeBytes(replayed.toByteArray());
+      new PendingEntry(Instant.now(), "remaining", "trillian", "created", "Diff", new String[]{"repository"})
+        .writeTo(new DataOutputStream(content));
+      Files.write(overflowDirectory.resolve("overflow.replay"), content.toByteArray());
+      try (DataOutputStream offset = new DataOutputStream(Files.newOutputStream(overflowDirectory.resolve("overflow.offset")))) {
+        offset.writeLong(replayed.size());
+      }
+      EntryOverflow overflow = new EntryOverflow(overflowDirectory.resolve("overflow"), writer, configuration, Runnable::run);
+
+      overflow.contextInitialized(null);
+
+      assertThat(service.getEntries(new AuditLogFilterContext()))
+        .extracting(LogEntry::getEntity)
+        .containsExactly("remaining");
+      assertThat(overflowDirectory).isEmptyDirectory();
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldContinueReplayOfOverflowAfterRepeatedInterruptions(@TempDir Path overflowDirectory) throws IOException {
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      List<Long> offsets = new ArrayList<>();
+      for (int i = 1; i <= 5; i++) {
+        new PendingEntry(Instant.now(), "entry-" + i, "trillian", "created", "Diff", new String[]{"repository"})
+          .writeTo(new DataOutputStream(content));
+        offsets.add((long) content.size());
+      }
+      Files.write(overflowDirectory.resolve("overflow.replay"), content.toByteArray());
+
+      replayInterruptedAfter(overflowDirectory, 2);
+      assertThat(readOffset(overflowDirectory)).isEqualTo(offsets.get(1));
+
+      replayInterruptedAfter(overflowDirectory, 2);
+      assertThat(readOffset(overflowDirectory)).isEqualTo(offsets.get(3));
+
+      new EntryOverflow(overflowDirectory.resolve("overflow"), writer, configuration, Runnable::run).contextInitialized(null);
+
+      assertThat(service.getEntries(new AuditLogFilterContext()))
+        .extracting(LogEntry::getEntity)
+        .containsExactlyInAnyOrder("entry-1", "entry-2", "entry-3", "entry-4", "entry-5");
+      assertThat(overflowDirectory).isEmptyDirectory();
+    }
+
+    private void replayInterruptedAfter(Path overflowDirectory, int entries) {
+      EntryOverflow[] overflow = new EntryOverflow[1];
+      AuditLogWriter interruptingWriter = new AuditLogWriter(store, configuration, Runnable::run) {
+        private int appended;
+
+        @Override
+        void append(PendingEntry entry) {
+          super.append(entry);
+          if (++appended == entries) {
+            overflow[0].contextDestroyed(null);
+          }
+        }
+      };
+      overflow[0] = new EntryOverflow(overflowDirectory.resolve("overflow"), interruptingWriter, configuration, Runnable::run);
+      overflow[0].contextInitialized(null);
+    }
+
+    private long readOffset(Path overflowDirectory) throws IOException {
+      try (DataInputStream input = new DataInputStream(Files.newInputStream(overflowDirectory.resolve("overflow.offset")))) {
+        return input.readLong();
+      }
+    }
+
     @Test
     @SubjectAware(value = "trillian")
     void shouldGetTotalEntries() {
@@ -155,6 +376,56 @@ class DefaultAuditLogServiceTest {
       assertThat(totalEntries).isEqualTo(6);
     }
 
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldCountEntriesOfPageWithQueryExecutor() {
+      List<Runnable> queryTasks = new ArrayList<>();
+      DefaultAuditLogService pageService = new DefaultAuditLogService(store, Runnable::run, task -> {
+        queryTasks.add(task);
+        task.run();
+      }, writer, configuration, null, metrics);
+      pageService.createEntry(new EntryCreationContext<>(create42Puzzle(), null));
+      pageService.createEntry(new EntryCreationContext<>(createHeartOfGold(), null));
+
+      AuditLogFilterContext filterContext = new AuditLogFilterContext();
+      filterContext.setLimit(1);
+      AuditLogPage page = pageService.getPage(filterContext);
+
+      assertThat(page.getEntries()).extracting(LogEntry::getEntity).containsExactly("hitchhiker/heartofgold");
+      assertThat(page.getTotalEntries()).isEqualTo(2);
+      assertThat(page.getLabels()).contains("repository");
+      assertThat(queryTasks).hasSize(1);
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldCountEntriesOfPageInRequestThreadIfQueryWorkersAreBusy() {
+      DefaultAuditLogService pageService = new DefaultAuditLogService(store, Runnable::run, task -> {
+        throw new RejectedExecutionException("all query workers are busy");
+      }, writer, configuration, null, metrics);
+      pageService.createEntry(new EntryCreationContext<>(create42Puzzle(), null));
+      pageService.createEntry(new EntryCreationContext<>(createHeartOfGold(), null));
+
+      AuditLogFilterContext filterContext = new AuditLogFilterContext();
+      filterContext.setLimit(1);
+      AuditLogPage page = pageService.getPage(filterContext);
+
+      assertThat(page.getEntries()).extracting(LogEntry::getEntity).containsExactly("hitchhiker/heartofgold");
+      assertThat(page.getTotalEntries()).isEqualTo(2);
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldPublishMetrics() {
+      service.createEntry(new EntryCreationContext<>(create42Puzzle(), null));
+      service.getEntries(new AuditLogFilterContext());
+
+      assertThat(meterRegistry.get("scm.auditlog.diff").tag("action", "created").tag("label", "repository").timer().count()).isEqualTo(1);
+      assertThat(meterRegistry.get("scm.auditlog.queue.processed").tag("stage", "diff").functionCounter().count()).isEqualTo(1);
+      assertThat(meterRegistry.get("scm.auditlog.queue.depth").tag("stage", "diff").gauge().value()).isZero();
+      assertThat(meterRegistry.get("scm.auditlog.query").tag("query", "entries").timer().count()).isEqualTo(1);
+    }
+
     @Test
     @SubjectAware(value = "trillian")
     void shouldCreateEntryWithCorrectEntityName() {
@@ -274,7 +545,7 @@ class DefaultAuditLogServiceTest {
       prepareDbEntries();
 
       AuditLogFilterContext filter = new AuditLogFilterContext();
-      filter.setFrom(new Date(Instant.now().minus(5, ChronoUnit.DAYS).toEpochMilli()));
+      filter.setFrom(Instant.now().minus(5, ChronoUnit.DAYS));
       Collection<LogEntry> entries = service.getEntries(filter);
 
       assertThat(entries).hasSize(2);
@@ -286,7 +557,7 @@ class DefaultAuditLogServiceTest {
       prepareDbEntries();
 
       AuditLogFilterContext filter = new AuditLogFilterContext();
-      filter.setTo(new Date(Instant.now().plus(5, ChronoUnit.DAYS).toEpochMilli()));
+      filter.setTo(Instant.now().plus(5, ChronoUnit.DAYS));
       Collection<LogEntry> entries = service.getEntries(filter);
 
       assertThat(entries).hasSize(2);
@@ -298,8 +569,8 @@ class DefaultAuditLogServiceTest {
       prepareDbEntries();
 
       AuditLogFilterContext filter = new AuditLogFilterContext();
-      filter.setFrom(new Date(Instant.now().minus(5, ChronoUnit.DAYS).toEpochMilli()));
-      filter.setTo(new Date(Instant.now().plus(5, ChronoUnit.DAYS).toEpochMilli()));
+      filter.setFrom(Instant.now().minus(5, ChronoUnit.DAYS));
+      filter.setTo(Instant.now().plus(5, ChronoUnit.DAYS));
       Collection<LogEntry> entries = service.getEntries(filter);
 
       assertThat(entries).hasSize(2);
@@ -323,8 +594,8 @@ class DefaultAuditLogServiceTest {
       prepareDbEntries();
 
       AuditLogFilterContext filter = new AuditLogFilterContext();
-      filter.setFrom(new Date(Instant.now().minus(5, ChronoUnit.DAYS).toEpochMilli()));
-      filter.setTo(new Date(Instant.now().plus(5, ChronoUnit.DAYS).toEpochMilli()));
+      filter.setFrom(Instant.now().minus(5, ChronoUnit.DAYS));
+      filter.setTo(Instant.now().plus(5, ChronoUnit.DAYS));
       filter.setUsername("trillian");
       filter.setLabel("test");
       filter.setEntity("TRILLIAN");
@@ -339,6 +610,132 @@ class DefaultAuditLogServiceTest {
         "  - 'name' changed: 'oldEntity' -> 'entity'");
     }
 
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldStreamFilteredEntries() {
+      prepareNumberedEntries(3);
+      prepareDbEntries();
+
+      AuditLogFilterContext filter = new AuditLogFilterContext();
+      filter.setLabel("test");
+      List<String> streamed = new ArrayList<>();
+      service.streamEntries(filter, entry -> streamed.add(entry.getEntity()));
+
+      assertThat(streamed).containsExactly("trillian", "3", "2", "1");
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldSeekOlderEntriesWithCursor() {
+      prepareNumberedEntries(5);
+      long thirdId = idOfEntity("3");
+
+      AuditLogFilterContext filter = new AuditLogFilterContext();
+      filter.setLimit(2);
+      filter.setBeforeId(thirdId);
+      Collection<LogEntry> entries = service.getEntries(filter);
+
+      assertThat(entries).extracting(LogEntry::getEntity).containsExactly("2", "1");
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldSeekNewerEntriesWithCursorInDescendingOrder() {
+      prepareNumberedEntries(5);
+      long secondId = idOfEntity("2");
+
+      AuditLogFilterContext filter = new AuditLogFilterContext();
+      filter.setLimit(2);
+      filter.setAfterId(secondId);
+      Collection<LogEntry> entries = service.getEntries(filter);
+
+      assertThat(entries).extracting(LogEntry::getEntity).containsExactly("4", "3");
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldReadOneMoreEntryInsteadOfCounting() {
+      prepareNumberedEntries(5);
+
+      AuditLogFilterContext older = new AuditLogFilterContext();
+      older.setLimit(2);
+      older.setPageNumber(2);
+      older.setLookAhead(true);
+      older.setCountEntries(false);
+      AuditLogFilterContext newer = new AuditLogFilterContext();
+      newer.setLimit(2);
+      newer.setAfterId(idOfEntity("3"));
+      newer.setLookAhead(true);
+      newer.setCountEntries(false);
+
+      AuditLogPage olderPage = service.getPage(older);
+      AuditLogPage newerPage = service.getPage(newer);
+
+      assertThat(olderPage.getEntries()).extracting(LogEntry::getEntity).containsExactly("3", "2");
+      assertThat(olderPage.isHasMore()).isTrue();
+      assertThat(olderPage.getTotalEntries()).isNull();
+      assertThat(newerPage.getEntries()).extracting(LogEntry::getEntity).containsExactly("5", "4");
+      assertThat(newerPage.isHasMore()).isFalse();
+      assertThat(meterRegistry.find("scm.auditlog.query").tag("query", "count").timer()).isNull();
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldCombineCursorWithFilters() {
+      prepareNumberedEntries(5);
+      long fifthId = idOfEntity("5");
+
+      AuditLogFilterContext filter = new AuditLogFilterContext();
+      filter.setBeforeId(fifthId);
+      filter.setEntity("4");
+      Collection<LogEntry> entries = service.getEntries(filter);
+
+      assertThat(entries).extracting(LogEntry::getEntity).containsExactly("4");
+      assertThat(service.getTotalEntries(filter)).isEqualTo(1);
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldPageAcrossMonthlyPartitions() {
+      prepareMonthlyEntries();
+
+      AuditLogFilterContext filter = new AuditLogFilterContext();
+      filter.setLimit(4);
+      filter.setPageNumber(2);
+
+      assertThat(service.getEntries(filter)).extracting(LogEntry::getEntity).containsExactly("jan-2", "jan-1");
+      assertThat(service.getTotalEntries(filter)).isEqualTo(6);
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldSeekAcrossMonthlyPartitions() {
+      prepareMonthlyEntries();
+
+      AuditLogFilterContext older = new AuditLogFilterContext();
+      older.setLimit(3);
+      older.setBeforeId(idOfEntity("feb-2"));
+      AuditLogFilterContext newer = new AuditLogFilterContext();
+      newer.setLimit(3);
+      newer.setAfterId(idOfEntity("jan-1"));
+
+      assertThat(service.getEntries(older)).extracting(LogEntry::getEntity).containsExactly("feb-1", "jan-2", "jan-1");
+      assertThat(service.getEntries(newer)).extracting(LogEntry::getEntity).containsExactly("feb-2", "feb-1", "jan-2");
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldOnlyCountPartitionsWithinTimeRange() {
+      prepareMonthlyEntries();
+
+      AuditLogFilterContext filter = new AuditLogFilterContext();
+      filter.setFrom(Instant.parse("2024-02-01T00:00:00Z"));
+      filter.setTo(Instant.parse("2024-03-01T00:00:00Z"));
+
+      assertThat(service.getEntries(filter)).extracting(LogEntry::getEntity).containsExactly("feb-2", "feb-1");
+      assertThat(service.getTotalEntries(filter)).isEqualTo(2);
+    }
+
     @Test
     @SubjectAware(value = "trillian")
     void shouldFilterBasedOnSystemTimeZone() throws SQLException {
@@ -352,24 +749,84 @@ class DefaultAuditLogServiceTest {
       createTimeZoneDependentEntries(1704063599000L, "Too soon");
 
       AuditLogFilterContext filter = new AuditLogFilterContext();
-      filter.setFrom(Date.valueOf("2024-01-01"));
-      filter.setTo(Date.valueOf("2024-01-02"));
+      filter.setFrom(AuditLogFilterContext.parseLowerBound("2024-01-01", ZoneId.systemDefault()));
+      filter.setTo(AuditLogFilterContext.parseUpperBound("2024-01-01", ZoneId.systemDefault()));
       Collection<LogEntry> entries = service.getEntries(filter);
 
       assertThat(entries).hasSize(2);
       assertThat(entries.stream().map(LogEntry::getEntity)).containsOnly("within upper limit", "within lower limit");
+      assertThat(service.getTotalEntries(filter)).isEqualTo(2);
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldCountByLabelAndActionWithCounters() {
+      writer.append(new PendingEntry(Instant.parse("2024-01-10T10:00:00Z"), "a", "trillian", "created", "Diff", new String[]{"repository", "permission"}));
+      writer.append(new PendingEntry(Instant.parse("2024-01-11T10:00:00Z"), "b", "trillian", "modified", "Diff", new String[]{"repository"}));
+      writer.append(new PendingEntry(Instant.parse("2024-02-10T10:00:00Z"), "c", "trillian", "created", "Diff", new String[0]));
+
+      assertThat(service.getTotalEntries(new AuditLogFilterContext())).isEqualTo(3);
+      assertThat(service.getTotalEntries(new AuditLogFilterContext(1, 10, null, null, null, null, "repository", null))).isEqualTo(2);
+      assertThat(service.getTotalEntries(new AuditLogFilterContext(1, 10, null, null, null, null, null, "created"))).isEqualTo(2);
+      assertThat(service.getTotalEntries(new AuditLogFilterContext(1, 10, null, null, null, null, "repository", "created"))).isEqualTo(1);
+      assertThat(service.getTotalEntries(new AuditLogFilterContext(1, 10, null, null, null, null, "unknown", null))).isZero();
+      assertThat(service.getTotalEntries(new AuditLogFilterContext(1, 10, null, null, "2024-01-11", "2024-02-10", null, "created"))).isEqualTo(1);
+    }
+
+    @Test
+    @SubjectAware(value = "trillian")
+    void shouldFilterWithFullPrecisionInstants() throws SQLException {
+      //01.01.2024 12:00:00.500 UTC
+      createTimeZoneDependentEntries(1704110400500L, "Too late");
+      //01.01.2024 12:00:00.499 UTC
+      createTimeZoneDependentEntries(1704110400499L, "within upper limit");
+      //01.01.2024 11:00:00.000 UTC
+      createTimeZoneDependentEntries(1704106800000L, "within lower limit");
+      //01.01.2024 10:59:59.999 UTC
+      createTimeZoneDependentEntries(1704106799999L, "Too soon");
+
+      AuditLogFilterContext filter = new AuditLogFilterContext(1, 100, null, null, "2024-01-01T12:00:00+01:00", "2024-01-01T12:00:00.500Z", null, null);
+      Collection<LogEntry> entries = service.getEntries(filter);
+
+      assertThat(entries.stream().map(LogEntry::getEntity)).containsOnly("within upper limit", "within lower limit");
+    }
+  }
+
+  @Test
+  void shouldLoadExistingLabels() throws SQLException {
+    connection.createStatement().executeUpdate("INSERT INTO LABEL_DICT(VALUE_) VALUES ('repository'), ('user')");
+
+    Dictionaries dictionaries = new Dictionaries(database);
+
+    assertThat(dictionaries.getLabels()).containsExactlyInAnyOrder("repository", "user");
+  }
+
+  private void createTimeZoneDependentEntries(long timestamp, String entity) {
+    writer.append(new PendingEntry(Instant.ofEpochMilli(timestamp), entity, "user", "created", "Diff", new String[0]));
+  }
+
+  private void prepareMonthlyEntries() {
+    createTimeZoneDependentEntries(Instant.parse("2024-01-10T10:00:00Z").toEpochMilli(), "jan-1");
+    createTimeZoneDependentEntries(Instant.parse("2024-01-20T10:00:00Z").toEpochMilli(), "jan-2");
+    createTimeZoneDependentEntries(Instant.parse("2024-02-10T10:00:00Z").toEpochMilli(), "feb-1");
+    createTimeZoneDependentEntries(Instant.parse("2024-02-20T10:00:00Z").toEpochMilli(), "feb-2");
+    createTimeZoneDependentEntries(Instant.parse("2024-03-10T10:00:00Z").toEpochMilli(), "mar-1");
+    createTimeZoneDependentEntries(Instant.parse("2024-03-20T10:00:00Z").toEpochMilli(), "mar-2");
+  }
+
+  private void prepareNumberedEntries(int count) {
+    for (int i = 1; i <= count; i++) {
+      service.createEntry(new EntryCreationContext<>(new TestEntity(String.valueOf(i)), null));
     }
   }
 
-  private void createTimeZoneDependentEntries(long timestamp, String entity) throws SQLException {
-    PreparedStatement statement = connection.prepareStatement("INSERT INTO AUDITLOG(TIMESTAMP_, ENTITY, USERNAME, ACTION_, ENTRY) VALUES (?, ?, ?, ?, ?)");
-    //01.01.2024 23:00 UTC
-    statement.setTimestamp(1, new Timestamp(timestamp));
-    statement.setString(2, entity);
-    statement.setString(3, "user");
-    statement.setString(4, "created");
-    statement.setString(5, "Diff");
-    statement.executeUpdate();
+  private long idOfEntity(String entity) {
+    return service.getLogEntries(new AuditLogFilterContext())
+      .stream()
+      .filter(entry -> entry.getEntity().equals(entity))
+      .findFirst()
+      .orElseThrow()
+      .getId();
   }
 
   private void prepareDbEntries() {
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class EntryCompressionJobTest {
+
+  private static final String CONNECTION_URL = "jdbc:h2:mem:compression-tests";
+
+  private Connection connection;
+  private AuditLogDatabase database;
+  private Dictionaries dictionaries;
+  private Partitions partitions;
+  private AuditLogConfiguration configuration;
+
+  @TempDir
+  private Path archiveDirectory;
+
+  @BeforeEach
+  void initTestDB() throws SQLException {
+    connection = DriverManager.getConnection(CONNECTION_URL);
+    database = new AuditLogDatabase(CONNECTION_URL);
+    dictionaries = new Dictionaries(database);
+    partitions = new Partitions(database);
+    configuration = new AuditLogConfiguration();
+    configuration.setWriterLingerMillis(0);
+  }
+
+  @AfterEach
+  void clearDB() throws SQLException {
+    connection.createStatement().executeUpdate("DROP ALL OBJECTS");
+    connection.close();
+  }
+
+  @Test
+  void shouldWriteCompressedEntries() throws SQLException {
+    configuration.setEntryCompression(true);
+
+    write("hitchhiker/42puzzle");
+
+    assertThat(query("SELECT COUNT(*) FROM AUDITLOG_2024_01 WHERE ENTRY IS NULL AND ENTRY_DATA IS NOT NULL")).containsExactly("1");
+    assertThat(readEntries()).containsExactly("Diff of hitchhiker/42puzzle");
+  }
+
+  @Test
+  void shouldCompressExistingEntries() throws SQLException {
+    write("hitchhiker/42puzzle");
+    write("hitchhiker/heartOfGold");
+    configuration.setEntryCompression(true);
+
+    int compressed = new EntryCompressionJob(database, partitions, configuration, Runnable::run).compressExistingEntries();
+
+    assertThat(compressed).isEqualTo(2);
+    assertThat(query("SELECT COUNT(*) FROM AUDITLOG_2024_01 WHERE ENTRY IS NULL AND ENTRY_DATA IS NOT NULL")).containsExactly("2");
+    assertThat(readEntries()).containsExactly("Diff of hitchhiker/heartOfGold", "Diff of hitchhiker/42puzzle");
+  }
+
+  @Test
+  void shouldNotStartJobIfCompressionIsDisabled() {
+    List<Runnable> tasks = new ArrayList<>();
+
+    new EntryCompressionJob(database, partitions, configuration, tasks::add).contextInitialized(null);
+
+    assertThat(tasks).isEmpty();
+  }
+
+  @Test
+  void shouldRoundTripMultiByteCharacters() {
+    String entry = "Diff: ä → ö\n".repeat(100);
+
+    assertThat(EntryCodec.decode(EntryCodec.encode(entry))).isEqualTo(entry);
+  }
+
+  @Test
+  void shouldRejectUnknownFormat() {
+    byte[] data = {42, 1, 2};
+
+    assertThatThrownBy(() -> EntryCodec.decode(data)).isInstanceOf(AuditLogException.class);
+  }
+
+  private void write(String entity) {
+    AuditLogWriter writer = new AuditLogWriter(createStore(), configuration, Runnable::run);
+    writer.append(new PendingEntry(Instant.parse("2024-01-15T10:00:00Z"), entity, "trillian", "modified", "Diff of " + entity, new String[0]));
+  }
+
+  private List<String> readEntries() {
+    DefaultAuditLogService service = new DefaultAuditLogService(createStore(), Runnable::run, null, configuration, null, AuditLogMetrics.unpublished());
+    List<String> entries = new ArrayList<>();
+    service.getLogEntries(new AuditLogFilterContext()).forEach(entry -> entries.add(entry.getEntry()));
+    return entries;
+  }
+
+  private JdbcAuditLogStore createStore() {
+    return new JdbcAuditLogStore(database, dictionaries, partitions, new Archive(archiveDirectory), configuration);
+  }
+
+  private List<String> query(String sql) throws SQLException {
+    List<String> result = new ArrayList<>();
+    try (ResultSet resultSet = connection.createStatement().executeQuery(sql)) {
+      while (resultSet.next()) {
+        result.add(resultSet.getString(1));
+      }
+    }
+    return result;
+  }
+}
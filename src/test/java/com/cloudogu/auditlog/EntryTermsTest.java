@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+
+package com.cloudogu.auditlog;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EntryTermsTest {
+
+  @Test
+  void shouldSplitEntryIntoLowerCaseTerms() {
+    String entry = """
+      2023-11-14T22:13:20Z[UTC] [MODIFIED] 'trillian' modified repository 'hitchhiker/42Puzzle'
+      Diff:
+        - 'defaultBranch' changed: 'main' -> 'feature/Login'
+        - 'password' changed: ********
+      """;
+
+    assertThat(EntryTerms.of(entry))
+      .contains("modified", "trillian", "hitchhiker/42puzzle", "hitchhiker", "42puzzle", "defaultbranch", "main", "feature/login", "feature", "login", "password")
+      .doesNotContain("2023-11-14t22", "utc");
+  }
+
+  @Test
+  void shouldTruncateLongTerms() {
+    assertThat(EntryTerms.of("timestamp " + "a".repeat(100)))
+      .containsExactly("a".repeat(EntryTerms.MAX_TERM_LENGTH));
+  }
+
+  @Test
+  void shouldKeepWildcardsInQuery() {
+    assertThat(EntryTerms.ofQuery("Feature/* main main '*'"))
+      .containsExactly("feature/*", "main");
+  }
+}
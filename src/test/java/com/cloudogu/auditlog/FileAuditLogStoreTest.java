@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FileAuditLogStoreTest {
+
+  @TempDir
+  private Path directory;
+
+  private AuditLogConfiguration configuration;
+  private Archive archive;
+  private FileAuditLogStore store;
+
+  @BeforeEach
+  void createStore() {
+    configuration = new AuditLogConfiguration();
+    configuration.setFileStoreSegmentEntries(3);
+    archive = new Archive(directory.resolve("archive"));
+    store = new FileAuditLogStore(directory.resolve("store"), archive, configuration);
+  }
+
+  @Test
+  void shouldReadWrittenEntriesNewestFirst() {
+    store.write(List.of(entry("first", "repository"), entry("second", "user")));
+
+    assertThat(read(new AuditLogFilterContext())).containsExactly("second", "first");
+    assertThat(store.count(new AuditLogFilterContext())).isEqualTo(2);
+    assertThat(store.getLabels()).containsExactlyInAnyOrder("repository", "user");
+  }
+
+  @Test
+  void shouldSealEntriesIntoSegment() {
+    store.write(List.of(entry("first"), entry("second")));
+    store.write(List.of(entry("third"), entry("fourth")));
+    store.write(List.of(entry("fifth")));
+
+    assertThat(archive.getAll()).hasSize(1);
+    assertThat(archive.getAll().get(0).getCount()).isEqualTo(4);
+    assertThat(read(new AuditLogFilterContext())).containsExactly("fifth", "fourth", "third", "second", "first");
+    assertThat(read(new AuditLogFilterContext(2, 2, null, null, null, null, null, null))).containsExactly("third", "second");
+    assertThat(store.count(new AuditLogFilterContext())).isEqualTo(5);
+  }
+
+  @Test
+  void shouldReadLogWhichHasGrownBeyondItsInitialCapacity() {
+    configuration.setFileStoreSegmentEntries(1000);
+    FileAuditLogStore largeStore = new FileAuditLogStore(directory.resolve("large"), archive, configuration);
+    for (int batch = 0; batch < 3; batch++) {
+      List<PendingEntry> entries = new ArrayList<>();
+      for (int i = 1; i <= 40; i++) {
+        entries.add(entry("entry-" + (batch * 40 + i)));
+      }
+      largeStore.write(entries);
+    }
+
+    AuditLogFilterContext filterContext = new AuditLogFilterContext();
+    filterContext.setLimit(3);
+
+    assertThat(read(largeStore, filterContext)).containsExactly("entry-120", "entry-119", "entry-118");
+    assertThat(largeStore.count(new AuditLogFilterContext())).isEqualTo(120);
+    assertThat(archive.getAll()).isEmpty();
+  }
+
+  @Test
+  void shouldReadNewerEntriesAcrossSegments() {
+    store.write(List.of(entry("first"), entry("second"), entry("third")));
+    store.write(List.of(entry("fourth"), entry("fifth")));
+
+    AuditLogFilterContext filterContext = new AuditLogFilterContext();
+    filterContext.setLimit(3);
+    filterContext.setAfterId(1L);
+
+    assertThat(read(filterContext)).containsExactly("fourth", "third", "second");
+  }
+
+  @Test
+  void shouldRecoverEntriesAfterRestart() throws IOException {
+    store.write(List.of(entry("first"), entry("second"), entry("third")));
+    store.write(List.of(entry("fourth", "user")));
+    // incomplete record of a write, which has been interrupted
+    Files.write(directory.resolve("store").resolve("entries.log"), new byte[]{0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+    FileAuditLogStore restarted = new FileAuditLogStore(directory.resolve("store"), new Archive(directory.resolve("archive")), configuration);
+    restarted.write(List.of(entry("fifth")));
+
+    assertThat(read(restarted, new AuditLogFilterContext())).containsExactly("fifth", "fourth", "third", "second", "first");
+    assertThat(restarted.getLabels()).containsExactly("user");
+  }
+
+  @Test
+  void shouldFilterByFullTextQuery() {
+    store.write(List.of(entry("hitchhiker/42puzzle"), entry("hitchhiker/heart-of-gold")));
+    store.write(List.of(entry("hitchhiker/restaurant")));
+
+    AuditLogFilterContext filterContext = new AuditLogFilterContext();
+    filterContext.setQuery("heart");
+
+    assertThat(read(filterContext)).containsExactly("hitchhiker/heart-of-gold");
+    assertThat(store.count(filterContext)).isEqualTo(1);
+  }
+
+  @Test
+  void shouldKeepSegmentsWithLabelOverrideOnRetention() throws SQLException, IOException {
+    configuration.setStore(AuditLogConfiguration.StoreType.FILE);
+    configuration.setRetentionDays(30);
+    configuration.setRetentionDaysByLabel(Map.of("permission", 0));
+    store.write(List.of(entryAt("2024-01-10T10:00:00Z", "jan-1", "repository"), entryAt("2024-01-11T10:00:00Z", "jan-2", "permission"), entryAt("2024-01-12T10:00:00Z", "jan-3", "repository")));
+    store.write(List.of(entryAt("2024-02-01T10:00:00Z", "feb-1", "repository"), entryAt("2024-02-02T10:00:00Z", "feb-2", "repository"), entryAt("2024-02-03T10:00:00Z", "feb-3", "user")));
+    store.write(List.of(entryAt("2024-03-10T10:00:00Z", "mar", "repository")));
+
+    long removed = createRetentionJob("2024-03-20T10:00:00Z").purge();
+
+    assertThat(removed).isEqualTo(3);
+    assertThat(archive.getAll()).extracting(Segment::getMinId).containsExactly(1L);
+    assertThat(read(new AuditLogFilterContext())).containsExactly("mar", "jan-3", "jan-2", "jan-1");
+  }
+
+  @Test
+  void shouldRemoveOldestSegmentsBeyondMaximum() throws SQLException, IOException {
+    configuration.setStore(AuditLogConfiguration.StoreType.FILE);
+    configuration.setRetentionMaxEntries(4);
+    store.write(List.of(entry("first"), entry("second"), entry("third")));
+    store.write(List.of(entry("fourth"), entry("fifth"), entry("sixth")));
+    store.write(List.of(entry("seventh")));
+
+    long removed = createRetentionJob("2024-03-20T10:00:00Z").purge();
+
+    assertThat(removed).isEqualTo(3);
+    assertThat(store.count(new AuditLogFilterContext())).isEqualTo(4);
+  }
+
+  private RetentionJob createRetentionJob(String now) {
+    // the file store must not open the database
+    return new RetentionJob(null, null, null, store, archive, configuration, null, Clock.fixed(Instant.parse(now), ZoneOffset.UTC));
+  }
+
+  private List<String> read(AuditLogFilterContext filterContext) {
+    return read(store, filterContext);
+  }
+
+  private static List<String> read(AuditLogStore store, AuditLogFilterContext filterContext) {
+    List<String> entities = new ArrayList<>();
+    store.read(filterContext, entry -> entities.add(entry.getEntity()));
+    return entities;
+  }
+
+  private static PendingEntry entry(String entity, String... labels) {
+    return entryAt("2024-01-15T10:00:00Z", entity, labels);
+  }
+
+  private static PendingEntry entryAt(String timestamp, String entity, String... labels) {
+    return new PendingEntry(Instant.parse(timestamp), entity, "trillian", "modified", "Diff of " + entity, labels);
+  }
+}
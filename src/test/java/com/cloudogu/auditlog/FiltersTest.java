@@ -18,12 +18,18 @@ package com.cloudogu.auditlog;
 
 import org.junit.jupiter.api.Test;
 
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.List;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
 
 class FiltersTest {
 
+  private static final Partition PARTITION = new Partition(1, "AUDITLOG_2023_01", "LABELS_2023_01", "TERMS_2023_01", null, null);
+
   @Test
   void shouldApplyFiltersWithoutCaseSensitivity() {
     List<Filters.AppliedFilter> appliedFilters = Filters.resolveAppliedFilters(
@@ -35,7 +41,8 @@ class FiltersTest {
         "2023-01-10",
         "2024-01-10",
         "repository",
-        "created")
+        "created"),
+      PARTITION
     );
 
     assertThat(appliedFilters.stream().map(Filters.AppliedFilter::getValue))
@@ -52,10 +59,75 @@ class FiltersTest {
       "2023-01-10",
       "2024-01-10",
       "repository",
-      "creat*")
+      "creat*"),
+      PARTITION
     );
 
    assertThat(appliedFilters.stream().map(Filters.AppliedFilter::getValue))
      .contains("%nt%", "%illian", "creat%");
   }
+
+  @Test
+  void shouldBindTimeRangeAsTimestampsWithoutCast() {
+    List<Filters.AppliedFilter> appliedFilters = Filters.resolveAppliedFilters(new AuditLogFilterContext(
+      0,
+      0,
+      null,
+      null,
+      "2023-01-10",
+      "2023-01-10T12:30:00.123Z",
+      null,
+      null,
+      ZoneId.of("UTC")),
+      PARTITION
+    );
+
+    assertThat(appliedFilters.stream().map(Filters.AppliedFilter::getSqlClause))
+      .containsExactly("AND AUDITLOG.TIMESTAMP_ >= ? ", "AND AUDITLOG.TIMESTAMP_ < ? ");
+    assertThat(appliedFilters.stream().map(Filters.AppliedFilter::getValue))
+      .containsExactly(
+        Timestamp.from(Instant.parse("2023-01-10T00:00:00Z")),
+        Timestamp.from(Instant.parse("2023-01-10T12:30:00.123Z"))
+      );
+  }
+
+  @Test
+  void shouldOmitTimeRangeEnclosingThePartition() {
+    Partition partition = new Partition(
+      1, "AUDITLOG_2023_01", "LABELS_2023_01", "TERMS_2023_01", Instant.parse("2023-01-01T00:00:00Z"), Instant.parse("2023-02-01T00:00:00Z")
+    );
+    List<Filters.AppliedFilter> appliedFilters = Filters.resolveAppliedFilters(new AuditLogFilterContext(
+      0,
+      0,
+      null,
+      null,
+      "2022-12-01",
+      "2023-01-20",
+      "repository",
+      null,
+      ZoneId.of("UTC")),
+      partition
+    );
+
+    assertThat(appliedFilters.stream().map(Filters.AppliedFilter::getSqlClause))
+      .containsExactly(
+        "AND AUDITLOG.TIMESTAMP_ < ? ",
+        "AND AUDITLOG.ID IN (SELECT LABELS.AUDIT FROM LABELS_2023_01 AS LABELS WHERE LABELS.LABEL_ID = (SELECT ID FROM LABEL_DICT WHERE VALUE_ = ?)) "
+      );
+  }
+
+  @Test
+  void shouldRequireEveryTermOfFullTextQuery() {
+    AuditLogFilterContext filterContext = new AuditLogFilterContext();
+    filterContext.setQuery("Feature/Login desc*");
+
+    List<Filters.AppliedFilter> appliedFilters = Filters.resolveAppliedFilters(filterContext, PARTITION);
+
+    assertThat(appliedFilters)
+      .extracting(Filters.AppliedFilter::getSqlClause, Filters.AppliedFilter::getValue)
+      .containsExactly(
+        tuple("AND AUDITLOG.ID IN (SELECT TERMS.AUDIT FROM TERMS_2023_01 AS TERMS WHERE TERMS.TERM = ?) ", "feature/login"),
+        tuple("AND AUDITLOG.ID IN (SELECT TERMS.AUDIT FROM TERMS_2023_01 AS TERMS WHERE TERMS.TERM LIKE ?) ", "desc%")
+      );
+  }
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JournalTest {
+
+  @TempDir
+  private Path directory;
+
+  @Test
+  void shouldRecoverUnacknowledgedEntries() throws IOException {
+    Journal journal = new Journal(directory);
+    journal.recover();
+    journal.append(entry("first"));
+    journal.append(entry("second"));
+    journal.append(entry("third"));
+    journal.acknowledge(1);
+
+    List<PendingEntry> recovered = new Journal(directory).recover();
+
+    assertThat(recovered).extracting(PendingEntry::getEntity).containsExactly("second", "third");
+    assertThat(recovered.get(0).getLabels()).containsExactly("repository");
+    assertThat(recovered.get(0).getTimestamp()).isEqualTo(Instant.parse("2024-01-15T10:00:00Z"));
+  }
+
+  @Test
+  void shouldKeepRecoveredEntriesUntilAcknowledged() throws IOException {
+    Journal journal = new Journal(directory);
+    journal.recover();
+    journal.append(entry("first"));
+    journal.append(entry("second"));
+
+    Journal restarted = new Journal(directory);
+    assertThat(restarted.recover()).hasSize(2);
+    restarted.append(entry("third"));
+    restarted.acknowledge(2);
+
+    assertThat(new Journal(directory).recover()).extracting(PendingEntry::getEntity).containsExactly("third");
+  }
+
+  @Test
+  void shouldDeleteSegmentsOnceTheCheckpointHasMovedIntoNewerSegment() throws IOException {
+    Journal journal = new Journal(directory);
+    journal.recover();
+    journal.append(entry("first"));
+    journal.append(entry("second"));
+    journal.close();
+
+    Journal restarted = new Journal(directory);
+    restarted.recover();
+    restarted.append(entry("third"));
+    restarted.acknowledge(1);
+    assertThat(segments()).hasSize(2);
+
+    restarted.acknowledge(1);
+    assertThat(segments()).hasSize(2);
+
+    restarted.acknowledge(1);
+    assertThat(segments()).hasSize(1);
+    assertThat(new Journal(directory).recover()).isEmpty();
+  }
+
+  @Test
+  void shouldIgnoreIncompleteLastRecord() throws IOException {
+    Journal journal = new Journal(directory);
+    journal.recover();
+    journal.append(entry("first"));
+    journal.append(entry("second"));
+    // simulate a torn write of the second record
+    Path segment = segments().get(0);
+    byte[] data = Files.readAllBytes(segment);
+    int secondRecordData = indexOf(data, "second".getBytes());
+    data[secondRecordData] = 'X';
+    Files.write(segment, data);
+
+    assertThat(new Journal(directory).recover()).extracting(PendingEntry::getEntity).containsExactly("first");
+  }
+
+  @Test
+  void shouldWriteRecoveredEntries() throws SQLException, IOException {
+    String connectionUrl = "jdbc:h2:mem:journal-tests";
+    try (Connection connection = DriverManager.getConnection(connectionUrl)) {
+      Journal journal = new Journal(directory);
+      journal.recover();
+      journal.append(entry("first"));
+      journal.append(entry("second"));
+
+      AuditLogDatabase database = new AuditLogDatabase(connectionUrl);
+      AuditLogConfiguration configuration = new AuditLogConfiguration();
+      configuration.setWriterLingerMillis(0);
+      Journal restarted = new Journal(directory);
+      JdbcAuditLogStore store = new JdbcAuditLogStore(database, new Dictionaries(database), new Partitions(database), new Archive(directory.resolve("archive")), configuration);
+      new AuditLogWriter(store, configuration, Runnable::run, restarted, AuditLogMetrics.unpublished());
+
+      assertThat(query(connection, "SELECT E.VALUE_ FROM AUDITLOG_2024_01 A JOIN ENTITY_DICT E ON E.ID = A.ENTITY_ID ORDER BY A.ID"))
+        .containsExactly("first", "second");
+      assertThat(restarted.getUnacknowledged()).isZero();
+      assertThat(new Journal(directory).recover()).isEmpty();
+
+      connection.createStatement().executeUpdate("DROP ALL OBJECTS");
+    }
+  }
+
+  @Test
+  void shouldAcknowledgeBatchWrittenAfterClose() throws IOException {
+    Journal journal = new Journal(directory);
+    journal.recover();
+    journal.append(entry("first"));
+    journal.append(entry("second"));
+
+    journal.close();
+    journal.acknowledge(2);
+
+    assertThat(new Journal(directory).recover()).isEmpty();
+  }
+
+  @Test
+  void shouldWriteQueuedEntriesBeforeShutdown() throws SQLException {
+    String connectionUrl = "jdbc:h2:mem:journal-shutdown-tests";
+    try (Connection connection = DriverManager.getConnection(connectionUrl)) {
+      AuditLogDatabase database = new AuditLogDatabase(connectionUrl);
+      AuditLogConfiguration configuration = new AuditLogConfiguration();
+      configuration.setWriterLingerMillis(0);
+      Journal journal = new Journal(directory);
+      JdbcAuditLogStore store = new JdbcAuditLogStore(database, new Dictionaries(database), new Partitions(database), new Archive(directory.resolve("archive")), configuration);
+      AuditLogWriter writer = new AuditLogWriter(store, configuration, Executors.newSingleThreadExecutor(), journal, AuditLogMetrics.unpublished());
+      writer.append(entry("first"));
+      writer.append(entry("second"));
+
+      DefaultAuditLogService service = new DefaultAuditLogService(store, Executors.newSingleThreadExecutor(), writer, configuration, null, AuditLogMetrics.unpublished());
+
+      new AuditLogShutdown(service, writer, journal, store).contextDestroyed(null);
+
+      assertThat(store.isClosed()).isTrue();
+      assertThat(query(connection, "SELECT E.VALUE_ FROM AUDITLOG_2024_01 A JOIN ENTITY_DICT E ON E.ID = A.ENTITY_ID ORDER BY A.ID"))
+        .containsExactly("first", "second");
+      assertThat(new Journal(directory).recover()).isEmpty();
+
+      connection.createStatement().executeUpdate("DROP ALL OBJECTS");
+    }
+  }
+
+  private PendingEntry entry(String entity) {
+    return new PendingEntry(Instant.parse("2024-01-15T10:00:00Z"), entity, "trillian", "created", "created " + entity, new String[]{"repository"});
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().collect(toList());
+    }
+  }
+
+  private static int indexOf(byte[] data, byte[] value) {
+    for (int i = 0; i <= data.length - value.length; i++) {
+      int j = 0;
+      while (j < value.length && data[i + j] == value[j]) {
+        j++;
+      }
+      if (j == value.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private List<String> query(Connection connection, String sql) throws SQLException {
+    List<String> result = new ArrayList<>();
+    try (ResultSet resultSet = connection.createStatement().executeQuery(sql)) {
+      while (resultSet.next()) {
+        result.add(resultSet.getString(1));
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RetentionJobTest {
+
+  private static final String CONNECTION_URL = "jdbc:h2:mem:retention-tests";
+
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+  private Connection connection;
+  private AuditLogDatabase database;
+  private Dictionaries dictionaries;
+  private Partitions partitions;
+  private AuditLogConfiguration configuration;
+  private AuditLogWriter writer;
+  private Archive archive;
+  private JdbcAuditLogStore store;
+
+  @BeforeEach
+  void initTestDB(@TempDir Path archiveDirectory) throws SQLException {
+    connection = DriverManager.getConnection(CONNECTION_URL);
+    database = new AuditLogDatabase(CONNECTION_URL);
+    dictionaries = new Dictionaries(database);
+    partitions = new Partitions(database);
+    configuration = new AuditLogConfiguration();
+    configuration.setWriterLingerMillis(0);
+    configuration.setRetentionChunkSize(2);
+    archive = new Archive(archiveDirectory);
+    store = new JdbcAuditLogStore(database, dictionaries, partitions, archive, configuration);
+    writer = new AuditLogWriter(store, configuration, Runnable::run);
+  }
+
+  @AfterEach
+  void clearDB() throws SQLException {
+    executor.shutdownNow();
+    connection.createStatement().executeUpdate("DROP ALL OBJECTS");
+    connection.close();
+  }
+
+  @Test
+  void shouldDropPartitionsWhichAreCompletelyExpired() throws SQLException, IOException {
+    configuration.setRetentionDays(30);
+    write("jan", "2024-01-15T10:00:00Z", "repository");
+    write("feb", "2024-02-25T10:00:00Z", "repository");
+    write("mar", "2024-03-15T10:00:00Z", "repository");
+
+    long removed = createJob("2024-03-20T10:00:00Z").purge();
+
+    assertThat(removed).isEqualTo(1);
+    assertThat(partitions.getAll())
+      .extracting(Partition::getAuditTable)
+      .containsExactly("AUDITLOG_2024_03", "AUDITLOG_2024_02");
+    assertThat(tableExists("AUDITLOG_2024_01")).isFalse();
+    assertThat(tableExists("LABELS_2024_01")).isFalse();
+    assertThat(query("SELECT COUNT(*) FROM AUDITLOG_COUNTERS WHERE DAY_ < DATE '2024-02-01'")).containsExactly("0");
+    assertThat(new Partitions(database).getAll()).hasSize(2);
+  }
+
+  @Test
+  void shouldDeleteExpiredEntriesInChunks() throws SQLException, IOException {
+    configuration.setRetentionDays(30);
+    write("first", "2024-02-01T10:00:00Z", "repository");
+    write("second", "2024-02-05T10:00:00Z", "repository");
+    write("third", "2024-02-10T10:00:00Z", "repository");
+    write("fourth", "2024-02-25T10:00:00Z", "repository");
+
+    long removed = createJob("2024-03-20T10:00:00Z").purge();
+
+    assertThat(removed).isEqualTo(3);
+    assertThat(entities("AUDITLOG_2024_02")).containsExactly("fourth");
+    assertThat(query("SELECT COUNT(*) FROM LABELS_2024_02")).containsExactly("1");
+    assertThat(query("SELECT SUM(COUNT_) FROM AUDITLOG_COUNTERS GROUP BY LABEL_ID")).containsExactly("1", "1");
+  }
+
+  @Test
+  void shouldKeepEntriesWithLabelOverride() throws SQLException, IOException {
+    configuration.setRetentionDays(30);
+    configuration.setRetentionDaysByLabel(Map.of("permission", 365));
+    write("repository", "2024-01-10T10:00:00Z", "repository");
+    write("permission", "2024-01-15T10:00:00Z", "repository", "permission");
+    write("user", "2024-01-20T10:00:00Z", "user");
+
+    long removed = createJob("2024-03-20T10:00:00Z").purge();
+
+    assertThat(removed).isEqualTo(2);
+    assertThat(entities("AUDITLOG_2024_01")).containsExactly("permission");
+    assertThat(query("SELECT COUNT(*) FROM LABELS_2024_01")).containsExactly("2");
+    assertThat(query("SELECT SUM(COUNT_) FROM AUDITLOG_COUNTERS WHERE LABEL_ID = 0")).containsExactly("1");
+  }
+
+  @Test
+  void shouldExpireEntriesWithShorterLabelOverride() throws SQLException, IOException {
+    configuration.setRetentionDaysByLabel(Map.of("user", 7));
+    write("repository", "2024-03-01T10:00:00Z", "repository");
+    write("user", "2024-03-02T10:00:00Z", "user");
+
+    long removed = createJob("2024-03-20T10:00:00Z").purge();
+
+    assertThat(removed).isEqualTo(1);
+    assertThat(entities("AUDITLOG_2024_03")).containsExactly("repository");
+  }
+
+  @Test
+  void shouldContinueAfterCheckedEntriesOnNextRun() throws SQLException, IOException {
+    configuration.setRetentionDays(30);
+    configuration.setRetentionDaysByLabel(Map.of("permission", 0));
+    write("permission", "2024-02-01T10:00:00Z", "repository", "permission");
+    write("first", "2024-02-05T10:00:00Z", "repository");
+    write("second", "2024-02-08T10:00:00Z", "repository");
+    write("third", "2024-02-20T10:00:00Z", "repository");
+    Clock clock = mock(Clock.class);
+    when(clock.instant()).thenReturn(Instant.parse("2024-03-04T10:00:00Z"), Instant.parse("2024-03-10T10:00:00Z"));
+    RetentionJob job = new RetentionJob(database, partitions, dictionaries, store, archive, configuration, executor, clock);
+
+    assertThat(job.purge()).isZero();
+    assertThat(job.purge()).isEqualTo(2);
+    assertThat(entities("AUDITLOG_2024_02")).containsExactly("permission", "third");
+  }
+
+  @Test
+  void shouldDeleteExpiredLateEntries() throws SQLException, IOException {
+    configuration.setRetentionDays(30);
+    write("first", "2024-03-15T10:00:00Z", "repository");
+    write("second", "2024-03-16T10:00:00Z", "repository");
+    // written into the newest partition with a higher id than the newer entries
+    write("late", "2024-02-01T10:00:00Z", "repository");
+
+    long removed = createJob("2024-03-20T10:00:00Z").purge();
+
+    assertThat(removed).isEqualTo(1);
+    assertThat(entities("AUDITLOG_2024_03")).containsExactly("first", "second");
+  }
+
+  @Test
+  void shouldDeleteLateEntriesWhichAreOlderThanTheCheckedEntries() throws SQLException, IOException {
+    configuration.setRetentionDays(30);
+    write("current", "2024-03-15T10:00:00Z", "repository");
+    Clock clock = mock(Clock.class);
+    when(clock.instant()).thenReturn(Instant.parse("2024-03-20T10:00:00Z"), Instant.parse("2024-03-21T10:00:00Z"));
+    RetentionJob job = new RetentionJob(database, partitions, dictionaries, store, archive, configuration, executor, clock);
+
+    assertThat(job.purge()).isZero();
+    write("late", "2024-02-01T10:00:00Z", "repository");
+    assertThat(job.purge()).isEqualTo(1);
+    assertThat(entities("AUDITLOG_2024_03")).containsExactly("current");
+  }
+
+  @Test
+  void shouldRemoveOldestEntriesBeyondMaximum() throws SQLException, IOException {
+    configuration.setRetentionMaxEntries(3);
+    write("jan-1", "2024-01-10T10:00:00Z", "repository");
+    write("jan-2", "2024-01-20T10:00:00Z", "repository");
+    write("feb-1", "2024-02-10T10:00:00Z", "repository");
+    write("feb-2", "2024-02-20T10:00:00Z", "repository");
+    write("mar-1", "2024-03-10T10:00:00Z", "repository");
+
+    long removed = createJob("2024-03-20T10:00:00Z").purge();
+
+    assertThat(removed).isEqualTo(2);
+    assertThat(partitions.getAll())
+      .extracting(Partition::getAuditTable)
+      .containsExactly("AUDITLOG_2024_03", "AUDITLOG_2024_02");
+  }
+
+  @Test
+  void shouldDeleteSingleEntriesBeyondMaximum() throws SQLException, IOException {
+    configuration.setRetentionMaxEntries(2);
+    write("first", "2024-03-01T10:00:00Z", "repository");
+    write("second", "2024-03-02T10:00:00Z", "repository");
+    write("third", "2024-03-03T10:00:00Z", "repository");
+
+    long removed = createJob("2024-03-20T10:00:00Z").purge();
+
+    assertThat(removed).isEqualTo(1);
+    assertThat(entities("AUDITLOG_2024_03")).containsExactly("second", "third");
+  }
+
+  @Test
+  void shouldDeleteExpiredArchiveSegments() throws SQLException, IOException {
+    configuration.setRetentionDays(30);
+    configuration.setRetentionDaysByLabel(Map.of("permission", 0));
+    write("current", "2024-03-01T10:00:00Z", "repository", "permission");
+    archive.write(List.of(archivedEntry(1, "2024-01-10T10:00:00Z", "repository")));
+    archive.write(List.of(archivedEntry(2, "2024-01-11T10:00:00Z", "permission")));
+    archive.write(List.of(archivedEntry(3, "2024-03-01T10:00:00Z", "repository")));
+
+    long removed = createJob("2024-03-20T10:00:00Z").purge();
+
+    assertThat(removed).isEqualTo(1);
+    assertThat(archive.getAll()).extracting(Segment::getMinId).containsExactly(3L, 2L);
+  }
+
+  @Test
+  void shouldKeepEverythingWithoutRetention() throws SQLException, IOException {
+    write("jan", "2020-01-15T10:00:00Z", "repository");
+
+    assertThat(createJob("2024-03-20T10:00:00Z").purge()).isZero();
+    assertThat(partitions.getAll()).hasSize(1);
+  }
+
+  private RetentionJob createJob(String now) {
+    Clock clock = Clock.fixed(Instant.parse(now), ZoneOffset.UTC);
+    return new RetentionJob(database, partitions, dictionaries, store, archive, configuration, executor, clock);
+  }
+
+  private void write(String entity, String timestamp, String... labels) {
+    writer.append(new PendingEntry(Instant.parse(timestamp), entity, "trillian", "modified", "Diff", labels));
+  }
+
+  private ArchivedEntry archivedEntry(long id, String timestamp, String label) {
+    return new ArchivedEntry(id, Instant.parse(timestamp), "archived", "trillian", "modified", "Diff", new String[]{label});
+  }
+
+  private List<String> entities(String table) throws SQLException {
+    return query("SELECT E.VALUE_ FROM " + table + " A JOIN ENTITY_DICT E ON E.ID = A.ENTITY_ID ORDER BY A.ID");
+  }
+
+  private List<String> query(String sql) throws SQLException {
+    List<String> result = new ArrayList<>();
+    try (ResultSet resultSet = connection.createStatement().executeQuery(sql)) {
+      while (resultSet.next()) {
+        result.add(resultSet.getString(1));
+      }
+    }
+    return result;
+  }
+
+  private boolean tableExists(String table) throws SQLException {
+    try (ResultSet tables = connection.getMetaData().getTables(null, null, table, null)) {
+      return tables.next();
+    }
+  }
+}
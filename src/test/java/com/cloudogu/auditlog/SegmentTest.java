@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020 - present Cloudogu GmbH
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License as published by the Free
+ * Software Foundation, version 3.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see https://www.gnu.org/licenses/.
+ */
+
+package com.cloudogu.auditlog;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+class SegmentTest {
+
+  @TempDir
+  private Path directory;
+
+  @Test
+  void shouldReadWrittenEntries() throws IOException {
+    Segment.write(directory.resolve("2024-01-15_1.segment"), List.of(
+      new ArchivedEntry(1, Instant.parse("2024-01-15T10:00:00Z"), "hitchhiker/42puzzle", "trillian", "created", "first", new String[]{"repository"}),
+      new ArchivedEntry(2, Instant.parse("2024-01-15T11:00:00Z"), "hitchhiker/42puzzle", null, "modified", "second", new String[0])
+    ));
+
+    Segment segment = Segment.open(directory.resolve("2024-01-15_1.segment"));
+
+    assertThat(segment.getCount()).isEqualTo(2);
+    assertThat(segment.getMinId()).isEqualTo(1);
+    assertThat(segment.getMaxTimestamp()).isEqualTo(Instant.parse("2024-01-15T11:00:00Z"));
+    assertThat(segment.getLabels()).containsExactly("repository");
+    List<ArchivedEntry> entries = read(segment, new AuditLogFilterContext(), true);
+    assertThat(entries).extracting(ArchivedEntry::getId, ArchivedEntry::getUser, ArchivedEntry::getEntry)
+      .containsExactly(
+        tuple(1L, "trillian", "first"),
+        tuple(2L, null, "second")
+      );
+    assertThat(entries.get(0).getLabels()).containsExactly("repository");
+  }
+
+  @Test
+  void shouldSkipBlocksWhichCannotMatch() throws IOException {
+    List<ArchivedEntry> entries = new ArrayList<>();
+    for (int i = 1; i <= 1000; i++) {
+      entries.add(new ArchivedEntry(i, Instant.parse("2024-01-15T10:00:00Z").plusSeconds(i), "hitchhiker/42puzzle", "trillian", "modified", "entry " + i, new String[0]));
+    }
+    Segment segment = Segment.write(directory.resolve("2024-01-15_1.segment"), entries);
+
+    AuditLogFilterContext filterContext = new AuditLogFilterContext();
+    filterContext.setBeforeId(100L);
+
+    assertThat(segment.getBlocks()).hasSizeGreaterThan(1);
+    assertThat(read(segment, filterContext, false)).hasSizeLessThanOrEqualTo(256);
+  }
+
+  @Test
+  void shouldMatchLikeTheDatabase() {
+    ArchivedEntry entry = new ArchivedEntry(1, Instant.parse("2024-01-15T10:00:00Z"), "hitchhiker/42puzzle", "trillian", "modified", "entry", new String[]{"repository"});
+
+    assertThat(ArchiveFilter.of(new AuditLogFilterContext(1, 100, "*42PUZ*", null, null, null, "repository", "modified")).matches(entry)).isTrue();
+    assertThat(ArchiveFilter.of(new AuditLogFilterContext(1, 100, null, "dent", null, null, null, null)).matches(entry)).isFalse();
+    assertThat(ArchiveFilter.of(new AuditLogFilterContext(1, 100, null, null, "2024-01-17", null, null, null)).matches(entry)).isFalse();
+  }
+
+  private List<ArchivedEntry> read(Segment segment, AuditLogFilterContext filterContext, boolean ascending) {
+    List<ArchivedEntry> entries = new ArrayList<>();
+    segment.read(ArchiveFilter.withCursor(filterContext), ascending, entries::add);
+    return entries;
+  }
+}